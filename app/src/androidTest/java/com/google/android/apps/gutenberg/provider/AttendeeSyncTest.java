@@ -0,0 +1,216 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg.provider;
+
+import android.content.ContentProviderClient;
+import android.database.Cursor;
+import android.test.ProviderTestCase2;
+
+import com.google.android.apps.gutenberg.util.ServerHost;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Syncs the attendees from {@link StubServer} and checks how the deltas are applied.
+ */
+public class AttendeeSyncTest extends ProviderTestCase2<GutenbergProvider> {
+
+    private static final String EVENT_ID = "event";
+    private static final String ATTENDEES_PATH = "/v1/event/" + EVENT_ID + "/attendees";
+
+    private StubServer mServer;
+    private ContentProviderClient mProvider;
+    private SyncAdapter mSyncAdapter;
+
+    public AttendeeSyncTest() {
+        super(GutenbergProvider.class, Table.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new StubServer();
+        ServerHost.set(mServer.start());
+        mServer.putEvent(EVENT_ID);
+        mProvider = getMockContentResolver().acquireContentProviderClient(Table.AUTHORITY);
+        // Before API 17, the sync adapter merges the rows with the content resolver of its context
+        mSyncAdapter = new SyncAdapter(new TestContext(getContext(), getMockContentResolver()),
+                false);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mProvider.release();
+        ServerHost.set(null);
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    public void testFirstSync() throws Exception {
+        mServer.putAttendee(EVENT_ID, "a", "Alice");
+        long watermark = mServer.putAttendee(EVENT_ID, "b", "Bob");
+        sync(false);
+        assertEquals(ATTENDEES_PATH, getAttendeesPath());
+        HashMap<String, String> attendees = loadAttendees();
+        assertEquals(2, attendees.size());
+        assertEquals("Alice", attendees.get("a"));
+        assertEquals("Bob", attendees.get("b"));
+        assertEquals(watermark, loadWatermark());
+    }
+
+    public void testDeltaApply() throws Exception {
+        mServer.putAttendee(EVENT_ID, "a", "Alice");
+        long watermark = mServer.putAttendee(EVENT_ID, "b", "Bob");
+        sync(false);
+        getAttendeesPath();
+        mServer.putAttendee(EVENT_ID, "b", "Robert");
+        long newWatermark = mServer.putAttendee(EVENT_ID, "c", "Carol");
+        sync(false);
+        // Only the attendees modified since the last sync are downloaded
+        assertEquals(ATTENDEES_PATH + "?since=" + watermark, getAttendeesPath());
+        HashMap<String, String> attendees = loadAttendees();
+        assertEquals(3, attendees.size());
+        assertEquals("Alice", attendees.get("a"));
+        assertEquals("Robert", attendees.get("b"));
+        assertEquals("Carol", attendees.get("c"));
+        assertEquals(newWatermark, loadWatermark());
+    }
+
+    public void testTombstoneDelete() throws Exception {
+        mServer.putAttendee(EVENT_ID, "a", "Alice");
+        mServer.putAttendee(EVENT_ID, "b", "Bob");
+        sync(false);
+        long watermark = mServer.deleteAttendee(EVENT_ID, "a");
+        sync(false);
+        HashMap<String, String> attendees = loadAttendees();
+        assertEquals(1, attendees.size());
+        assertEquals("Bob", attendees.get("b"));
+        assertEquals(watermark, loadWatermark());
+    }
+
+    public void testWatermarkPersistence() throws Exception {
+        long watermark = mServer.putAttendee(EVENT_ID, "a", "Alice");
+        sync(false);
+        getAttendeesPath();
+        // Nothing has changed; the watermark stays
+        sync(false);
+        assertEquals(ATTENDEES_PATH + "?since=" + watermark, getAttendeesPath());
+        assertEquals(watermark, loadWatermark());
+        sync(false);
+        assertEquals(ATTENDEES_PATH + "?since=" + watermark, getAttendeesPath());
+        // A full sync starts over, and ends at the same watermark
+        sync(true);
+        assertEquals(ATTENDEES_PATH, getAttendeesPath());
+        assertEquals(watermark, loadWatermark());
+    }
+
+    public void testMergeCalls() throws Exception {
+        // More rows than a call of the merge takes
+        int count = GutenbergProvider.MAX_MERGE_ROWS * 2 + 1;
+        for (int i = 0; i < count; i++) {
+            mServer.putAttendee(EVENT_ID, "a" + i, "Attendee " + i);
+        }
+        sync(false);
+        HashMap<String, String> attendees = loadAttendees();
+        assertEquals(count, attendees.size());
+        assertEquals("Attendee " + (count - 1), attendees.get("a" + (count - 1)));
+    }
+
+    public void testEventRemoved() throws Exception {
+        mServer.putAttendee(EVENT_ID, "a", "Alice");
+        sync(false);
+        mServer.removeEvent(EVENT_ID);
+        sync(false);
+        assertEquals(0, loadAttendees().size());
+        assertEquals(0, loadWatermark());
+        // When the event comes back, all of its attendees are downloaded again
+        mServer.putEvent(EVENT_ID);
+        mServer.putAttendee(EVENT_ID, "a", "Alice");
+        mServer.takePaths();
+        sync(false);
+        assertEquals(ATTENDEES_PATH, getAttendeesPath());
+        assertEquals(1, loadAttendees().size());
+    }
+
+    public void testSkipEvent() throws Exception {
+        String otherEventId = "other";
+        mServer.putEvent(otherEventId);
+        mServer.putAttendee(EVENT_ID, "a", "Alice");
+        mServer.putAttendee(otherEventId, "b", "Bob");
+        // The background sync after the one of the current event only fills in the others
+        mSyncAdapter.syncEvents(mProvider, "cookie", false, 1, null, EVENT_ID);
+        List<String> paths = mServer.takePaths();
+        assertTrue(paths.contains("/v1/event/" + otherEventId + "/attendees"));
+        for (String path : paths) {
+            assertFalse(path, path.startsWith(ATTENDEES_PATH));
+        }
+        assertEquals(0, loadAttendees().size());
+    }
+
+    private void sync(boolean full) {
+        mSyncAdapter.syncEvents(mProvider, "cookie", full, 1, null, null);
+    }
+
+    /**
+     * @return The path of the last request for the attendees since the last call.
+     */
+    private String getAttendeesPath() {
+        String attendeesPath = null;
+        List<String> paths = mServer.takePaths();
+        for (String path : paths) {
+            if (path.startsWith(ATTENDEES_PATH)) {
+                attendeesPath = path;
+            }
+        }
+        assertNotNull("No request for the attendees: " + Arrays.toString(paths.toArray()),
+                attendeesPath);
+        return attendeesPath;
+    }
+
+    /**
+     * @return The names of the attendees of the event by their IDs.
+     */
+    private HashMap<String, String> loadAttendees() throws Exception {
+        HashMap<String, String> attendees = new HashMap<>();
+        Cursor cursor = mProvider.query(Table.ATTENDEE.getItemUri(EVENT_ID),
+                new String[]{Table.Attendee.ID, Table.Attendee.NAME}, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                attendees.put(cursor.getString(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return attendees;
+    }
+
+    /**
+     * @return The watermark saved for the event, or 0 if there is none.
+     */
+    private long loadWatermark() throws Exception {
+        Cursor cursor = mProvider.query(Table.EVENT_SYNC.getItemUri(EVENT_ID),
+                new String[]{Table.EventSync.WATERMARK}, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg.provider;
+
+import android.content.ContentValues;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Helpers for the benchmarks. The benchmarks are instrumentation tests annotated with
+ * {@link android.test.suitebuilder.annotation.LargeTest}, and log their results; run them on a
+ * device with "-e size large".
+ */
+public class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Makes attendees as the sync downloads them, in a random order of names.
+     *
+     * @param count The number of attendees
+     * @return The rows of {@link Table#ATTENDEE}.
+     */
+    public static ArrayList<ContentValues> newAttendees(String eventId, int count) {
+        return newAttendees(eventId, 0, count);
+    }
+
+    /**
+     * Makes attendees as the sync downloads them, in a random order of names.
+     *
+     * @param start The number of the first attendee
+     * @param count The number of attendees
+     * @return The rows of {@link Table#ATTENDEE}.
+     */
+    public static ArrayList<ContentValues> newAttendees(String eventId, int start, int count) {
+        ArrayList<ContentValues> rows = new ArrayList<>(count);
+        for (int i = start; i < start + count; i++) {
+            ContentValues values = new ContentValues();
+            values.put(Table.Attendee.EVENT_ID, eventId);
+            values.put(Table.Attendee.ID, String.format(Locale.US, "%08d", i));
+            // Scattered, so that the name index is written all over
+            values.put(Table.Attendee.NAME, "Attendee " + Integer.toHexString(i * 0x9e3779b1));
+            values.put(Table.Attendee.EMAIL, "attendee" + i + "@example.com");
+            values.putNull(Table.Attendee.CHECKIN);
+            rows.add(values);
+        }
+        return rows;
+    }
+
+    /**
+     * Describes the distribution of the samples.
+     *
+     * @param samples The samples in nanoseconds
+     * @return The count, median, 95th percentile, and maximum in milliseconds.
+     */
+    public static String describe(List<Long> samples) {
+        if (samples.isEmpty()) {
+            return "no samples";
+        }
+        Long[] sorted = samples.toArray(new Long[samples.size()]);
+        Arrays.sort(sorted);
+        return String.format(Locale.US, "n=%d, median=%.2fms, p95=%.2fms, max=%.2fms",
+                sorted.length, sorted[sorted.length / 2] / 1e6,
+                sorted[sorted.length * 95 / 100] / 1e6, sorted[sorted.length - 1] / 1e6);
+    }
+
+    /**
+     * @return The rate in rows per second.
+     */
+    public static long getRowsPerSecond(int rows, long nanos) {
+        return nanos == 0 ? 0 : rows * 1000000000L / nanos;
+    }
+
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+
+import com.google.android.apps.gutenberg.util.ServerHost;
+import com.google.android.apps.gutenberg.util.SessionManager;
+
+import java.util.List;
+
+/**
+ * Runs {@link CheckinListener} against {@link StubServer}.
+ */
+public class CheckinListenerTest extends ProviderTestCase2<GutenbergProvider> {
+
+    private static final String EVENT_ID = "event";
+
+    /**
+     * How long to wait for the listener to poll.
+     */
+    private static final long TIMEOUT = 10 * 1000;
+
+    /**
+     * The error allowed in the measured backoff.
+     */
+    private static final long BACKOFF_SLACK = 100;
+
+    private static final long CHECKIN_TIME = 1430000000;
+
+    private StubServer mServer;
+    private TestContext mTestContext;
+    private CheckinListener mListener;
+
+    public CheckinListenerTest() {
+        super(GutenbergProvider.class, Table.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new StubServer();
+        ServerHost.set(mServer.start());
+        mServer.putEvent(EVENT_ID);
+        mTestContext = new TestContext(getContext(), getMockContentResolver());
+        SessionManager.invalidate(mTestContext);
+        for (String attendeeId : new String[]{"a", "b", "c"}) {
+            ContentValues values = new ContentValues();
+            values.put(Table.Attendee.EVENT_ID, EVENT_ID);
+            values.put(Table.Attendee.ID, attendeeId);
+            values.put(Table.Attendee.NAME, attendeeId);
+            values.put(Table.Attendee.EMAIL, attendeeId + "@example.com");
+            getMockContentResolver().insert(Table.ATTENDEE.getBaseUri(), values);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mListener != null) {
+            mListener.stop();
+        }
+        ServerHost.set(null);
+        mServer.shutdown();
+        SessionManager.invalidate(mTestContext);
+        super.tearDown();
+    }
+
+    public void testCursor() throws Exception {
+        // The first poll starts from the watermark of the last sync
+        ContentValues values = new ContentValues();
+        values.put(Table.EventSync.EVENT_ID, EVENT_ID);
+        values.put(Table.EventSync.WATERMARK, 500);
+        getMockContentResolver().insert(Table.EVENT_SYNC.getBaseUri(), values);
+        startListener();
+        assertEquals(500, mServer.awaitPolls(1, TIMEOUT).get(0).since);
+        // Then from the "since" of each response
+        long since = mServer.putCheckin(EVENT_ID, "a", CHECKIN_TIME, 0);
+        assertEquals(since, mServer.awaitPolls(2, TIMEOUT).get(1).since);
+        since = mServer.putCheckin(EVENT_ID, "b", CHECKIN_TIME, 0);
+        assertEquals(since, mServer.awaitPolls(3, TIMEOUT).get(2).since);
+    }
+
+    public void testLongPoll() throws Exception {
+        startListener();
+        mServer.awaitPolls(1, TIMEOUT);
+        // The poll held by the server returns as soon as there is a check-in
+        long start = SystemClock.elapsedRealtime();
+        mServer.putCheckin(EVENT_ID, "a", CHECKIN_TIME, 5);
+        List<StubServer.Poll> polls = mServer.awaitPolls(2, TIMEOUT);
+        assertTrue(polls.get(1).time - start < TIMEOUT);
+        assertCheckin("a", CHECKIN_TIME, 5);
+    }
+
+    public void testSingleRowApply() throws Exception {
+        startListener();
+        mServer.awaitPolls(1, TIMEOUT);
+        mServer.putCheckin(EVENT_ID, "a", CHECKIN_TIME, 5);
+        mServer.awaitPolls(2, TIMEOUT);
+        assertCheckin("a", CHECKIN_TIME, 5);
+        assertCheckin("b", 0, 0);
+        assertCheckin("c", 0, 0);
+        // An older revert loses
+        mServer.putCheckin(EVENT_ID, "a", 0, 3);
+        mServer.awaitPolls(3, TIMEOUT);
+        assertCheckin("a", CHECKIN_TIME, 5);
+        // A newer one wins
+        mServer.putCheckin(EVENT_ID, "a", 0, 7);
+        mServer.awaitPolls(4, TIMEOUT);
+        assertCheckin("a", 0, 7);
+        assertCheckin("b", 0, 0);
+    }
+
+    public void testPendingCheckinKept() throws Exception {
+        ContentValues values = new ContentValues();
+        values.put(Table.Outbox.EVENT_ID, EVENT_ID);
+        values.put(Table.Outbox.ATTENDEE_ID, "b");
+        values.put(Table.Outbox.REVERT, false);
+        values.put(Table.Outbox.CREATED, 0);
+        values.put(Table.Outbox.ATTEMPTS, 0);
+        values.put(Table.Outbox.NEXT_ATTEMPT, 0);
+        getMockContentResolver().insert(Table.OUTBOX.getBaseUri(), values);
+        startListener();
+        mServer.awaitPolls(1, TIMEOUT);
+        // Without a version, a check-in doesn't overwrite one waiting to be uploaded
+        mServer.putCheckin(EVENT_ID, "b", CHECKIN_TIME, 0);
+        mServer.putCheckin(EVENT_ID, "c", CHECKIN_TIME, 0);
+        mServer.awaitPolls(2, TIMEOUT);
+        assertCheckin("b", 0, 0);
+        assertCheckin("c", CHECKIN_TIME, 0);
+    }
+
+    public void testReconnectBackoff() throws Exception {
+        mServer.failPolls(2);
+        startListener();
+        List<StubServer.Poll> polls = mServer.awaitPolls(3, TIMEOUT);
+        assertBackoff(1000, polls.get(1).time - polls.get(0).time);
+        assertBackoff(2000, polls.get(2).time - polls.get(1).time);
+        // A successful poll resets the backoff
+        mServer.failPolls(1);
+        mServer.putCheckin(EVENT_ID, "a", CHECKIN_TIME, 5);
+        polls = mServer.awaitPolls(5, TIMEOUT);
+        assertBackoff(1000, polls.get(4).time - polls.get(3).time);
+        assertCheckin("a", CHECKIN_TIME, 5);
+    }
+
+    public void testSessionExpired() throws Exception {
+        mServer.expirePolls(1);
+        startListener();
+        mServer.awaitPolls(2, TIMEOUT);
+        // The rejected cookie is replaced
+        assertEquals(2, mServer.getLogins());
+    }
+
+    public void testForbidden() throws Exception {
+        mServer.expirePolls(1, 403);
+        startListener();
+        mServer.awaitPolls(2, TIMEOUT);
+        // Not an expired session; the poll is retried with the same cookie
+        assertEquals(1, mServer.getLogins());
+    }
+
+    public void testAuthTokenReplaced() throws Exception {
+        startListener();
+        mServer.awaitPolls(1, TIMEOUT);
+        assertEquals("token", mServer.getAuthToken());
+        // The new token is used for the next cookie, without restarting the listener
+        mListener.setAuthToken("token2");
+        mServer.expirePolls(1);
+        mServer.putCheckin(EVENT_ID, "a", CHECKIN_TIME, 5);
+        mServer.awaitPolls(3, TIMEOUT);
+        assertEquals(2, mServer.getLogins());
+        assertEquals("token2", mServer.getAuthToken());
+    }
+
+    private void startListener() {
+        mListener = new CheckinListener(mTestContext, "account", "token", EVENT_ID);
+        mListener.start();
+    }
+
+    /**
+     * @param checkinTime The expected check-in time, or 0 if not checked in
+     * @param version     The expected version, or 0 if none
+     */
+    private void assertCheckin(String attendeeId, long checkinTime, long version) {
+        Cursor cursor = getMockContentResolver().query(
+                Table.ATTENDEE.getItemUri(EVENT_ID, attendeeId),
+                new String[]{Table.Attendee.CHECKIN, Table.Attendee.CHECKIN_VERSION},
+                null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(checkinTime, cursor.getLong(0));
+            assertEquals(version, cursor.getLong(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void assertBackoff(long expected, long actual) {
+        assertTrue("Expected a backoff of " + expected + "ms, but was " + actual + "ms",
+                expected - BACKOFF_SLACK <= actual && actual < expected * 2 - BACKOFF_SLACK);
+    }
+
+}
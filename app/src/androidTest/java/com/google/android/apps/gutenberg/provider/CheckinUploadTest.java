@@ -0,0 +1,106 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg.provider;
+
+import android.accounts.Account;
+import android.content.ContentProviderClient;
+import android.content.ContentValues;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.test.ProviderTestCase2;
+
+import com.google.android.apps.gutenberg.util.ServerHost;
+import com.google.android.apps.gutenberg.util.SessionManager;
+
+/**
+ * Uploads the check-ins in the outbox to {@link StubServer} and checks how the failures are
+ * recorded.
+ */
+public class CheckinUploadTest extends ProviderTestCase2<GutenbergProvider> {
+
+    private static final String EVENT_ID = "event";
+    private static final String ATTENDEE_ID = "a";
+
+    private StubServer mServer;
+    private TestContext mTestContext;
+    private ContentProviderClient mProvider;
+    private SyncAdapter mSyncAdapter;
+
+    public CheckinUploadTest() {
+        super(GutenbergProvider.class, Table.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new StubServer();
+        ServerHost.set(mServer.start());
+        mServer.putEvent(EVENT_ID);
+        mTestContext = new TestContext(getContext(), getMockContentResolver());
+        SessionManager.invalidate(mTestContext);
+        mProvider = getMockContentResolver().acquireContentProviderClient(Table.AUTHORITY);
+        mSyncAdapter = new SyncAdapter(mTestContext, false);
+        ContentValues values = new ContentValues();
+        values.put(Table.Outbox.EVENT_ID, EVENT_ID);
+        values.put(Table.Outbox.ATTENDEE_ID, ATTENDEE_ID);
+        values.put(Table.Outbox.REVERT, false);
+        values.put(Table.Outbox.CREATED, 0);
+        values.put(Table.Outbox.ATTEMPTS, 0);
+        values.put(Table.Outbox.NEXT_ATTEMPT, 0);
+        getMockContentResolver().insert(Table.OUTBOX.getBaseUri(), values);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mProvider.release();
+        ServerHost.set(null);
+        mServer.shutdown();
+        SessionManager.invalidate(mTestContext);
+        super.tearDown();
+    }
+
+    public void testForbidden() throws Exception {
+        mServer.rejectCheckins(403);
+        long start = System.currentTimeMillis();
+        syncCheckins();
+        // The cookie is fine, so it is not fetched again; the check-in backs off instead
+        assertEquals(1, mServer.getLogins());
+        Cursor cursor = mProvider.query(Table.OUTBOX.getBaseUri(), new String[]{
+                Table.Outbox.ATTEMPTS,
+                Table.Outbox.LAST_ERROR,
+                Table.Outbox.NEXT_ATTEMPT,
+        }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(1, cursor.getInt(0));
+            assertEquals("HTTP 403", cursor.getString(1));
+            assertTrue(cursor.getLong(2) > start);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void syncCheckins() {
+        Bundle extras = new Bundle();
+        extras.putString(SyncAdapter.EXTRA_AUTH_TOKEN, "token");
+        extras.putBoolean(SyncAdapter.EXTRA_ONLY_CHECKINS, true);
+        mSyncAdapter.onPerformSync(new Account("account", "com.google"), extras,
+                Table.AUTHORITY, mProvider, new SyncResult());
+    }
+
+}
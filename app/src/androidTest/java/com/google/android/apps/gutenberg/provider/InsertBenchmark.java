@@ -0,0 +1,202 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg.provider;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Measures the rows per second of writing 1,000, 10,000, and 100,000 attendees and their
+ * check-ins through {@link GutenbergProvider}, against writing them with
+ * {@link SQLiteDatabase#insert(String, String, ContentValues)} and
+ * {@link SQLiteDatabase#update(String, ContentValues, String, String[])}, which build the SQL for
+ * every row. The rows are written in chunks of {@link AttendeeDownloader#CHUNK_SIZE}, each in its
+ * own transaction, as the sync does.
+ */
+@LargeTest
+public class InsertBenchmark extends ProviderTestCase2<GutenbergProvider> {
+
+    private static final String TAG = "InsertBenchmark";
+
+    private static final String EVENT_ID = "event";
+
+    private static final int CHUNK_SIZE = AttendeeDownloader.CHUNK_SIZE;
+
+    private SQLiteDatabase mDatabase;
+
+    public InsertBenchmark() {
+        super(GutenbergProvider.class, Table.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // The same database as the provider, written directly
+        mDatabase = new GutenbergDatabaseHelper(getMockContext()).getWritableDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDatabase.close();
+        super.tearDown();
+    }
+
+    public void test1k() throws Exception {
+        run(1000);
+    }
+
+    public void test10k() throws Exception {
+        run(10000);
+    }
+
+    public void test100k() throws Exception {
+        run(100000);
+    }
+
+    private void run(int rows) throws Exception {
+        ContentResolver resolver = getMockContentResolver();
+        long insertDatabase = insertWithDatabase(rows);
+        long checkinDatabase = checkInWithDatabase(rows);
+        clear();
+        long insertProvider = insertWithProvider(resolver, rows);
+        long checkinProvider = checkInWithProvider(resolver, rows);
+        assertEquals(rows, DatabaseUtils.queryNumEntries(mDatabase, Table.ATTENDEE.getBaseName(),
+                Table.Attendee.CHECKIN_MODIFIED + " != 0"));
+        clear();
+        Log.i(TAG, String.format(Locale.US,
+                "%d rows: insert %d rows/s (database: %d rows/s), " +
+                        "check-in %d rows/s (database: %d rows/s)", rows,
+                Benchmarks.getRowsPerSecond(rows, insertProvider),
+                Benchmarks.getRowsPerSecond(rows, insertDatabase),
+                Benchmarks.getRowsPerSecond(rows, checkinProvider),
+                Benchmarks.getRowsPerSecond(rows, checkinDatabase)));
+    }
+
+    private void clear() {
+        mDatabase.delete(Table.ATTENDEE.getBaseName(), null, null);
+    }
+
+    /**
+     * @return The time it took in nanoseconds.
+     */
+    private long insertWithDatabase(int rows) {
+        long nanos = 0;
+        for (int i = 0; i < rows; i += CHUNK_SIZE) {
+            ArrayList<ContentValues> chunk = Benchmarks.newAttendees(EVENT_ID, i,
+                    Math.min(CHUNK_SIZE, rows - i));
+            long start = System.nanoTime();
+            mDatabase.beginTransaction();
+            try {
+                for (ContentValues values : chunk) {
+                    mDatabase.insert(Table.ATTENDEE.getBaseName(), null, values);
+                }
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
+            }
+            nanos += System.nanoTime() - start;
+        }
+        return nanos;
+    }
+
+    /**
+     * @return The time it took in nanoseconds.
+     */
+    private long insertWithProvider(ContentResolver resolver, int rows) {
+        long nanos = 0;
+        for (int i = 0; i < rows; i += CHUNK_SIZE) {
+            ArrayList<ContentValues> chunk = Benchmarks.newAttendees(EVENT_ID, i,
+                    Math.min(CHUNK_SIZE, rows - i));
+            ContentValues[] values = chunk.toArray(new ContentValues[chunk.size()]);
+            long start = System.nanoTime();
+            resolver.bulkInsert(Table.ATTENDEE.getBaseUri(), values);
+            nanos += System.nanoTime() - start;
+        }
+        return nanos;
+    }
+
+    /**
+     * @return The time it took in nanoseconds.
+     */
+    private long checkInWithDatabase(int rows) {
+        String selection = Table.ATTENDEE.getSelectionById();
+        long nanos = 0;
+        for (int i = 0; i < rows; i += CHUNK_SIZE) {
+            int count = Math.min(CHUNK_SIZE, rows - i);
+            long start = System.nanoTime();
+            mDatabase.beginTransaction();
+            try {
+                for (int j = i; j < i + count; j++) {
+                    mDatabase.update(Table.ATTENDEE.getBaseName(), newCheckin(j), selection,
+                            new String[]{EVENT_ID, getAttendeeId(j)});
+                }
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
+            }
+            nanos += System.nanoTime() - start;
+        }
+        return nanos;
+    }
+
+    /**
+     * Checks in the attendees the way {@link com.google.android.apps.gutenberg.util.CheckInTask}
+     * does it.
+     *
+     * @return The time it took in nanoseconds.
+     */
+    private long checkInWithProvider(ContentResolver resolver, int rows) throws Exception {
+        long nanos = 0;
+        for (int i = 0; i < rows; i += CHUNK_SIZE) {
+            int count = Math.min(CHUNK_SIZE, rows - i);
+            ArrayList<ContentProviderOperation> operations = new ArrayList<>(count);
+            for (int j = i; j < i + count; j++) {
+                operations.add(ContentProviderOperation
+                        .newUpdate(Table.ATTENDEE.getItemUri(EVENT_ID, getAttendeeId(j)))
+                        .withValues(newCheckin(j))
+                        .withExpectedCount(1)
+                        .build());
+            }
+            long start = System.nanoTime();
+            resolver.applyBatch(Table.AUTHORITY, operations);
+            nanos += System.nanoTime() - start;
+        }
+        return nanos;
+    }
+
+    private static String getAttendeeId(int i) {
+        return String.format(Locale.US, "%08d", i);
+    }
+
+    private static ContentValues newCheckin(int i) {
+        ContentValues values = new ContentValues();
+        values.put(Table.Attendee.CHECKIN, 1400000000L + i);
+        values.put(Table.Attendee.CHECKIN_VERSION, 1400000000000L + i);
+        values.put(Table.Attendee.CHECKIN_MODIFIED, true);
+        return values;
+    }
+
+}
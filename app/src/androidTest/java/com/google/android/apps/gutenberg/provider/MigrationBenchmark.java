@@ -0,0 +1,148 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Measures how long {@link GutenbergDatabaseHelper} takes to upgrade a large database from
+ * version 11, which had neither the secondary indexes, the full-text index nor the attendance
+ * counters, and still saved local check-ins in milliseconds. The local data must survive.
+ */
+@LargeTest
+public class MigrationBenchmark extends AndroidTestCase {
+
+    private static final String TAG = "MigrationBenchmark";
+
+    private static final String EVENT_ID = "event";
+    private static final int OLD_VERSION = 11;
+
+    private RenamingDelegatingContext mTestContext;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTestContext = new RenamingDelegatingContext(getContext(), "test.");
+        mTestContext.deleteDatabase(GutenbergDatabaseHelper.DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mTestContext.deleteDatabase(GutenbergDatabaseHelper.DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testUpgrade10k() {
+        benchmarkUpgrade(10000);
+    }
+
+    public void testUpgrade50k() {
+        benchmarkUpgrade(50000);
+    }
+
+    private void benchmarkUpgrade(int rows) {
+        createOldDatabase(rows);
+        long start = System.nanoTime();
+        GutenbergDatabaseHelper helper = new GutenbergDatabaseHelper(mTestContext);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        long nanos = System.nanoTime() - start;
+        try {
+            Log.i(TAG, "Upgraded " + rows + " attendees from version " + OLD_VERSION + " in " +
+                    nanos / 1000000 + "ms");
+            String attendees = Table.ATTENDEE.getBaseName();
+            assertEquals(rows, DatabaseUtils.queryNumEntries(db, attendees));
+            // The local check-ins are kept, and converted to seconds
+            assertEquals(rows / 10, DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " +
+                    attendees + " WHERE " + Table.Attendee.CHECKIN + " BETWEEN 1400000000 AND " +
+                    "1500000000", null));
+            assertEquals(rows / 10, DatabaseUtils.longForQuery(db, "SELECT " +
+                    Table.EventStats.CHECKED_IN + " FROM " + Table.EVENT_STATS.getBaseName() +
+                    " WHERE " + Table.EventStats.EVENT_ID + " = ?", new String[]{EVENT_ID}));
+            assertEquals(rows / 100, DatabaseUtils.queryNumEntries(db, attendees,
+                    Table.Attendee.NOTE + " IS NOT NULL"));
+        } finally {
+            helper.close();
+        }
+    }
+
+    /**
+     * Creates the database as it was at {@link #OLD_VERSION}, with the attendees of an event.
+     * Every tenth attendee has a local check-in, and every hundredth a note.
+     */
+    private void createOldDatabase(int rows) {
+        GutenbergDatabaseHelper helper = new GutenbergDatabaseHelper(mTestContext);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        try {
+            db.beginTransaction();
+            try {
+                ArrayList<ContentValues> attendees = Benchmarks.newAttendees(EVENT_ID, rows);
+                for (int i = 0; i < rows; i++) {
+                    ContentValues values = attendees.get(i);
+                    if (i % 10 == 0) {
+                        values.put(Table.Attendee.CHECKIN, 1430000000000L + i);
+                    }
+                    if (i % 100 == 0) {
+                        values.put(Table.Attendee.NOTE, "Note " + i);
+                    }
+                    db.insert(Table.ATTENDEE.getBaseName(), null, values);
+                }
+                // Remove what the later versions added
+                for (String type : new String[]{"trigger", "index"}) {
+                    for (String name : getNames(db, type)) {
+                        db.execSQL("DROP " + type.toUpperCase(Locale.US) + " " + name);
+                    }
+                }
+                db.execSQL("DROP TABLE " + Table.ATTENDEE.getSearchIndex().name);
+                db.execSQL("DROP TABLE " + Table.EVENT_STATS.getBaseName());
+                db.setVersion(OLD_VERSION);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            helper.close();
+        }
+    }
+
+    /**
+     * @return The names of the triggers or the declared indexes in the database.
+     */
+    private static ArrayList<String> getNames(SQLiteDatabase db, String type) {
+        ArrayList<String> names = new ArrayList<>();
+        Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = ? AND" +
+                " sql IS NOT NULL", new String[]{type});
+        try {
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return names;
+    }
+
+}
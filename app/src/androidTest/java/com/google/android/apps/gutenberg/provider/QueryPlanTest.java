@@ -0,0 +1,190 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg.provider;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.text.TextUtils;
+
+import com.google.android.apps.gutenberg.model.Checkin;
+
+import java.util.ArrayList;
+
+/**
+ * Checks that the hot queries are served by the indexes declared in {@link Table}, without
+ * scanning the tables or sorting the rows.
+ */
+public class QueryPlanTest extends AndroidTestCase {
+
+    private static final String ATTENDEES = Table.ATTENDEE.getBaseName();
+    private static final String OUTBOX = Table.OUTBOX.getBaseName();
+
+    private RenamingDelegatingContext mTestContext;
+    private GutenbergDatabaseHelper mHelper;
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTestContext = new RenamingDelegatingContext(getContext(), "test.");
+        mTestContext.deleteDatabase(GutenbergDatabaseHelper.DATABASE_NAME);
+        mHelper = new GutenbergDatabaseHelper(mTestContext);
+        mDb = mHelper.getWritableDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHelper.close();
+        mTestContext.deleteDatabase(GutenbergDatabaseHelper.DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testCheckInByCode() {
+        // CheckInTask and the check-in listener update an attendee by its item URI
+        String sql = "UPDATE " + ATTENDEES + " SET " + Table.Attendee.CHECKIN + " = 1 WHERE " +
+                Table.ATTENDEE.getSelectionById(2);
+        assertPlan(explain(sql, "event", "code"), "sqlite_autoindex_" + ATTENDEES);
+    }
+
+    public void testClearCheckinModified() {
+        // SyncAdapter clears the flag unless another check-in is waiting in the outbox
+        String sql = "UPDATE " + ATTENDEES + " SET " + Table.Attendee.CHECKIN_MODIFIED +
+                " = 0 WHERE " + Table.ATTENDEE.getSelectionById(2) + " AND (" +
+                SyncAdapter.SELECTION_NOT_IN_OUTBOX + ")";
+        ArrayList<String> plan = explain(sql, "event", "code", "event");
+        assertPlan(plan, "sqlite_autoindex_" + ATTENDEES);
+        assertPlan(plan, "sqlite_autoindex_" + OUTBOX);
+    }
+
+    public void testOutboxDue() {
+        String sql = SQLiteQueryBuilder.buildQueryString(false, OUTBOX, null,
+                Table.Outbox.NEXT_ATTEMPT + " <= ?", null, null, Table.Outbox.CREATED, null);
+        ArrayList<String> plan = explain(sql, "0");
+        assertContains(plan, "outbox_next_attempt");
+        assertNoScan(plan);
+    }
+
+    public void testOutboxNextAttempt() {
+        String sql = SQLiteQueryBuilder.buildQueryString(false, OUTBOX,
+                new String[]{"MIN(" + Table.Outbox.NEXT_ATTEMPT + ")"}, null, null, null, null,
+                null);
+        assertContains(explain(sql), "outbox_next_attempt");
+    }
+
+    public void testAttendeeList() {
+        assertPlan(explainList(null), "attendees_event_name");
+    }
+
+    public void testAttendeeListPage() {
+        assertPlan(explainList(null, "Name", "code"), "attendees_event_name");
+    }
+
+    public void testComingAttendeeList() {
+        // The full index serves the list where partial indexes are not supported
+        String index = hasIndex("attendees_event_coming_name") ?
+                "attendees_event_coming_name" : "attendees_event_name";
+        String selection = Table.Attendee.CHECKIN + " IS NULL";
+        assertPlan(explainList(selection), index);
+        assertPlan(explainList(selection, "Name", "code"), index);
+    }
+
+    public void testTimeline() {
+        String sql = SQLiteQueryBuilder.buildQueryString(false, ATTENDEES, Checkin.PROJECTION,
+                Table.ATTENDEE.getSelectionById(1) + " AND (" + Table.Attendee.CHECKIN +
+                        " IS NOT NULL)", null, null, null, null);
+        assertPlan(explain(sql, "event"), "attendees_event_checkin");
+    }
+
+    /**
+     * Explains a page of the attendee list as the list queries it through the provider.
+     *
+     * @param after The key to start after, if any
+     */
+    private ArrayList<String> explainList(String selection, String... after) {
+        String where = Table.ATTENDEE.getSelectionById(1);
+        if (selection != null) {
+            where += " AND (" + selection + ")";
+        }
+        ArrayList<String> args = new ArrayList<>();
+        args.add("event");
+        if (after.length > 0) {
+            // See GutenbergProvider#getKeysetSelection
+            where = "(" + where + ") AND " + Table.Attendee.NAME + " >= ? AND (" +
+                    Table.Attendee.NAME + " > ? OR " + Table.Attendee.ID + " > ?)";
+            args.add(after[0]);
+            args.add(after[0]);
+            args.add(after[1]);
+        }
+        String sql = SQLiteQueryBuilder.buildQueryString(false, ATTENDEES,
+                new String[]{Table.Attendee._ID, Table.Attendee.NAME}, where, null, null,
+                Table.Attendee.NAME + ", " + Table.Attendee.ID, "50");
+        return explain(sql, args.toArray(new String[args.size()]));
+    }
+
+    /**
+     * @return The details of the query plan, one for each step.
+     */
+    private ArrayList<String> explain(String sql, String... args) {
+        ArrayList<String> plan = new ArrayList<>();
+        Cursor cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try {
+            int detail = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.add(cursor.getString(detail));
+            }
+        } finally {
+            cursor.close();
+        }
+        return plan;
+    }
+
+    private boolean hasIndex(String name) {
+        return DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*) FROM sqlite_master WHERE" +
+                " type = 'index' AND name = ?", new String[]{name}) > 0;
+    }
+
+    /**
+     * Asserts that the plan searches with the index and never scans or sorts.
+     */
+    private static void assertPlan(ArrayList<String> plan, String index) {
+        assertContains(plan, index);
+        assertNoScan(plan);
+        for (String step : plan) {
+            assertFalse("Sorted: " + TextUtils.join("; ", plan), step.contains("TEMP B-TREE"));
+        }
+    }
+
+    private static void assertContains(ArrayList<String> plan, String index) {
+        for (String step : plan) {
+            if (step.contains("INDEX " + index + " ") || step.endsWith("INDEX " + index)) {
+                return;
+            }
+        }
+        fail("Not using " + index + ": " + TextUtils.join("; ", plan));
+    }
+
+    private static void assertNoScan(ArrayList<String> plan) {
+        for (String step : plan) {
+            assertFalse("Scanned: " + TextUtils.join("; ", plan), step.startsWith("SCAN "));
+        }
+    }
+
+}
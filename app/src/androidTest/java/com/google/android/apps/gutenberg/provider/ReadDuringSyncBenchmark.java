@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg.provider;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures how long a page of the attendee list takes to load while a sync writes 20,000
+ * attendees, the way {@link SyncAdapter} does it: merged in chunks of
+ * {@link AttendeeDownloader#CHUNK_SIZE}, each in calls of {@link GutenbergProvider#MAX_MERGE_ROWS}
+ * rows with their own transactions. With write-ahead logging, the reads should not wait for the
+ * writes.
+ */
+@LargeTest
+public class ReadDuringSyncBenchmark extends ProviderTestCase2<GutenbergProvider> {
+
+    private static final String TAG = "ReadDuringSyncBenchmark";
+
+    private static final String EVENT_ID = "event";
+    private static final int ROWS = 20000;
+    private static final int PAGE_SIZE = 50;
+    private static final int IDLE_READS = 100;
+
+    private static final String[] PROJECTION = {
+            Table.Attendee._ID,
+            Table.Attendee.ID,
+            Table.Attendee.NAME,
+            Table.Attendee.CHECKIN,
+    };
+
+    private static final String SORT_ORDER = Table.Attendee.NAME + ", " + Table.Attendee.ID;
+
+    public ReadDuringSyncBenchmark() {
+        super(GutenbergProvider.class, Table.AUTHORITY);
+    }
+
+    public void testReadLatencyDuringSync() throws Exception {
+        final ContentResolver resolver = getMockContentResolver();
+        final ArrayList<ContentValues> rows = Benchmarks.newAttendees(EVENT_ID, ROWS);
+        // The list already has a page to show when the sync starts
+        GutenbergProvider.merge(resolver, Table.ATTENDEE,
+                new ArrayList<>(rows.subList(0, PAGE_SIZE)));
+        ArrayList<Long> idle = new ArrayList<>();
+        for (int i = 0; i < IDLE_READS; i++) {
+            idle.add(readPage(resolver));
+        }
+        final long[] syncNanos = new long[1];
+        Thread sync = new Thread("sync") {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                for (int i = 0; i < ROWS; i += AttendeeDownloader.CHUNK_SIZE) {
+                    List<ContentValues> chunk =
+                            rows.subList(i, Math.min(i + AttendeeDownloader.CHUNK_SIZE, ROWS));
+                    GutenbergProvider.merge(resolver, Table.ATTENDEE, new ArrayList<>(chunk));
+                }
+                syncNanos[0] = System.nanoTime() - start;
+            }
+        };
+        ArrayList<Long> busy = new ArrayList<>();
+        sync.start();
+        while (sync.isAlive()) {
+            busy.add(readPage(resolver));
+        }
+        sync.join();
+        Log.i(TAG, "Idle: " + Benchmarks.describe(idle));
+        Log.i(TAG, "During the sync: " + Benchmarks.describe(busy));
+        Log.i(TAG, "Sync of " + ROWS + " rows: " + syncNanos[0] / 1000000 + "ms");
+        assertFalse(busy.isEmpty());
+    }
+
+    /**
+     * Loads a page of the attendee list.
+     *
+     * @return The time it took in nanoseconds.
+     */
+    private static long readPage(ContentResolver resolver) {
+        long start = System.nanoTime();
+        Cursor cursor = resolver.query(Table.getPageUri(Table.ATTENDEE.getItemUri(EVENT_ID),
+                PAGE_SIZE, 0), PROJECTION, null, null, SORT_ORDER);
+        try {
+            // The rows are only read when the cursor is filled
+            cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+        return System.nanoTime() - start;
+    }
+
+}
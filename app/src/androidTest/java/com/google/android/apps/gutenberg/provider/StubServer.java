@@ -0,0 +1,375 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg.provider;
+
+import android.net.Uri;
+import android.os.SystemClock;
+
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import junit.framework.AssertionFailedError;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A stand-in for the server, run by {@link MockWebServer}. It keeps the events and their
+ * attendees in memory and serves them the way the server does, including the delta contract of
+ * "?since=": only the attendees modified after the watermark are returned, and the deleted ones
+ * come back as tombstones. The check-ins made on other devices are long-polled; a poll is held
+ * until there are new check-ins or the timeout passes.
+ */
+public class StubServer extends Dispatcher {
+
+    private static final String PREFIX = "/v1/event/";
+
+    private final MockWebServer mServer = new MockWebServer();
+
+    /**
+     * The attendees, including tombstones, by their IDs, by event IDs.
+     */
+    private final LinkedHashMap<String, LinkedHashMap<String, JSONObject>> mEvents =
+            new LinkedHashMap<>();
+
+    /**
+     * The check-ins made on other devices, by event IDs.
+     */
+    private final HashMap<String, ArrayList<JSONObject>> mCheckins = new HashMap<>();
+
+    private final ArrayList<String> mPaths = new ArrayList<>();
+    private final ArrayList<Poll> mPolls = new ArrayList<>();
+
+    /**
+     * The modification time of the last change.
+     */
+    private long mClock = 1000;
+
+    private int mFailingPolls;
+    private int mExpiredPolls;
+    private int mExpiredStatus;
+    private int mCheckinStatus;
+    private int mLogins;
+    private String mAuthToken;
+    private boolean mShutdown;
+
+    /**
+     * Starts serving.
+     *
+     * @return The host to set to {@link com.google.android.apps.gutenberg.util.ServerHost}.
+     */
+    public String start() throws IOException {
+        mServer.setDispatcher(this);
+        mServer.start();
+        URL url = mServer.getUrl("/");
+        return url.getProtocol() + "://" + url.getHost() + ":" + url.getPort();
+    }
+
+    public void shutdown() throws IOException {
+        synchronized (this) {
+            // Release the polls being held
+            mShutdown = true;
+            notifyAll();
+        }
+        mServer.shutdown();
+    }
+
+    public synchronized void putEvent(String eventId) {
+        if (!mEvents.containsKey(eventId)) {
+            mEvents.put(eventId, new LinkedHashMap<String, JSONObject>());
+        }
+    }
+
+    public synchronized void removeEvent(String eventId) {
+        mEvents.remove(eventId);
+    }
+
+    /**
+     * Adds or modifies an attendee.
+     *
+     * @return The modification time, which is the watermark after the next sync.
+     */
+    public synchronized long putAttendee(String eventId, String attendeeId, String name)
+            throws JSONException {
+        JSONObject attendee = new JSONObject();
+        attendee.put("id", attendeeId);
+        attendee.put("name", name);
+        attendee.put("email", attendeeId + "@example.com");
+        attendee.put("checkinTime", 0);
+        attendee.put("modified", ++mClock);
+        mEvents.get(eventId).put(attendeeId, attendee);
+        return mClock;
+    }
+
+    /**
+     * Deletes an attendee, leaving a tombstone.
+     *
+     * @return The modification time, which is the watermark after the next sync.
+     */
+    public synchronized long deleteAttendee(String eventId, String attendeeId)
+            throws JSONException {
+        JSONObject tombstone = new JSONObject();
+        tombstone.put("id", attendeeId);
+        tombstone.put("deleted", true);
+        tombstone.put("modified", ++mClock);
+        mEvents.get(eventId).put(attendeeId, tombstone);
+        return mClock;
+    }
+
+    /**
+     * Adds a check-in made on another device, and responds to the polls being held.
+     *
+     * @param checkinTime The check-in time, or 0 for a revert
+     * @param version     The version, or 0 for a server without versions
+     * @return The cursor of the check-in, which is "since" after it.
+     */
+    public synchronized long putCheckin(String eventId, String attendeeId, long checkinTime,
+                                        long version) throws JSONException {
+        JSONObject checkin = new JSONObject();
+        checkin.put("id", attendeeId);
+        checkin.put("checkinTime", checkinTime);
+        if (version != 0) {
+            checkin.put("version", version);
+        }
+        checkin.put("modified", ++mClock);
+        if (!mCheckins.containsKey(eventId)) {
+            mCheckins.put(eventId, new ArrayList<JSONObject>());
+        }
+        mCheckins.get(eventId).add(checkin);
+        notifyAll();
+        return mClock;
+    }
+
+    /**
+     * Makes the next polls fail with 500 (Internal Server Error).
+     */
+    public synchronized void failPolls(int count) {
+        mFailingPolls += count;
+    }
+
+    /**
+     * Makes the next polls fail with 401 (Unauthorized), as the session has expired.
+     */
+    public synchronized void expirePolls(int count) {
+        expirePolls(count, 401);
+    }
+
+    /**
+     * Makes the next polls fail with the status code.
+     */
+    public synchronized void expirePolls(int count, int status) {
+        mExpiredPolls += count;
+        mExpiredStatus = status;
+    }
+
+    /**
+     * Makes the uploads of check-ins fail with the status code.
+     */
+    public synchronized void rejectCheckins(int status) {
+        mCheckinStatus = status;
+    }
+
+    /**
+     * @return The number of the session cookies given out.
+     */
+    public synchronized int getLogins() {
+        return mLogins;
+    }
+
+    /**
+     * @return The auth token of the last login.
+     */
+    public synchronized String getAuthToken() {
+        return mAuthToken;
+    }
+
+    /**
+     * Waits until this has received the polls.
+     *
+     * @return All the polls received so far.
+     */
+    public synchronized List<Poll> awaitPolls(int count, long timeoutMillis)
+            throws InterruptedException {
+        long deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+        long now;
+        while (mPolls.size() < count && (now = SystemClock.elapsedRealtime()) < deadline) {
+            wait(deadline - now);
+        }
+        if (mPolls.size() < count) {
+            throw new AssertionFailedError("Only " + mPolls.size() + " poll(s) received.");
+        }
+        return new ArrayList<>(mPolls);
+    }
+
+    /**
+     * @return The paths with the queries of the requests served so far, and forgets them.
+     */
+    public synchronized List<String> takePaths() {
+        ArrayList<String> paths = new ArrayList<>(mPaths);
+        mPaths.clear();
+        return paths;
+    }
+
+    @Override
+    public synchronized MockResponse dispatch(RecordedRequest request) {
+        mPaths.add(request.getPath());
+        Uri uri = Uri.parse(request.getPath());
+        List<String> segments = uri.getPathSegments();
+        try {
+            if (uri.getPath().equals("/_ah/login")) {
+                ++mLogins;
+                mAuthToken = uri.getQueryParameter("auth");
+                return new MockResponse().setResponseCode(302)
+                        .addHeader("Set-Cookie", "SACSID=stub" + mLogins + "; Max-Age=3600");
+            }
+            if (uri.getPath().equals(PREFIX + "list")) {
+                return newJsonResponse(getEvents().toString());
+            }
+            if (segments.size() == 4 && uri.getPath().startsWith(PREFIX) &&
+                    segments.get(3).equals("attendees") && mEvents.containsKey(segments.get(2))) {
+                String since = uri.getQueryParameter("since");
+                return newJsonResponse(getAttendees(segments.get(2),
+                        since == null ? 0 : Long.parseLong(since)).toString());
+            }
+            if (mCheckinStatus != 0 && request.getMethod().equals("POST") &&
+                    uri.getPath().startsWith(PREFIX) &&
+                    (uri.getPath().endsWith("/checkins") || uri.getPath().endsWith("/checkin"))) {
+                return new MockResponse().setResponseCode(mCheckinStatus);
+            }
+            if (segments.size() == 5 && uri.getPath().startsWith(PREFIX) &&
+                    uri.getPath().endsWith("/checkins/poll")) {
+                return poll(segments.get(2), Long.parseLong(uri.getQueryParameter("since")),
+                        Long.parseLong(uri.getQueryParameter("timeout")) * 1000);
+            }
+        } catch (JSONException | InterruptedException e) {
+            return new MockResponse().setResponseCode(500).setBody(e.toString());
+        }
+        return new MockResponse().setResponseCode(404);
+    }
+
+    /**
+     * Holds the poll until there are check-ins after {@code since}.
+     */
+    private MockResponse poll(String eventId, long since, long timeoutMillis)
+            throws JSONException, InterruptedException {
+        mPolls.add(new Poll(since, SystemClock.elapsedRealtime()));
+        notifyAll();
+        if (mFailingPolls > 0) {
+            --mFailingPolls;
+            return new MockResponse().setResponseCode(500);
+        }
+        if (mExpiredPolls > 0) {
+            --mExpiredPolls;
+            return new MockResponse().setResponseCode(mExpiredStatus);
+        }
+        long deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+        JSONArray checkins = getCheckins(eventId, since);
+        long now;
+        while (checkins.length() == 0 && !mShutdown &&
+                (now = SystemClock.elapsedRealtime()) < deadline) {
+            wait(deadline - now);
+            checkins = getCheckins(eventId, since);
+        }
+        JSONObject response = new JSONObject();
+        response.put("since", Math.max(since, mClock));
+        response.put("checkins", checkins);
+        return newJsonResponse(response.toString());
+    }
+
+    private JSONArray getCheckins(String eventId, long since) throws JSONException {
+        JSONArray checkins = new JSONArray();
+        if (mCheckins.containsKey(eventId)) {
+            for (JSONObject checkin : mCheckins.get(eventId)) {
+                if (checkin.getLong("modified") > since) {
+                    checkins.put(checkin);
+                }
+            }
+        }
+        return checkins;
+    }
+
+    private JSONArray getEvents() throws JSONException {
+        JSONArray events = new JSONArray();
+        for (String eventId : mEvents.keySet()) {
+            JSONObject event = new JSONObject();
+            event.put("id", eventId);
+            event.put("name", "Event " + eventId);
+            event.put("place", "Place");
+            event.put("organizerName", "Organizer");
+            event.put("startTime", "2015-05-28T09:00:00Z");
+            event.put("endTime", "2015-05-29T18:00:00Z");
+            events.put(event);
+        }
+        return events;
+    }
+
+    /**
+     * @param since The watermark, or 0 for all the attendees without tombstones
+     */
+    private JSONArray getAttendees(String eventId, long since) throws JSONException {
+        JSONArray attendees = new JSONArray();
+        for (JSONObject attendee : mEvents.get(eventId).values()) {
+            if (attendee.getLong("modified") <= since) {
+                continue;
+            }
+            if (since == 0 && attendee.optBoolean("deleted")) {
+                continue;
+            }
+            attendees.put(attendee);
+        }
+        return attendees;
+    }
+
+    private static MockResponse newJsonResponse(String body) {
+        return new MockResponse()
+                .addHeader("Content-Type", "application/json; charset=utf-8")
+                .setBody(body);
+    }
+
+    /**
+     * A poll for the check-ins received by the stub.
+     */
+    public static class Poll {
+
+        /**
+         * The value of "since" in the request.
+         */
+        public final long since;
+
+        /**
+         * When the request was received, in {@link SystemClock#elapsedRealtime()}.
+         */
+        public final long time;
+
+        Poll(long since, long time) {
+            this.since = since;
+            this.time = time;
+        }
+
+    }
+
+}
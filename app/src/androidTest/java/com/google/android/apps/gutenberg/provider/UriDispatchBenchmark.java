@@ -0,0 +1,230 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Debug;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Measures the time and the allocations of each call of the URI dispatch in
+ * {@link GutenbergProvider} and {@link Table}, against the way they were done before the results
+ * were computed once: cloning {@link Table#values()} and creating a {@link MatchResult} for each
+ * match, and parsing a string for each {@link Uri}. The query and the update of an item are
+ * measured as a whole, with the allocations of SQLite.
+ */
+@LargeTest
+public class UriDispatchBenchmark extends ProviderTestCase2<GutenbergProvider> {
+
+    private static final String TAG = "UriDispatchBenchmark";
+
+    private static final int WARM_UP = 10000;
+    private static final int ITERATIONS = 100000;
+
+    /**
+     * The iterations for the operations that go to the database.
+     */
+    private static final int DATABASE_ITERATIONS = 1000;
+
+    private static final String EVENT_ID = "event";
+    private static final String ATTENDEE_ID = "00000001";
+
+    private static final Uri ITEM_URI = Table.ATTENDEE.getItemUri(EVENT_ID, ATTENDEE_ID);
+    private static final int CODE = Table.ATTENDEE.getCode(2);
+
+    /**
+     * Keeps the results, so that the calls are not optimized away.
+     */
+    private Object mSink;
+
+    public UriDispatchBenchmark() {
+        super(GutenbergProvider.class, Table.AUTHORITY);
+    }
+
+    public void testMatch() {
+        assertSame(Table.ATTENDEE, matchBefore(CODE).getTable());
+        measure("match", new Operation() {
+            @Override
+            public Object run() {
+                return Table.match(CODE);
+            }
+        }, new Operation() {
+            @Override
+            public Object run() {
+                return matchBefore(CODE);
+            }
+        });
+    }
+
+    public void testGetType() {
+        final GutenbergProvider provider = getProvider();
+        assertEquals(Table.ATTENDEE.getItemType(), provider.getType(ITEM_URI));
+        measure("getType", new Operation() {
+            @Override
+            public Object run() {
+                return provider.getType(ITEM_URI);
+            }
+        }, null);
+    }
+
+    public void testGetBaseUri() {
+        assertEquals(Table.ATTENDEE.getBaseUri(), getBaseUriBefore(Table.ATTENDEE));
+        measure("getBaseUri", new Operation() {
+            @Override
+            public Object run() {
+                return Table.ATTENDEE.getBaseUri();
+            }
+        }, new Operation() {
+            @Override
+            public Object run() {
+                return getBaseUriBefore(Table.ATTENDEE);
+            }
+        });
+    }
+
+    public void testGetItemUri() {
+        assertEquals(ITEM_URI, getItemUriBefore(Table.ATTENDEE, EVENT_ID, ATTENDEE_ID));
+        measure("getItemUri", new Operation() {
+            @Override
+            public Object run() {
+                return Table.ATTENDEE.getItemUri(EVENT_ID, ATTENDEE_ID);
+            }
+        }, new Operation() {
+            @Override
+            public Object run() {
+                return getItemUriBefore(Table.ATTENDEE, EVENT_ID, ATTENDEE_ID);
+            }
+        });
+    }
+
+    public void testQuery() {
+        insertAttendee();
+        final GutenbergProvider provider = getProvider();
+        final String[] projection = {Table.Attendee.NAME, Table.Attendee.CHECKIN};
+        final String selection = Table.Attendee.CHECKIN + " IS NULL";
+        Operation query = new Operation() {
+            @Override
+            public Object run() {
+                Cursor cursor = provider.query(ITEM_URI, projection, selection, null, null);
+                try {
+                    return cursor.getCount();
+                } finally {
+                    cursor.close();
+                }
+            }
+        };
+        assertEquals(1, query.run());
+        Log.i(TAG, "query: " + measure(query, DATABASE_ITERATIONS));
+    }
+
+    public void testUpdate() {
+        insertAttendee();
+        final GutenbergProvider provider = getProvider();
+        final ContentValues values = new ContentValues();
+        values.put(Table.Attendee.CHECKIN_VERSION, 1);
+        Operation update = new Operation() {
+            @Override
+            public Object run() {
+                return provider.update(ITEM_URI, values, null, null);
+            }
+        };
+        assertEquals(1, update.run());
+        Log.i(TAG, "update: " + measure(update, DATABASE_ITERATIONS));
+    }
+
+    private void insertAttendee() {
+        ContentValues values = new ContentValues();
+        values.put(Table.Attendee.EVENT_ID, EVENT_ID);
+        values.put(Table.Attendee.ID, ATTENDEE_ID);
+        values.put(Table.Attendee.NAME, "Attendee");
+        values.put(Table.Attendee.EMAIL, "attendee@example.com");
+        getMockContentResolver().insert(Table.ATTENDEE.getBaseUri(), values);
+    }
+
+    /**
+     * Measures an operation, and optionally the way it was done before, and logs the results.
+     */
+    private void measure(String name, Operation operation, Operation before) {
+        String result = name + ": " + measure(operation, ITERATIONS);
+        if (before != null) {
+            result += " (before: " + measure(before, ITERATIONS) + ")";
+        }
+        Log.i(TAG, result);
+    }
+
+    /**
+     * @return The time and the number of allocations per call.
+     */
+    @SuppressWarnings("deprecation")
+    private String measure(Operation operation, int iterations) {
+        for (int i = 0; i < Math.min(WARM_UP, iterations); i++) {
+            mSink = operation.run();
+        }
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            mSink = operation.run();
+        }
+        long nanos = System.nanoTime() - start;
+        int allocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+        assertNotNull(mSink);
+        return String.format(Locale.US, "%.1fns, %.2f allocations per call",
+                (double) nanos / iterations, (double) allocations / iterations);
+    }
+
+    /**
+     * {@link Table#match(int)} before the results were computed once.
+     */
+    private static MatchResult matchBefore(int code) {
+        for (Table table : Table.values()) {
+            int idCount = code - table.getCode(0);
+            if (0 <= idCount && idCount <= table.getIdColumns().length) {
+                return new MatchResult(table, idCount, false);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * {@link Table#getBaseUri()} before the {@link Uri} was kept.
+     */
+    private static Uri getBaseUriBefore(Table table) {
+        return Uri.parse("content://" + Table.AUTHORITY + "/" + table.getBaseName());
+    }
+
+    /**
+     * {@link Table#getItemUri(String...)} before it was built on the base {@link Uri}.
+     */
+    private static Uri getItemUriBefore(Table table, String... ids) {
+        return Uri.parse("content://" + Table.AUTHORITY + "/" + table.getBaseName() + "/"
+                + TextUtils.join("/", ids));
+    }
+
+    private interface Operation {
+        Object run();
+    }
+
+}
@@ -21,6 +21,7 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.graphics.Color;
+import android.net.Uri;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
@@ -45,10 +46,12 @@ import com.google.android.apps.gutenberg.animation.FastOutSlowInInterpolator;
 import com.google.android.apps.gutenberg.provider.Table;
 import com.google.android.apps.gutenberg.util.CheckInTask;
 import com.google.android.apps.gutenberg.util.RoundedImageListener;
+import com.google.android.apps.gutenberg.widget.PagedCursorAdapter;
 import com.google.android.apps.gutenberg.widget.RecyclerViewFragment;
 
 /**
- * Shows the list of attendees. Attendees can be filtered by name and check-in status.
+ * Shows the list of attendees. Attendees can be filtered by check-in status, and searched by
+ * name, email, and note.
  */
 public class AttendeeListFragment extends RecyclerViewFragment implements
         LoaderManager.LoaderCallbacks<Cursor>,
@@ -57,16 +60,50 @@ public class AttendeeListFragment extends RecyclerViewFragment implements
     private static final String ARG_ONLY_COMING = "only_coming";
     private static final String ARG_EVENT_ID = "event_id";
 
+    /**
+     * Loads the number of the attendees, which is also notified when they change. The attendees
+     * themselves are loaded by {@link AttendeeAdapter} as they are shown.
+     */
     private static final int LOADER_ATTENDEES = 1;
-    private static final int LOADER_COUNT_ALL_ATTENDEES = 2;
     private static final String FRAGMENT_EDIT_NOTE = "edit_note";
 
+    /**
+     * The number of the attendees loaded at once.
+     */
+    private static final int PAGE_SIZE = 100;
+
+    private static final String[] PROJECTION = {
+            Table.Attendee._ID,
+            Table.Attendee.ID,
+            Table.Attendee.EVENT_ID,
+            Table.Attendee.EMAIL,
+            Table.Attendee.NAME,
+            Table.Attendee.PLUSID,
+            Table.Attendee.IMAGE_URL,
+            Table.Attendee.CHECKIN,
+            Table.Attendee.CHECKIN_MODIFIED,
+            Table.Attendee.NOTE,
+    };
+
+    /**
+     * The attendees are sorted by name, and then by ID so that they can be paged by the two.
+     */
+    private static final String[] SORT_COLUMNS = {
+            Table.Attendee.NAME,
+            Table.Attendee.ID,
+    };
+
     private AttendeeAdapter mAdapter;
 
     private ViewHolder mExpandedViewHolder;
     private RecyclerView mRecyclerView;
     private TextView mTextEmptyMessage;
 
+    /**
+     * The text to search the attendees for, or null to show all of them.
+     */
+    private String mQuery;
+
     public static AttendeeListFragment newInstance(boolean onlyComing) {
         AttendeeListFragment fragment = new AttendeeListFragment();
         Bundle args = new Bundle();
@@ -91,18 +128,68 @@ public class AttendeeListFragment extends RecyclerViewFragment implements
         mRecyclerView.setAdapter(mAdapter);
     }
 
+    @Override
+    public void onDestroyView() {
+        mAdapter.close();
+        super.onDestroyView();
+    }
+
+    /**
+     * Filters the attendees with the full-text search of their names, emails and notes.
+     *
+     * @param query The text to search for, or null to show all the attendees
+     */
+    public void setQuery(String query) {
+        if (TextUtils.isEmpty(query)) {
+            query = null;
+        }
+        if (TextUtils.equals(query, mQuery)) {
+            return;
+        }
+        mQuery = query;
+        if (getView() != null) {
+            loadAttendees(GutenbergApplication.from(getActivity()).getEventId(), true);
+        }
+    }
+
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
+        loadAttendees(GutenbergApplication.from(getActivity()).getEventId(), false);
+    }
+
+    /**
+     * Shows the attendees of the event, and starts loading their number.
+     *
+     * @param restart True to discard the number loaded for the previous event or query
+     */
+    private void loadAttendees(String eventId, boolean restart) {
         Bundle args = new Bundle(getArguments());
-        args.putString(ARG_EVENT_ID, GutenbergApplication.from(getActivity()).getEventId());
+        args.putString(ARG_EVENT_ID, eventId);
+        if (mAdapter != null) {
+            if (TextUtils.isEmpty(eventId)) {
+                mAdapter.setQuery(null, null, null, null, null, false);
+            } else {
+                // Query the attendees of the event by its URI, so that we are notified only of
+                // their changes. Search results are ranked, and cannot be paged by name.
+                Uri uri = mQuery == null ? Table.ATTENDEE.getItemUri(eventId) :
+                        Table.ATTENDEE.getSearchUri(mQuery, eventId);
+                mAdapter.setQuery(uri, PROJECTION, getSelection(args), null, SORT_COLUMNS,
+                        mQuery == null);
+            }
+        }
         LoaderManager manager = getLoaderManager();
-        manager.initLoader(LOADER_ATTENDEES, args, this);
-        if (args.getBoolean(ARG_ONLY_COMING)) {
-            manager.initLoader(LOADER_COUNT_ALL_ATTENDEES, args, this);
+        if (restart) {
+            manager.restartLoader(LOADER_ATTENDEES, args, this);
+        } else {
+            manager.initLoader(LOADER_ATTENDEES, args, this);
         }
     }
 
+    private static String getSelection(Bundle args) {
+        return args.getBoolean(ARG_ONLY_COMING) ? Table.Attendee.CHECKIN + " IS NULL" : null;
+    }
+
     @Override
     public void onAttach(Activity activity) {
         super.onAttach(activity);
@@ -124,27 +211,19 @@ public class AttendeeListFragment extends RecyclerViewFragment implements
         if (TextUtils.isEmpty(eventId)) {
             return null;
         }
-        String selectionExtra = args.getBoolean(ARG_ONLY_COMING) ?
-                " AND " + Table.Attendee.CHECKIN + " IS NULL" : "";
         switch (id) {
             case LOADER_ATTENDEES:
-                return new CursorLoader(activity, Table.ATTENDEE.getBaseUri(), new String[]{
-                        Table.Attendee._ID,
-                        Table.Attendee.ID,
-                        Table.Attendee.EVENT_ID,
-                        Table.Attendee.EMAIL,
-                        Table.Attendee.NAME,
-                        Table.Attendee.PLUSID,
-                        Table.Attendee.IMAGE_URL,
-                        Table.Attendee.CHECKIN,
-                        Table.Attendee.CHECKIN_MODIFIED,
-                        Table.Attendee.NOTE,
-                }, Table.Attendee.EVENT_ID + " = ?" + selectionExtra, new String[]{eventId},
-                        Table.Attendee.NAME);
-            case LOADER_COUNT_ALL_ATTENDEES:
-                return new CursorLoader(activity, Table.ATTENDEE.getBaseUri(), new String[]{
-                        "COUNT(*) AS c"
-                }, Table.Attendee.EVENT_ID + " = ?", new String[]{eventId}, null);
+                if (mQuery != null) {
+                    return new CursorLoader(activity,
+                            Table.ATTENDEE.getSearchUri(mQuery, eventId),
+                            new String[]{"COUNT(*) AS c"}, getSelection(args), null, null);
+                }
+                // The counters are kept up to date as the attendees change, rather than counted
+                return new CursorLoader(activity, Table.EVENT_STATS.getItemUri(eventId),
+                        new String[]{
+                                Table.EventStats.TOTAL,
+                                Table.EventStats.CHECKED_IN,
+                        }, null, null, null);
         }
         return null;
     }
@@ -153,8 +232,25 @@ public class AttendeeListFragment extends RecyclerViewFragment implements
     public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
         switch (loader.getId()) {
             case LOADER_ATTENDEES: {
-                mAdapter.swapCursor(cursor);
-                if (cursor.getCount() == 0) {
+                int count;
+                if (mQuery != null) {
+                    count = cursor.moveToFirst() ? cursor.getInt(0) : 0;
+                    mTextEmptyMessage.setText(R.string.no_matching_attendees);
+                } else {
+                    // The event has no counters until it has attendees
+                    int total = 0;
+                    int checkedIn = 0;
+                    if (cursor.moveToFirst()) {
+                        total = cursor.getInt(0);
+                        checkedIn = cursor.getInt(1);
+                    }
+                    count = getArguments().getBoolean(ARG_ONLY_COMING) ?
+                            total - checkedIn : total;
+                    mTextEmptyMessage.setText(total == 0 ?
+                            R.string.no_attendees : R.string.everyone_here);
+                }
+                mAdapter.setCount(count);
+                if (count == 0) {
                     mRecyclerView.setVisibility(View.GONE);
                     mTextEmptyMessage.setVisibility(View.VISIBLE);
                 } else {
@@ -163,13 +259,6 @@ public class AttendeeListFragment extends RecyclerViewFragment implements
                 }
                 break;
             }
-            case LOADER_COUNT_ALL_ATTENDEES: {
-                if (cursor.moveToFirst()) {
-                    mTextEmptyMessage.setText(cursor.getInt(0) == 0 ?
-                            R.string.no_attendees : R.string.everyone_here);
-                }
-                break;
-            }
         }
     }
 
@@ -177,7 +266,7 @@ public class AttendeeListFragment extends RecyclerViewFragment implements
     public void onLoaderReset(Loader<Cursor> loader) {
         switch (loader.getId()) {
             case LOADER_ATTENDEES: {
-                mAdapter.swapCursor(null);
+                mAdapter.setCount(0);
                 break;
             }
         }
@@ -186,11 +275,7 @@ public class AttendeeListFragment extends RecyclerViewFragment implements
     @Override
     public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
         if (key.equals(GutenbergApplication.PREF_EVENT_ID)) {
-            Bundle args = new Bundle(getArguments());
-            args.putString(ARG_EVENT_ID, prefs.getString(key, null));
-            LoaderManager manager = getLoaderManager();
-            manager.destroyLoader(LOADER_ATTENDEES);
-            manager.initLoader(LOADER_ATTENDEES, args, this);
+            loadAttendees(prefs.getString(key, null), true);
         }
     }
 
@@ -228,6 +313,27 @@ public class AttendeeListFragment extends RecyclerViewFragment implements
             mActionEdit = (ImageView) itemView.findViewById(R.id.action_edit);
         }
 
+        /**
+         * Shows an attendee that has not been loaded yet.
+         */
+        public void bindPlaceholder() {
+            itemView.setBackgroundDrawable(null);
+            ViewCompat.setTranslationZ(itemView, 0.f);
+            mName.setText(null);
+            mEmail.setText(null);
+            mNote.setVisibility(View.GONE);
+            mCheckin.setVisibility(View.INVISIBLE);
+            mSyncInProcess.setVisibility(View.INVISIBLE);
+            mActions.setVisibility(View.GONE);
+            itemView.setOnClickListener(null);
+            ImageLoader.ImageContainer container = (ImageLoader.ImageContainer) mIcon.getTag();
+            if (container != null) {
+                container.cancelRequest();
+                mIcon.setTag(null);
+            }
+            mIcon.setImageResource(R.drawable.ic_person);
+        }
+
         public void bind(Cursor cursor, ImageLoader imageLoader) {
             itemView.setBackgroundDrawable(null);
             ViewCompat.setTranslationZ(itemView, 0.f);
@@ -320,13 +426,13 @@ public class AttendeeListFragment extends RecyclerViewFragment implements
 
     }
 
-    private class AttendeeAdapter extends RecyclerView.Adapter<ViewHolder> {
+    private class AttendeeAdapter extends PagedCursorAdapter<ViewHolder> {
 
         private final LayoutInflater mInflater;
         private final ImageLoader mImageLoader;
-        private Cursor mCursor;
 
         public AttendeeAdapter(Context context) {
+            super(context, PAGE_SIZE);
             mInflater = LayoutInflater.from(context);
             GutenbergApplication app = GutenbergApplication.from(context);
             mImageLoader = new ImageLoader(app.getRequestQueue(), app.getBitmapCache());
@@ -338,21 +444,13 @@ public class AttendeeListFragment extends RecyclerViewFragment implements
         }
 
         @Override
-        public void onBindViewHolder(ViewHolder holder, int position) {
-            if (mCursor.getPosition() != position) {
-                mCursor.moveToPosition(position);
-            }
-            holder.bind(mCursor, mImageLoader);
+        public void onBindViewHolder(ViewHolder holder, Cursor cursor) {
+            holder.bind(cursor, mImageLoader);
         }
 
         @Override
-        public int getItemCount() {
-            return mCursor == null ? 0 : mCursor.getCount();
-        }
-
-        public void swapCursor(Cursor cursor) {
-            mCursor = cursor;
-            notifyDataSetChanged();
+        public void onBindPlaceholder(ViewHolder holder) {
+            holder.bindPlaceholder();
         }
 
     }
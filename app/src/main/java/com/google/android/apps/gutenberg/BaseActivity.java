@@ -72,6 +72,8 @@ public class BaseActivity extends ActionBarActivity implements
         GutenbergApplication app = GutenbergApplication.from(this);
         if (!app.isUserLoggedIn()) {
             selectAccount(false);
+        } else if (app.isAuthTokenExpiring()) {
+            refreshAuthToken();
         } else {
             app.requestSync(false);
         }
@@ -146,6 +148,17 @@ public class BaseActivity extends ActionBarActivity implements
                 mAccountManagerCallback, null);
     }
 
+    /**
+     * Fetches a new auth token ahead of the expiry of the current one. A sync is requested when
+     * the new one arrives.
+     */
+    private void refreshAuthToken() {
+        GutenbergApplication app = GutenbergApplication.from(this);
+        AccountManager accountManager = AccountManager.get(getApplicationContext());
+        accountManager.invalidateAuthToken(app.getAccount().type, app.getAuthToken());
+        fetchTokenForAccount(app.getAccount());
+    }
+
     private AccountManagerCallback<Bundle> mAccountManagerCallback
             = new AccountManagerCallback<Bundle>() {
         @Override
@@ -148,7 +148,11 @@ public class EventSelectionFragment extends Fragment implements
     @Override
     public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
         String eventId = (String) view.getTag();
-        GutenbergApplication.from(getActivity()).setEventId(eventId);
+        GutenbergApplication app = GutenbergApplication.from(getActivity());
+        if (!TextUtils.equals(eventId, app.getEventId())) {
+            app.setEventId(eventId);
+            app.requestEventSync(eventId);
+        }
         mAdapter.setCurrentEventId(eventId);
     }
 
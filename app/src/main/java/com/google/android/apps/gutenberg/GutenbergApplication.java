@@ -17,35 +17,88 @@
 package com.google.android.apps.gutenberg;
 
 import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.accounts.AccountManagerCallback;
+import android.accounts.AccountManagerFuture;
+import android.accounts.AuthenticatorException;
+import android.accounts.OperationCanceledException;
+import android.app.ActivityManager;
 import android.app.Application;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.res.Resources;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Process;
+import android.util.Log;
 
 import com.android.volley.RequestQueue;
 import com.android.volley.toolbox.Volley;
+import com.google.android.apps.gutenberg.provider.CheckinListener;
 import com.google.android.apps.gutenberg.provider.SyncAdapter;
 import com.google.android.apps.gutenberg.provider.Table;
+import com.google.android.apps.gutenberg.util.AccountManagerCompat;
 import com.google.android.apps.gutenberg.util.BitmapCache;
+import com.google.android.apps.gutenberg.util.ServerClock;
+import com.google.android.apps.gutenberg.util.SyncCoalescer;
+
+import java.io.IOException;
+import java.util.List;
 
 /**
  * Manages information shared among all parts of the app.
  */
 public class GutenbergApplication extends Application {
 
+    private static final String TAG = "GutenbergApplication";
+
     private static final String PREF_NAME = "gutenberg";
     private static final String PREF_AUTH_TOKEN = "auth_token";
+    private static final String PREF_AUTH_TOKEN_TIME = "auth_token_time";
     private static final String PREF_ACCOUNT = "account";
     public static final String PREF_EVENT_ID = "event_id";
 
+    /**
+     * Auth tokens older than this are refreshed before they expire (in about an hour).
+     */
+    private static final long AUTH_TOKEN_REFRESH_AGE = 45 * 60 * 1000;
+
+    /**
+     * The delay before trying again when the auth token cannot be refreshed, like when offline.
+     */
+    private static final long AUTH_TOKEN_RETRY_DELAY = 60 * 1000;
+
     private RequestQueue mRequestQueue;
     private BitmapCache mBitmapCache;
+    private SyncCoalescer mSyncCoalescer;
+    private CheckinListener mCheckinListener;
+    private boolean mCheckinListenerEnabled;
 
     private Account mAccount;
     private String mAuthToken;
+    private long mAuthTokenTime;
     private String mEventId;
 
+    private final Handler mHandler = new Handler();
+
+    /**
+     * False in the other processes, like the one of the sync, which take the auth token from
+     * the main process and must not refresh it themselves.
+     */
+    private boolean mMainProcess;
+
+    /**
+     * Refreshes the auth token while the app is running, so that a screen left open for long,
+     * like the scanner, does not end up with an expired one.
+     */
+    private final Runnable mAuthTokenRefresh = new Runnable() {
+        @Override
+        public void run() {
+            refreshAuthToken();
+        }
+    };
+
     public static GutenbergApplication from(Context context) {
         return (GutenbergApplication) context.getApplicationContext();
     }
@@ -53,13 +106,33 @@ public class GutenbergApplication extends Application {
     @Override
     public void onCreate() {
         super.onCreate();
+        ServerClock.install(this);
         SharedPreferences prefs = getDefaultSharedPreferences();
         String account = prefs.getString(PREF_ACCOUNT, null);
         if (account != null) {
             mAccount = new Account(account, "com.google");
         }
         mAuthToken = prefs.getString(PREF_AUTH_TOKEN, null);
+        mAuthTokenTime = prefs.getLong(PREF_AUTH_TOKEN_TIME, 0);
         mEventId = prefs.getString(PREF_EVENT_ID, null);
+        mMainProcess = isMainProcess();
+        scheduleAuthTokenRefresh(mAuthTokenTime + AUTH_TOKEN_REFRESH_AGE -
+                System.currentTimeMillis());
+    }
+
+    private boolean isMainProcess() {
+        int pid = Process.myPid();
+        ActivityManager manager = (ActivityManager) getSystemService(ACTIVITY_SERVICE);
+        List<ActivityManager.RunningAppProcessInfo> processes =
+                manager.getRunningAppProcesses();
+        if (processes != null) {
+            for (ActivityManager.RunningAppProcessInfo process : processes) {
+                if (process.pid == pid) {
+                    return getPackageName().equals(process.processName);
+                }
+            }
+        }
+        return true;
     }
 
     public Account getAccount() {
@@ -78,14 +151,76 @@ public class GutenbergApplication extends Application {
         mAccount = account;
     }
 
+    public String getAuthToken() {
+        return mAuthToken;
+    }
+
     public void setAuthToken(String authToken) {
+        long now = System.currentTimeMillis();
         getDefaultSharedPreferences()
                 .edit()
                 .putString(PREF_AUTH_TOKEN, authToken)
+                .putLong(PREF_AUTH_TOKEN_TIME, now)
                 .apply();
         mAuthToken = authToken;
+        mAuthTokenTime = now;
+        if (mCheckinListener != null && mAccount != null &&
+                mAccount.name.equals(mCheckinListener.getAccountName())) {
+            // The listener picks up the new token when it needs a new cookie
+            mCheckinListener.setAuthToken(authToken);
+        } else {
+            restartCheckinListener();
+        }
+        scheduleAuthTokenRefresh(AUTH_TOKEN_REFRESH_AGE);
+    }
+
+    /**
+     * @return True if the auth token is about to expire and should be fetched again.
+     */
+    public boolean isAuthTokenExpiring() {
+        return System.currentTimeMillis() - mAuthTokenTime > AUTH_TOKEN_REFRESH_AGE;
+    }
+
+    private void scheduleAuthTokenRefresh(long delay) {
+        mHandler.removeCallbacks(mAuthTokenRefresh);
+        if (mMainProcess && isUserLoggedIn()) {
+            mHandler.postDelayed(mAuthTokenRefresh, Math.max(0, delay));
+        }
     }
 
+    /**
+     * Fetches a new auth token ahead of the expiry of the current one, without asking the user.
+     * If the user has to be asked, {@link BaseActivity} does it when it is created.
+     */
+    private void refreshAuthToken() {
+        if (!isUserLoggedIn()) {
+            return;
+        }
+        AccountManager accountManager = AccountManager.get(this);
+        accountManager.invalidateAuthToken(mAccount.type, mAuthToken);
+        AccountManagerCompat.getAuthToken(accountManager, mAccount, "ah", null, false,
+                mAuthTokenCallback, mHandler);
+    }
+
+    private final AccountManagerCallback<Bundle> mAuthTokenCallback =
+            new AccountManagerCallback<Bundle>() {
+                @Override
+                public void run(AccountManagerFuture<Bundle> future) {
+                    try {
+                        String authToken = future.getResult()
+                                .getString(AccountManager.KEY_AUTHTOKEN);
+                        if (authToken != null) {
+                            setAuthToken(authToken);
+                        }
+                    } catch (IOException e) {
+                        Log.e(TAG, "Cannot refresh the auth token.", e);
+                        scheduleAuthTokenRefresh(AUTH_TOKEN_RETRY_DELAY);
+                    } catch (OperationCanceledException | AuthenticatorException e) {
+                        Log.e(TAG, "Cannot refresh the auth token.", e);
+                    }
+                }
+            };
+
     public String getEventId() {
         return mEventId;
     }
@@ -96,6 +231,29 @@ public class GutenbergApplication extends Application {
                 .putString(PREF_EVENT_ID, eventId)
                 .apply();
         mEventId = eventId;
+        restartCheckinListener();
+    }
+
+    /**
+     * Starts or stops listening for the check-ins made on other devices for the current event.
+     * This should be enabled only while the app is in the foreground.
+     */
+    public void setCheckinListenerEnabled(boolean enabled) {
+        if (mCheckinListenerEnabled != enabled) {
+            mCheckinListenerEnabled = enabled;
+            restartCheckinListener();
+        }
+    }
+
+    private void restartCheckinListener() {
+        if (mCheckinListener != null) {
+            mCheckinListener.stop();
+            mCheckinListener = null;
+        }
+        if (mCheckinListenerEnabled && isUserLoggedIn() && mEventId != null) {
+            mCheckinListener = new CheckinListener(this, mAccount.name, mAuthToken, mEventId);
+            mCheckinListener.start();
+        }
     }
 
     /**
@@ -119,11 +277,54 @@ public class GutenbergApplication extends Application {
         return mRequestQueue;
     }
 
+    /**
+     * Requests a sync to upload a new check-in. The check-ins made in quick succession are
+     * uploaded together.
+     */
+    public void requestCheckinSync() {
+        if (mSyncCoalescer == null) {
+            Resources resources = getResources();
+            mSyncCoalescer = new SyncCoalescer(this,
+                    resources.getInteger(R.integer.checkin_sync_window),
+                    resources.getInteger(R.integer.checkin_sync_max_wait));
+        }
+        mSyncCoalescer.request();
+    }
+
     public boolean isUserLoggedIn() {
         return mAccount != null && mAuthToken != null;
     }
 
+    /**
+     * Requests a sync. Unless only the check-ins are requested, the attendees of the current
+     * event are downloaded first, and those of the other events later in the background.
+     *
+     * @param onlyCheckins True to only upload the check-ins
+     * @return False if the user is not logged in.
+     */
     public boolean requestSync(boolean onlyCheckins) {
+        if (onlyCheckins || mEventId == null) {
+            return requestSync(onlyCheckins, false);
+        }
+        if (!requestEventSync(mEventId)) {
+            return false;
+        }
+        // Not expedited, so that it yields to the other syncs. The current event has just been
+        // requested, so this one only fills in the others.
+        Bundle extras = new Bundle();
+        extras.putString(SyncAdapter.EXTRA_AUTH_TOKEN, mAuthToken);
+        extras.putString(SyncAdapter.EXTRA_SKIP_EVENT_ID, mEventId);
+        ContentResolver.requestSync(mAccount, Table.AUTHORITY, extras);
+        return true;
+    }
+
+    /**
+     * Requests a sync of the attendees of the specified event.
+     *
+     * @param eventId The event ID
+     * @return False if the user is not logged in.
+     */
+    public boolean requestEventSync(String eventId) {
         if (!isUserLoggedIn()) {
             return false;
         }
@@ -131,13 +332,33 @@ public class GutenbergApplication extends Application {
         extras.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
         extras.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
         extras.putString(SyncAdapter.EXTRA_AUTH_TOKEN, mAuthToken);
-        extras.putBoolean(SyncAdapter.EXTRA_ONLY_CHECKINS, onlyCheckins);
+        extras.putString(SyncAdapter.EXTRA_EVENT_ID, eventId);
         ContentResolver.setSyncAutomatically(mAccount, Table.AUTHORITY, true);
         ContentResolver.setIsSyncable(mAccount, Table.AUTHORITY, 1);
-        if (ContentResolver.isSyncPending(mAccount, Table.AUTHORITY) ||
-                ContentResolver.isSyncActive(mAccount, Table.AUTHORITY)) {
-            ContentResolver.cancelSync(mAccount, Table.AUTHORITY);
+        ContentResolver.requestSync(mAccount, Table.AUTHORITY, extras);
+        return true;
+    }
+
+    /**
+     * Requests a sync. A sync already in progress is not interrupted; the new one runs after it.
+     *
+     * @param onlyCheckins True to only upload the check-ins
+     * @param flushOutbox  True to upload all the check-ins in the outbox, including those
+     *                     waiting for a retry
+     * @return False if the user is not logged in.
+     */
+    public boolean requestSync(boolean onlyCheckins, boolean flushOutbox) {
+        if (!isUserLoggedIn()) {
+            return false;
         }
+        Bundle extras = new Bundle();
+        extras.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+        extras.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
+        extras.putString(SyncAdapter.EXTRA_AUTH_TOKEN, mAuthToken);
+        extras.putBoolean(SyncAdapter.EXTRA_ONLY_CHECKINS, onlyCheckins);
+        extras.putBoolean(SyncAdapter.EXTRA_FLUSH_OUTBOX, flushOutbox);
+        ContentResolver.setSyncAutomatically(mAccount, Table.AUTHORITY, true);
+        ContentResolver.setIsSyncable(mAccount, Table.AUTHORITY, 1);
         ContentResolver.requestSync(mAccount, Table.AUTHORITY, extras);
         return true;
     }
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg;
+
+import android.app.AlertDialog;
+import android.app.Dialog;
+import android.content.DialogInterface;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.v4.app.DialogFragment;
+import android.support.v4.app.LoaderManager;
+import android.support.v4.content.CursorLoader;
+import android.support.v4.content.Loader;
+import android.text.format.DateUtils;
+import android.widget.TextView;
+
+import com.google.android.apps.gutenberg.provider.Table;
+
+/**
+ * Shows the check-ins waiting to be uploaded.
+ */
+public class OutboxFragment extends DialogFragment
+        implements LoaderManager.LoaderCallbacks<Cursor> {
+
+    private static final int LOADER_OUTBOX = 1;
+
+    private TextView mTextStatus;
+
+    public static OutboxFragment newInstance() {
+        return new OutboxFragment();
+    }
+
+    @NonNull
+    @Override
+    public Dialog onCreateDialog(Bundle savedInstanceState) {
+        int padding = getResources().getDimensionPixelSize(R.dimen.dialog_padding);
+        mTextStatus = new TextView(getActivity());
+        mTextStatus.setPadding(padding, padding, padding, padding);
+        return new AlertDialog.Builder(getActivity())
+                .setTitle(R.string.outbox)
+                .setView(mTextStatus)
+                .setPositiveButton(android.R.string.ok,
+                        new DialogInterface.OnClickListener() {
+                            public void onClick(DialogInterface dialog, int whichButton) {
+                                dialog.dismiss();
+                            }
+                        }
+                )
+                .setNeutralButton(R.string.outbox_retry,
+                        new DialogInterface.OnClickListener() {
+                            public void onClick(DialogInterface dialog, int whichButton) {
+                                GutenbergApplication.from(getActivity()).requestSync(true, true);
+                            }
+                        }
+                )
+                .create();
+    }
+
+    @Override
+    public void onActivityCreated(Bundle savedInstanceState) {
+        super.onActivityCreated(savedInstanceState);
+        getLoaderManager().initLoader(LOADER_OUTBOX, null, this);
+    }
+
+    @Override
+    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        return new CursorLoader(getActivity(), Table.OUTBOX.getBaseUri(), new String[]{
+                "COUNT(*) AS c",
+                "MIN(" + Table.Outbox.CREATED + ")",
+                "MAX(" + Table.Outbox.ATTEMPTS + ")",
+        }, null, null, null);
+    }
+
+    @Override
+    public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+        if (!cursor.moveToFirst() || cursor.getInt(0) == 0) {
+            mTextStatus.setText(R.string.outbox_empty);
+            return;
+        }
+        int count = cursor.getInt(0);
+        CharSequence age = DateUtils.getRelativeTimeSpanString(cursor.getLong(1),
+                System.currentTimeMillis(), DateUtils.MINUTE_IN_MILLIS);
+        mTextStatus.setText(getResources().getQuantityString(R.plurals.outbox_status, count,
+                count, age, cursor.getInt(2)));
+    }
+
+    @Override
+    public void onLoaderReset(Loader<Cursor> loader) {
+    }
+
+}
@@ -27,9 +27,11 @@ import android.graphics.Color;
 import android.os.Bundle;
 import android.support.v4.app.FragmentManager;
 import android.support.v4.app.FragmentPagerAdapter;
+import android.support.v4.view.MenuItemCompat;
 import android.support.v4.view.ViewCompat;
 import android.support.v4.view.ViewPager;
 import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SearchView;
 import android.support.v7.widget.Toolbar;
 import android.util.DisplayMetrics;
 import android.util.TypedValue;
@@ -57,6 +59,8 @@ public class ScannerActivity extends BaseActivity implements ScannerFragment.Lis
     private static final int VIEW_PAGER_PAGE_MARGIN = 16;
     private static final float TIMELINE_TRANSLATION_X = -32.f;
     private static final String FRAGMENT_ABOUT = "fragment_about";
+    private static final String FRAGMENT_OUTBOX = "fragment_outbox";
+    private static final String FRAGMENT_SYNC_LOG = "fragment_sync_log";
 
     private RecyclerViewSlidingUpPanelLayout mPanelLayout;
     private DrawerViewPager mViewPager;
@@ -160,9 +164,27 @@ public class ScannerActivity extends BaseActivity implements ScannerFragment.Lis
         });
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        GutenbergApplication.from(this).setCheckinListenerEnabled(true);
+    }
+
+    @Override
+    protected void onStop() {
+        GutenbergApplication.from(this).setCheckinListenerEnabled(false);
+        super.onStop();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.activity_scanner, menu);
+        menu.findItem(R.id.action_sync_log).setVisible(BuildConfig.DEBUG);
+        MenuItem searchItem = menu.findItem(R.id.action_search);
+        SearchView searchView = (SearchView) MenuItemCompat.getActionView(searchItem);
+        searchView.setQueryHint(getString(R.string.search_hint));
+        searchView.setOnQueryTextListener(mOnQueryTextListener);
+        MenuItemCompat.setOnActionExpandListener(searchItem, mOnSearchExpandListener);
         return super.onCreateOptionsMenu(menu);
     }
 
@@ -172,6 +194,13 @@ public class ScannerActivity extends BaseActivity implements ScannerFragment.Lis
             case R.id.action_switch_account:
                 selectAccount(true);
                 return true;
+            case R.id.action_outbox:
+                OutboxFragment.newInstance().show(getSupportFragmentManager(), FRAGMENT_OUTBOX);
+                return true;
+            case R.id.action_sync_log:
+                SyncLogFragment.newInstance().show(getSupportFragmentManager(),
+                        FRAGMENT_SYNC_LOG);
+                return true;
             case R.id.action_about:
                 AboutFragment.newInstance().show(getSupportFragmentManager(), FRAGMENT_ABOUT);
                 return true;
@@ -305,6 +334,37 @@ public class ScannerActivity extends BaseActivity implements ScannerFragment.Lis
         }
     };
 
+    private SearchView.OnQueryTextListener mOnQueryTextListener
+            = new SearchView.OnQueryTextListener() {
+        @Override
+        public boolean onQueryTextSubmit(String query) {
+            return false;
+        }
+
+        @Override
+        public boolean onQueryTextChange(String newText) {
+            mAdapter.setQuery(newText);
+            return true;
+        }
+    };
+
+    private MenuItemCompat.OnActionExpandListener mOnSearchExpandListener
+            = new MenuItemCompat.OnActionExpandListener() {
+        @Override
+        public boolean onMenuItemActionExpand(MenuItem item) {
+            // Search in all the attendees
+            mPanelLayout.setPanelState(SlidingUpPanelLayout.PanelState.EXPANDED);
+            mViewPager.setCurrentItem(2, true);
+            return true;
+        }
+
+        @Override
+        public boolean onMenuItemActionCollapse(MenuItem item) {
+            mAdapter.setQuery(null);
+            return true;
+        }
+    };
+
     private SlidingUpPanelLayout.PanelSlideListener mPanelSlideListener
             = new SlidingUpPanelLayout.PanelSlideListener() {
         @Override
@@ -367,6 +427,7 @@ public class ScannerActivity extends BaseActivity implements ScannerFragment.Lis
 
         private final String[] mPageTitles = new String[COUNT];
         private final RecyclerViewFragment[] mFragments = new RecyclerViewFragment[COUNT];
+        private String mQuery;
 
         public ScannerPagerAdapter(FragmentManager fm, Context context) {
             super(fm);
@@ -389,6 +450,9 @@ public class ScannerActivity extends BaseActivity implements ScannerFragment.Lis
                         mFragments[position] = AttendeeListFragment.newInstance(false);
                         break;
                 }
+                if (mFragments[position] instanceof AttendeeListFragment) {
+                    ((AttendeeListFragment) mFragments[position]).setQuery(mQuery);
+                }
             }
             return mFragments[position];
         }
@@ -403,6 +467,18 @@ public class ScannerActivity extends BaseActivity implements ScannerFragment.Lis
             return mPageTitles[position];
         }
 
+        /**
+         * Filters the attendee lists with the text, or shows all the attendees for null.
+         */
+        public void setQuery(String query) {
+            mQuery = query;
+            for (RecyclerViewFragment fragment : mFragments) {
+                if (fragment instanceof AttendeeListFragment) {
+                    ((AttendeeListFragment) fragment).setQuery(query);
+                }
+            }
+        }
+
         public void scrollToTop() {
             TimelineFragment fragment = (TimelineFragment) mFragments[0];
             if (fragment != null) {
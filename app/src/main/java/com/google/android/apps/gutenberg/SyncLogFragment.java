@@ -0,0 +1,148 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg;
+
+import android.app.AlertDialog;
+import android.app.Dialog;
+import android.content.DialogInterface;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.v4.app.DialogFragment;
+import android.support.v4.app.LoaderManager;
+import android.support.v4.content.CursorLoader;
+import android.support.v4.content.Loader;
+import android.text.format.DateUtils;
+import android.widget.ScrollView;
+import android.widget.TextView;
+
+import com.google.android.apps.gutenberg.provider.Table;
+
+/**
+ * Debug screen that shows the statistics of the recent syncs.
+ */
+public class SyncLogFragment extends DialogFragment
+        implements LoaderManager.LoaderCallbacks<Cursor> {
+
+    private static final int LOADER_SYNC_LOG = 1;
+    private static final int MAX_ITEMS = 20;
+
+    private static final String[] PROJECTION = {
+            Table.SyncLog.START_TIME,
+            Table.SyncLog.ELAPSED_MILLIS,
+            Table.SyncLog.COOKIE_MILLIS,
+            Table.SyncLog.EVENT_LIST_MILLIS,
+            Table.SyncLog.NETWORK_WAIT_MILLIS,
+            Table.SyncLog.MAX_DOWNLOAD_MILLIS,
+            Table.SyncLog.PARSE_MILLIS,
+            Table.SyncLog.WRITE_MILLIS,
+            Table.SyncLog.AVATAR_MILLIS,
+            Table.SyncLog.EVENT_COUNT,
+            Table.SyncLog.INSERTED,
+            Table.SyncLog.UPDATED,
+            Table.SyncLog.DELETED,
+            Table.SyncLog.UNCHANGED,
+            Table.SyncLog.ERRORS,
+            Table.SyncLog.BYTES_SENT,
+            Table.SyncLog.BYTES_RECEIVED,
+            Table.SyncLog.BYTES_RECEIVED_RAW,
+            Table.SyncLog.REQUESTS,
+            Table.SyncLog.REUSED_CONNECTIONS,
+    };
+
+    private TextView mTextLog;
+
+    public static SyncLogFragment newInstance() {
+        return new SyncLogFragment();
+    }
+
+    @NonNull
+    @Override
+    public Dialog onCreateDialog(Bundle savedInstanceState) {
+        int padding = getResources().getDimensionPixelSize(R.dimen.dialog_padding);
+        mTextLog = new TextView(getActivity());
+        mTextLog.setPadding(padding, padding, padding, padding);
+        mTextLog.setTextIsSelectable(true);
+        ScrollView scrollView = new ScrollView(getActivity());
+        scrollView.addView(mTextLog);
+        return new AlertDialog.Builder(getActivity())
+                .setTitle(R.string.sync_log)
+                .setView(scrollView)
+                .setPositiveButton(android.R.string.ok,
+                        new DialogInterface.OnClickListener() {
+                            public void onClick(DialogInterface dialog, int whichButton) {
+                                dialog.dismiss();
+                            }
+                        }
+                )
+                .create();
+    }
+
+    @Override
+    public void onActivityCreated(Bundle savedInstanceState) {
+        super.onActivityCreated(savedInstanceState);
+        getLoaderManager().initLoader(LOADER_SYNC_LOG, null, this);
+    }
+
+    @Override
+    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        return new CursorLoader(getActivity(), Table.SYNC_LOG.getBaseUri(), PROJECTION, null, null,
+                Table.SyncLog._ID + " DESC LIMIT " + MAX_ITEMS);
+    }
+
+    @Override
+    public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+        if (cursor.getCount() == 0) {
+            mTextLog.setText(R.string.sync_log_empty);
+            return;
+        }
+        StringBuilder builder = new StringBuilder();
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            if (builder.length() > 0) {
+                builder.append("\n\n");
+            }
+            builder.append(DateUtils.formatDateTime(getActivity(), cursor.getLong(0),
+                    DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_TIME))
+                    .append(": ").append(cursor.getLong(1)).append("ms, ")
+                    .append(cursor.getInt(9)).append(" event(s), ")
+                    .append(cursor.getInt(14)).append(" error(s)")
+                    .append("\ncookie ").append(cursor.getLong(2))
+                    .append("ms, event list ").append(cursor.getLong(3))
+                    .append("ms, network ").append(cursor.getLong(4))
+                    .append("ms (slowest event ").append(cursor.getLong(5))
+                    .append("ms), parse ").append(cursor.getLong(6))
+                    .append("ms, write ").append(cursor.getLong(7))
+                    .append("ms, avatars ").append(cursor.getLong(8))
+                    .append("ms\nrows: +").append(cursor.getInt(10))
+                    .append(" ~").append(cursor.getInt(11))
+                    .append(" -").append(cursor.getInt(12))
+                    .append(" =").append(cursor.getInt(13))
+                    .append("\nbytes: sent ").append(cursor.getLong(15))
+                    .append(", received ").append(cursor.getLong(16))
+                    .append(" (").append(cursor.getLong(17)).append(" uncompressed)")
+                    .append("\nrequests: ").append(cursor.getInt(18))
+                    .append(" (").append(cursor.getInt(19)).append(" on reused connections)");
+        }
+        mTextLog.setText(builder);
+    }
+
+    @Override
+    public void onLoaderReset(Loader<Cursor> loader) {
+    }
+
+}
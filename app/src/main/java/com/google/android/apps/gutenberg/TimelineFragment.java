@@ -113,11 +113,10 @@ public class TimelineFragment extends RecyclerViewFragment implements
         }
         switch (id) {
             case LOADER_ATTENDEES:
-                return new CursorLoader(activity, Table.ATTENDEE.getBaseUri(), Checkin.PROJECTION,
-                        Table.Attendee.EVENT_ID + " = ? AND " +
-                                Table.Attendee.CHECKIN + " IS NOT NULL",
-                        new String[]{eventId},
-                        null);
+                // Query the attendees of the event by its URI, so that we are notified only of
+                // their changes
+                return new CursorLoader(activity, Table.ATTENDEE.getItemUri(eventId),
+                        Checkin.PROJECTION, Table.Attendee.CHECKIN + " IS NOT NULL", null, null);
             case LOADER_EVENT:
                 return new CursorLoader(activity, Table.EVENT.getItemUri(eventId),
                         new String[]{Table.Event.NAME}, null, null, null);
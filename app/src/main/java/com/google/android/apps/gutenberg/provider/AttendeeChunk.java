@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg.provider;
+
+import android.content.ContentValues;
+
+import java.util.ArrayList;
+
+/**
+ * A bounded part of the attendees of an event, handed over from {@link AttendeeDownloader} to
+ * the thread writing them into the database.
+ */
+public class AttendeeChunk {
+
+    public final String eventId;
+
+    /**
+     * The rows to insert or update.
+     */
+    public final ArrayList<ContentValues> rows = new ArrayList<>();
+
+    /**
+     * The IDs of the deleted attendees.
+     */
+    public final ArrayList<String> deletedIds = new ArrayList<>();
+
+    /**
+     * True if this is the last chunk of the event.
+     */
+    public boolean last;
+
+    /**
+     * The largest modification time of the attendees in this and the preceding chunks.
+     */
+    public long watermark;
+
+    /**
+     * True if the attendees haven't changed since the last sync. The chunk holds no attendees in
+     * that case.
+     */
+    public boolean notModified;
+
+    /**
+     * The URL of the request, which its validators are saved for. Only set in the last chunk.
+     */
+    public String url;
+
+    /**
+     * The validators of the response. Only set in the last chunk.
+     */
+    public String etag;
+    public String lastModified;
+
+    /**
+     * The error that stopped the download, if any. The chunk holds no attendees in that case.
+     */
+    public Exception error;
+
+    /**
+     * The time spent waiting for the response of the server.
+     */
+    public long networkWaitMillis;
+
+    /**
+     * The time spent reading and parsing the attendees in this chunk.
+     */
+    public long parseMillis;
+
+    public AttendeeChunk(String eventId, long watermark) {
+        this.eventId = eventId;
+        this.watermark = watermark;
+    }
+
+    /**
+     * @return The number of attendees in this chunk, including deleted ones.
+     */
+    public int size() {
+        return rows.size() + deletedIds.size();
+    }
+
+}
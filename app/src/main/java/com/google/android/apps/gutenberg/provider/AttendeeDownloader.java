@@ -0,0 +1,181 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg.provider;
+
+import android.content.ContentValues;
+import android.os.SystemClock;
+
+import com.google.android.apps.gutenberg.util.GaeStreamRequest;
+import com.google.android.apps.gutenberg.util.ServerHost;
+import com.google.android.apps.gutenberg.util.TransferCounter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Downloads the attendees of an event and puts them into a queue as {@link AttendeeChunk}s of
+ * at most {@link #CHUNK_SIZE} attendees. The queue should be bounded so that the memory use stays
+ * flat no matter how many attendees the event has.
+ */
+public class AttendeeDownloader implements Runnable {
+
+    public static final int CHUNK_SIZE = 500;
+
+    private final String mEventId;
+    private final long mWatermark;
+    private final String mCookie;
+    private final BlockingQueue<AttendeeChunk> mQueue;
+    private String mETag;
+    private String mLastModified;
+    private TransferCounter mTransferCounter;
+
+    /**
+     * @param eventId   The event ID
+     * @param watermark The watermark of the event, or 0 to download all the attendees
+     * @param cookie    The session cookie
+     * @param queue     The queue to put the chunks into
+     */
+    public AttendeeDownloader(String eventId, long watermark, String cookie,
+                              BlockingQueue<AttendeeChunk> queue) {
+        mEventId = eventId;
+        mWatermark = watermark;
+        mCookie = cookie;
+        mQueue = queue;
+    }
+
+    /**
+     * @return The URL of the attendees of the event, without the query.
+     */
+    public static String getBaseUrl(String eventId) {
+        return getUrlPrefix() + eventId + "/attendees";
+    }
+
+    /**
+     * @param watermark The watermark of the event, or 0 for all the attendees
+     * @return The URL of the request for the attendees of the event.
+     */
+    public static String getUrl(String eventId, long watermark) {
+        String url = getBaseUrl(eventId);
+        if (watermark > 0) {
+            // Only the attendees modified since then, including tombstones for deleted ones
+            url += "?since=" + watermark;
+        }
+        return url;
+    }
+
+    /**
+     * @return The part of the URLs of the attendees before the event ID.
+     */
+    public static String getUrlPrefix() {
+        return ServerHost.get() + "/v1/event/";
+    }
+
+    /**
+     * The reverse of {@link #getUrl(String, long)}.
+     *
+     * @return The event ID, or null if the URL is not for attendees.
+     */
+    public static String getEventId(String url) {
+        String prefix = getUrlPrefix();
+        int end = url.indexOf("/attendees", prefix.length());
+        if (!url.startsWith(prefix) || end < 0) {
+            return null;
+        }
+        return url.substring(prefix.length(), end);
+    }
+
+    /**
+     * Makes the request conditional. See {@link GaeStreamRequest#setValidators(String, String)}.
+     */
+    public void setValidators(String etag, String lastModified) {
+        mETag = etag;
+        mLastModified = lastModified;
+    }
+
+    /**
+     * @param counter The counter for the bytes transferred by the download
+     */
+    public void setTransferCounter(TransferCounter counter) {
+        mTransferCounter = counter;
+    }
+
+    @Override
+    public void run() {
+        String url = getUrl(mEventId, mWatermark);
+        GaeStreamRequest request = new GaeStreamRequest(url, mCookie);
+        request.setValidators(mETag, mLastModified);
+        request.setTransferCounter(mTransferCounter);
+        AttendeeReader reader = null;
+        AttendeeChunk chunk = new AttendeeChunk(mEventId, 0);
+        try {
+            long start = SystemClock.elapsedRealtime();
+            InputStream in = request.open();
+            chunk.networkWaitMillis = SystemClock.elapsedRealtime() - start;
+            if (in == null) {
+                chunk.notModified = true;
+                chunk.last = true;
+                mQueue.put(chunk);
+                return;
+            }
+            reader = new AttendeeReader(in, mEventId);
+            start = SystemClock.elapsedRealtime();
+            while (reader.hasNext()) {
+                ContentValues values = reader.next();
+                chunk.watermark = Math.max(chunk.watermark, reader.getModified());
+                if (reader.isDeleted()) {
+                    chunk.deletedIds.add(values.getAsString(Table.Attendee.ID));
+                } else {
+                    chunk.rows.add(values);
+                }
+                if (chunk.size() >= CHUNK_SIZE) {
+                    chunk.parseMillis = SystemClock.elapsedRealtime() - start;
+                    mQueue.put(chunk);
+                    chunk = new AttendeeChunk(mEventId, chunk.watermark);
+                    start = SystemClock.elapsedRealtime();
+                }
+            }
+            chunk.parseMillis = SystemClock.elapsedRealtime() - start;
+            chunk.last = true;
+            chunk.url = url;
+            chunk.etag = request.getETag();
+            chunk.lastModified = request.getLastModified();
+            mQueue.put(chunk);
+        } catch (IOException | RuntimeException e) {
+            AttendeeChunk error = new AttendeeChunk(mEventId, 0);
+            error.last = true;
+            error.error = e;
+            try {
+                mQueue.put(error);
+            } catch (InterruptedException e2) {
+                Thread.currentThread().interrupt();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+            request.close();
+        }
+    }
+
+}
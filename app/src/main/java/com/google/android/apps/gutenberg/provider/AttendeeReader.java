@@ -0,0 +1,158 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg.provider;
+
+import android.content.ContentValues;
+import android.text.TextUtils;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Reads attendees one by one from the JSON array returned from the server, so that the whole
+ * list never has to be in memory.
+ */
+public class AttendeeReader implements Closeable {
+
+    private final JsonReader mReader;
+    private final String mEventId;
+
+    private boolean mStarted;
+    private boolean mEnded;
+    private boolean mDeleted;
+    private long mModified;
+
+    public AttendeeReader(InputStream in, String eventId) throws IOException {
+        mReader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        mEventId = eventId;
+    }
+
+    /**
+     * @return True if there is another attendee to read.
+     */
+    public boolean hasNext() throws IOException {
+        if (!mStarted) {
+            mStarted = true;
+            // A workaround for the server returning "null" for empty array
+            if (mReader.peek() == JsonToken.NULL) {
+                mReader.nextNull();
+                mEnded = true;
+            } else {
+                mReader.beginArray();
+            }
+        }
+        if (mEnded) {
+            return false;
+        }
+        if (mReader.hasNext()) {
+            return true;
+        }
+        mReader.endArray();
+        mEnded = true;
+        return false;
+    }
+
+    /**
+     * Reads the next attendee.
+     *
+     * @return The attendee as a row of {@link Table#ATTENDEE}. For a deleted attendee, only
+     * {@link Table.Attendee#EVENT_ID} and {@link Table.Attendee#ID} are set.
+     */
+    public ContentValues next() throws IOException {
+        ContentValues values = new ContentValues();
+        values.put(Table.Attendee.EVENT_ID, mEventId);
+        values.putNull(Table.Attendee.CHECKIN);
+        mDeleted = false;
+        mModified = 0;
+        mReader.beginObject();
+        while (mReader.hasNext()) {
+            String name = mReader.nextName();
+            if (mReader.peek() == JsonToken.NULL) {
+                mReader.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "id":
+                    values.put(Table.Attendee.ID, mReader.nextString());
+                    break;
+                case "name":
+                    values.put(Table.Attendee.NAME, mReader.nextString());
+                    break;
+                case "email":
+                    values.put(Table.Attendee.EMAIL, mReader.nextString());
+                    break;
+                case "plusid":
+                    String plusid = mReader.nextString();
+                    if (!TextUtils.isEmpty(plusid)) {
+                        values.put(Table.Attendee.PLUSID, plusid);
+                    }
+                    break;
+                case "checkinTime":
+                    long checkinTime = mReader.nextLong();
+                    if (0 != checkinTime) {
+                        values.put(Table.Attendee.CHECKIN, checkinTime);
+                    }
+                    break;
+                case "checkinVersion":
+                    values.put(Table.Attendee.CHECKIN_VERSION, mReader.nextLong());
+                    break;
+                case "modified":
+                    mModified = mReader.nextLong();
+                    break;
+                case "deleted":
+                    mDeleted = mReader.nextBoolean();
+                    break;
+                default:
+                    mReader.skipValue();
+                    break;
+            }
+        }
+        mReader.endObject();
+        if (mDeleted) {
+            String id = values.getAsString(Table.Attendee.ID);
+            values.clear();
+            values.put(Table.Attendee.EVENT_ID, mEventId);
+            values.put(Table.Attendee.ID, id);
+        }
+        return values;
+    }
+
+    /**
+     * @return True if the last attendee read by {@link #next()} is a tombstone of a deleted one.
+     */
+    public boolean isDeleted() {
+        return mDeleted;
+    }
+
+    /**
+     * @return The modification time of the last attendee read by {@link #next()}, or 0 if the
+     * server didn't tell.
+     */
+    public long getModified() {
+        return mModified;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mReader.close();
+    }
+
+}
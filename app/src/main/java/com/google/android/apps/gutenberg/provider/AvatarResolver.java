@@ -0,0 +1,252 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg.provider;
+
+import android.content.ContentProviderClient;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.RemoteException;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.plus.People;
+import com.google.android.gms.plus.Plus;
+import com.google.android.gms.plus.model.people.Person;
+import com.google.android.gms.plus.model.people.PersonBuffer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves the Google+ profile image URLs of attendees. The URLs are cached in
+ * {@link Table#AVATAR}, and only the new or expired ones are looked up with the API.
+ */
+public class AvatarResolver {
+
+    private static final String TAG = "AvatarResolver";
+
+    /**
+     * How long a resolved URL is reused.
+     */
+    private static final long TTL = 3 * 24 * 60 * 60 * 1000L;
+
+    /**
+     * The maximum number of people loaded in a single API call.
+     */
+    private static final int LOAD_CHUNK_SIZE = 100;
+
+    /**
+     * The maximum number of IDs in a single query to the cache.
+     */
+    private static final int QUERY_CHUNK_SIZE = 500;
+
+    private static final long CONNECT_TIMEOUT_SECONDS = 5;
+    private static final long LOAD_TIMEOUT_SECONDS = 30;
+
+    private final GoogleApiClient mApiClient;
+
+    /**
+     * Set when the API client fails to connect, so that we don't try again in the same sync.
+     */
+    private boolean mConnectionFailed;
+
+    public AvatarResolver(Context context) {
+        mApiClient = new GoogleApiClient.Builder(context)
+                .addApi(Plus.API)
+                .addScope(Plus.SCOPE_PLUS_LOGIN)
+                .addScope(Plus.SCOPE_PLUS_PROFILE)
+                .build();
+    }
+
+    /**
+     * Allows the API client to connect again after a failure. Called at the start of each sync.
+     */
+    public void reset() {
+        mConnectionFailed = false;
+    }
+
+    /**
+     * Fills {@link Table.Attendee#IMAGE_URL} of the rows. The rows whose URL can't be resolved
+     * are left without it, so that the URL already saved in the database is kept.
+     *
+     * @param provider The provider with the cache
+     * @param rows     The attendees
+     */
+    public void fill(ContentProviderClient provider, ArrayList<ContentValues> rows)
+            throws RemoteException {
+        HashMap<String, ArrayList<ContentValues>> rowsByPlusId = new HashMap<>();
+        for (ContentValues values : rows) {
+            String plusId = values.getAsString(Table.Attendee.PLUSID);
+            if (TextUtils.isEmpty(plusId)) {
+                values.putNull(Table.Attendee.IMAGE_URL);
+                continue;
+            }
+            if (!rowsByPlusId.containsKey(plusId)) {
+                rowsByPlusId.put(plusId, new ArrayList<ContentValues>());
+            }
+            rowsByPlusId.get(plusId).add(values);
+        }
+        if (rowsByPlusId.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        HashMap<String, String> imageUrls = loadCached(provider, rowsByPlusId.keySet(), now);
+        ArrayList<String> missing = new ArrayList<>();
+        for (String plusId : rowsByPlusId.keySet()) {
+            if (!imageUrls.containsKey(plusId)) {
+                missing.add(plusId);
+            }
+        }
+        if (!missing.isEmpty() && connect()) {
+            for (int start = 0; start < missing.size(); start += LOAD_CHUNK_SIZE) {
+                List<String> chunk =
+                        missing.subList(start, Math.min(start + LOAD_CHUNK_SIZE, missing.size()));
+                HashMap<String, String> resolved = resolve(chunk);
+                if (resolved != null) {
+                    save(provider, resolved, now);
+                    imageUrls.putAll(resolved);
+                }
+            }
+        }
+        Log.d(TAG, (rowsByPlusId.size() - missing.size()) + " avatar(s) cached, " +
+                missing.size() + " looked up.");
+        for (String plusId : imageUrls.keySet()) {
+            String imageUrl = imageUrls.get(plusId);
+            for (ContentValues values : rowsByPlusId.get(plusId)) {
+                values.put(Table.Attendee.IMAGE_URL, imageUrl);
+            }
+        }
+    }
+
+    /**
+     * Loads the URLs that have not expired from the cache.
+     *
+     * @return The URL for each Google+ ID, which is null if the person has no image.
+     */
+    private static HashMap<String, String> loadCached(ContentProviderClient provider,
+                                                      Iterable<String> plusIds, long now)
+            throws RemoteException {
+        HashMap<String, String> imageUrls = new HashMap<>();
+        ArrayList<String> ids = new ArrayList<>();
+        for (String plusId : plusIds) {
+            ids.add(plusId);
+        }
+        for (int start = 0; start < ids.size(); start += QUERY_CHUNK_SIZE) {
+            List<String> chunk = ids.subList(start, Math.min(start + QUERY_CHUNK_SIZE, ids.size()));
+            String[] placeholders = new String[chunk.size()];
+            Arrays.fill(placeholders, "?");
+            ArrayList<String> selectionArgs = new ArrayList<>(chunk);
+            selectionArgs.add(String.valueOf(now - TTL));
+            Cursor cursor = null;
+            try {
+                cursor = provider.query(Table.AVATAR.getBaseUri(), new String[]{
+                                Table.Avatar.PLUSID,
+                                Table.Avatar.IMAGE_URL,
+                        }, Table.Avatar.PLUSID + " IN (" + TextUtils.join(", ", placeholders) +
+                                ") AND " + Table.Avatar.RESOLVED + " > ?",
+                        selectionArgs.toArray(new String[selectionArgs.size()]), null);
+                while (cursor.moveToNext()) {
+                    imageUrls.put(cursor.getString(0), cursor.getString(1));
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+        return imageUrls;
+    }
+
+    /**
+     * Looks up the URLs with the API.
+     *
+     * @return The URL for each Google+ ID, which is null if the person has no image, or null if
+     * the lookup failed.
+     */
+    private HashMap<String, String> resolve(List<String> plusIds) {
+        People.LoadPeopleResult result = Plus.PeopleApi.load(mApiClient, plusIds)
+                .await(LOAD_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        if (!result.getStatus().isSuccess()) {
+            Log.e(TAG, "Cannot load people: " + result.getStatus());
+            return null;
+        }
+        HashMap<String, String> imageUrls = new HashMap<>();
+        for (String plusId : plusIds) {
+            imageUrls.put(plusId, null);
+        }
+        PersonBuffer personBuffer = result.getPersonBuffer();
+        if (personBuffer != null) {
+            try {
+                for (Person person : personBuffer) {
+                    if (person.hasImage()) {
+                        imageUrls.put(extractId(person.getUrl()), person.getImage().getUrl());
+                    }
+                }
+            } finally {
+                personBuffer.close();
+            }
+        }
+        return imageUrls;
+    }
+
+    private static void save(ContentProviderClient provider, HashMap<String, String> imageUrls,
+                             long now) throws RemoteException {
+        ContentValues[] valuesArray = new ContentValues[imageUrls.size()];
+        int i = 0;
+        for (String plusId : imageUrls.keySet()) {
+            ContentValues values = new ContentValues();
+            values.put(Table.Avatar.PLUSID, plusId);
+            values.put(Table.Avatar.IMAGE_URL, imageUrls.get(plusId));
+            values.put(Table.Avatar.RESOLVED, now);
+            valuesArray[i++] = values;
+        }
+        provider.bulkInsert(Table.AVATAR.getBaseUri(), valuesArray);
+    }
+
+    /**
+     * Connects the API client unless it is already connected.
+     *
+     * @return True if the API client is connected.
+     */
+    private boolean connect() {
+        if (mApiClient.isConnected()) {
+            return true;
+        }
+        if (mConnectionFailed) {
+            return false;
+        }
+        ConnectionResult result =
+                mApiClient.blockingConnect(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        if (!result.isSuccess()) {
+            Log.e(TAG, "Cannot connect to Google Play services: " + result);
+            mConnectionFailed = true;
+            return false;
+        }
+        return true;
+    }
+
+    private static String extractId(String profileUrl) {
+        return profileUrl.substring(profileUrl.lastIndexOf('/') + 1);
+    }
+
+}
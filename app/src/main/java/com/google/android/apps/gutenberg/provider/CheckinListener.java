@@ -0,0 +1,281 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg.provider;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Process;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import com.google.android.apps.gutenberg.util.GaeStreamRequest;
+import com.google.android.apps.gutenberg.util.SessionManager;
+import com.google.android.apps.gutenberg.util.ServerHost;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Listens for the check-ins made on other devices for an event, and applies them to the
+ * database as they arrive. This uses long-polling; the server holds each request until there
+ * are new check-ins or the timeout passes.
+ * <p/>
+ * The response has the following format:
+ * <pre>
+ * {"since": 1430000000, "checkins": [{"id": "...", "checkinTime": 1430000000}, ...]}
+ * </pre>
+ * where "since" is to be passed to the next request, and "checkinTime" is 0 for reverted
+ * check-ins.
+ */
+public class CheckinListener implements Runnable {
+
+    private static final String TAG = "CheckinListener";
+
+    /**
+     * The longest time the server holds a request.
+     */
+    private static final int POLL_TIMEOUT_SECONDS = 60;
+
+    private static final int READ_TIMEOUT = (POLL_TIMEOUT_SECONDS + 30) * 1000;
+    private static final long MIN_BACKOFF = 1000;
+    private static final long MAX_BACKOFF = 60 * 1000;
+
+    private final Context mContext;
+    private final String mAccountName;
+    private volatile String mAuthToken;
+    private final String mEventId;
+
+    private volatile boolean mStopped;
+    private volatile GaeStreamRequest mRequest;
+    private Thread mThread;
+
+    /**
+     * @param context     The context
+     * @param accountName The name of the account
+     * @param authToken   The auth token of the account
+     * @param eventId     The event to listen to
+     */
+    public CheckinListener(Context context, String accountName, String authToken,
+                           String eventId) {
+        mContext = context.getApplicationContext();
+        mAccountName = accountName;
+        mAuthToken = authToken;
+        mEventId = eventId;
+    }
+
+    /**
+     * @return The name of the account that this listener uses.
+     */
+    public String getAccountName() {
+        return mAccountName;
+    }
+
+    /**
+     * Replaces the auth token. It is used the next time a session cookie is fetched.
+     */
+    public void setAuthToken(String authToken) {
+        mAuthToken = authToken;
+    }
+
+    /**
+     * Starts listening on a background thread.
+     */
+    public void start() {
+        mThread = new Thread(this, TAG);
+        mThread.start();
+    }
+
+    /**
+     * Stops listening, aborting the request in progress.
+     */
+    public void stop() {
+        mStopped = true;
+        if (mThread != null) {
+            mThread.interrupt();
+        }
+        GaeStreamRequest request = mRequest;
+        if (request != null) {
+            request.abort();
+        }
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        long since = getWatermark();
+        long backoff = MIN_BACKOFF;
+        while (!mStopped) {
+            try {
+                String cookie = SessionManager.getCookie(mContext, mAccountName, mAuthToken);
+                if (cookie == null) {
+                    throw new IOException("No session cookie.");
+                }
+                since = poll(cookie, since);
+                backoff = MIN_BACKOFF;
+                continue;
+            } catch (IOException | RuntimeException e) {
+                if (mStopped) {
+                    break;
+                }
+                if (SessionManager.isSessionExpired(e)) {
+                    SessionManager.invalidate(mContext);
+                }
+                Log.e(TAG, "Error listening for checkins of " + mEventId, e);
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                break;
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
+        }
+    }
+
+    /**
+     * Waits for the next check-ins and applies them.
+     *
+     * @return The value of "since" for the next request.
+     */
+    private long poll(String cookie, long since) throws IOException {
+        String url = ServerHost.get() + "/v1/event/" + mEventId + "/checkins/poll?since=" + since +
+                "&timeout=" + POLL_TIMEOUT_SECONDS;
+        GaeStreamRequest request = new GaeStreamRequest(url, cookie);
+        request.setReadTimeout(READ_TIMEOUT);
+        mRequest = request;
+        JsonReader reader = null;
+        try {
+            InputStream in = request.open();
+            if (in == null) {
+                return since;
+            }
+            reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+            long nextSince = since;
+            int count = 0;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("since".equals(name)) {
+                    nextSince = reader.nextLong();
+                } else if ("checkins".equals(name) && reader.peek() != JsonToken.NULL) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        readCheckin(reader);
+                        ++count;
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (count > 0) {
+                Log.d(TAG, count + " remote checkin(s) for " + mEventId);
+            }
+            return nextSince;
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+            request.close();
+            mRequest = null;
+        }
+    }
+
+    private void readCheckin(JsonReader reader) throws IOException {
+        String attendeeId = null;
+        long checkinTime = 0;
+        long version = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+            } else if ("id".equals(name)) {
+                attendeeId = reader.nextString();
+            } else if ("checkinTime".equals(name)) {
+                checkinTime = reader.nextLong();
+            } else if ("version".equals(name)) {
+                version = reader.nextLong();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (attendeeId != null) {
+            apply(attendeeId, checkinTime, version);
+        }
+    }
+
+    /**
+     * Applies a check-in to the attendee, unless the attendee has a newer check-in. Without a
+     * version, the check-in is applied unless the attendee has a local check-in waiting to be
+     * uploaded or already has the same check-in.
+     */
+    private void apply(String attendeeId, long checkinTime, long version) {
+        ContentValues values = new ContentValues();
+        if (version != 0) {
+            boolean checkedIn = checkinTime != 0;
+            if (checkedIn) {
+                values.put(Table.Attendee.CHECKIN, checkinTime);
+            } else {
+                values.putNull(Table.Attendee.CHECKIN);
+            }
+            values.put(Table.Attendee.CHECKIN_VERSION, version);
+            mContext.getContentResolver().update(Table.ATTENDEE.getItemUri(mEventId, attendeeId),
+                    values, CheckinMerge.getSelection(checkedIn),
+                    CheckinMerge.getSelectionArgs(version, checkedIn));
+            return;
+        }
+        String selection = SyncAdapter.SELECTION_NOT_IN_OUTBOX + " AND ";
+        String[] selectionArgs;
+        if (checkinTime == 0) {
+            values.putNull(Table.Attendee.CHECKIN);
+            selection += Table.Attendee.CHECKIN + " IS NOT NULL";
+            selectionArgs = new String[]{mEventId};
+        } else {
+            values.put(Table.Attendee.CHECKIN, checkinTime);
+            selection += "(" + Table.Attendee.CHECKIN + " IS NULL OR " +
+                    Table.Attendee.CHECKIN + " != ?)";
+            selectionArgs = new String[]{mEventId, String.valueOf(checkinTime)};
+        }
+        ContentResolver resolver = mContext.getContentResolver();
+        resolver.update(Table.ATTENDEE.getItemUri(mEventId, attendeeId), values, selection,
+                selectionArgs);
+    }
+
+    /**
+     * @return The watermark of the attendees downloaded by the last sync, or 0.
+     */
+    private long getWatermark() {
+        Cursor cursor = null;
+        try {
+            cursor = mContext.getContentResolver().query(Table.EVENT_SYNC.getBaseUri(),
+                    new String[]{Table.EventSync.WATERMARK},
+                    Table.EventSync.EVENT_ID + " = ?", new String[]{mEventId}, null);
+            return cursor != null && cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+}
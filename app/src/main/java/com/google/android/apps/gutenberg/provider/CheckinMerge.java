@@ -0,0 +1,76 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg.provider;
+
+/**
+ * The rule for merging the check-in states of an attendee written on different devices.
+ * <p/>
+ * Each check-in or revert carries a version, which is the time of the server in milliseconds
+ * (estimated with {@link com.google.android.apps.gutenberg.util.ServerClock}) when it was made.
+ * The state with the higher version wins; when the versions are the same, a check-in wins over
+ * a revert. The rule doesn't depend on the order in which the states arrive, so all the devices
+ * and the server converge to the same state.
+ */
+public class CheckinMerge {
+
+    private static final String VERSION_IS_OLDER = "(" + Table.Attendee.CHECKIN_VERSION +
+            " IS NULL OR " + Table.Attendee.CHECKIN_VERSION + " < ?)";
+
+    private static final String VERSION_IS_SAME_AND_REVERTED = "(" +
+            Table.Attendee.CHECKIN_VERSION + " = ? AND " + Table.Attendee.CHECKIN + " IS NULL)";
+
+    private CheckinMerge() {
+    }
+
+    /**
+     * Checks whether an incoming state wins over the current one.
+     *
+     * @param version          The version of the incoming state
+     * @param checkedIn        True if the incoming state is checked in
+     * @param currentVersion   The version of the current state, or 0 if none
+     * @param currentCheckedIn True if the current state is checked in
+     * @return True if the incoming state should replace the current one.
+     */
+    public static boolean wins(long version, boolean checkedIn, long currentVersion,
+                               boolean currentCheckedIn) {
+        return version > currentVersion ||
+                (version == currentVersion && checkedIn && !currentCheckedIn);
+    }
+
+    /**
+     * Gets the selection for the attendees whose current state loses to an incoming state.
+     * Use with {@link #getSelectionArgs(long, boolean)}.
+     *
+     * @param checkedIn True if the incoming state is checked in
+     * @return The selection
+     */
+    public static String getSelection(boolean checkedIn) {
+        if (checkedIn) {
+            return "(" + VERSION_IS_OLDER + " OR " + VERSION_IS_SAME_AND_REVERTED + ")";
+        }
+        return VERSION_IS_OLDER;
+    }
+
+    /**
+     * @see #getSelection(boolean)
+     */
+    public static String[] getSelectionArgs(long version, boolean checkedIn) {
+        String v = String.valueOf(version);
+        return checkedIn ? new String[]{v, v} : new String[]{v};
+    }
+
+}
@@ -18,6 +18,9 @@ package com.google.android.apps.gutenberg.provider;
 
 /**
  * Encapsulates a database column.
+ * <p/>
+ * Columns added to an existing table are added to the databases of the installed apps by
+ * {@link GutenbergDatabaseHelper}, so they have to be nullable or have a default value.
  */
 public class Column {
 
@@ -64,4 +67,14 @@ public class Column {
         this.defaultValue = defaultValue;
     }
 
+    /**
+     * @return The definition of this column for "CREATE TABLE" and "ALTER TABLE".
+     */
+    public String getDefinition() {
+        if (defaultValue == null) {
+            return name + " " + type;
+        }
+        return name + " " + type + " DEFAULT " + defaultValue;
+    }
+
 }
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg.provider;
+
+import java.util.LinkedHashMap;
+
+/**
+ * Declares the triggers that keep {@link Table#EVENT_STATS} up to date with the attendees and
+ * the outbox. The counters are updated by the same statements that change the rows, so they are
+ * always consistent with them and cost nothing to read.
+ */
+public class EventStatsTriggers {
+
+    /**
+     * The prefix of the names of the triggers.
+     */
+    public static final String PREFIX = "event_stats_";
+
+    private EventStatsTriggers() {
+    }
+
+    /**
+     * Get the triggers that maintain the counters.
+     *
+     * @return The "CREATE TRIGGER" statements by the names of the triggers, in the same form as
+     * SQLite keeps them in sqlite_master.
+     */
+    public static LinkedHashMap<String, String> getTriggerSql() {
+        String stats = Table.EVENT_STATS.getBaseName();
+        String attendees = Table.ATTENDEE.getBaseName();
+        String outbox = Table.OUTBOX.getBaseName();
+        String checkedIn = " IS NOT NULL";
+        LinkedHashMap<String, String> triggers = new LinkedHashMap<>();
+        // ON CONFLICT REPLACE doesn't fire the delete triggers for the rows it replaces, so they
+        // are subtracted before the insert
+        String replaced = "FROM " + attendees + " WHERE " + Table.Attendee.EVENT_ID +
+                " = new." + Table.Attendee.EVENT_ID + " AND " + Table.Attendee.ID + " = new." +
+                Table.Attendee.ID;
+        triggers.put(PREFIX + "attendee_replace", "CREATE TRIGGER " + PREFIX +
+                "attendee_replace BEFORE INSERT ON " + attendees + " BEGIN UPDATE " + stats +
+                " SET " + Table.EventStats.TOTAL + " = " + Table.EventStats.TOTAL +
+                " - (SELECT COUNT(*) " + replaced + "), " + Table.EventStats.CHECKED_IN + " = " +
+                Table.EventStats.CHECKED_IN + " - (SELECT COUNT(" + Table.Attendee.CHECKIN + ") " +
+                replaced + ") WHERE " + Table.EventStats.EVENT_ID + " = new." +
+                Table.Attendee.EVENT_ID + "; END");
+        triggers.put(PREFIX + "attendee_insert", "CREATE TRIGGER " + PREFIX +
+                "attendee_insert AFTER INSERT ON " + attendees + " BEGIN " +
+                getInsertRowSql(Table.Attendee.EVENT_ID) + " UPDATE " + stats + " SET " +
+                Table.EventStats.TOTAL + " = " + Table.EventStats.TOTAL + " + 1, " +
+                Table.EventStats.CHECKED_IN + " = " + Table.EventStats.CHECKED_IN + " + (new." +
+                Table.Attendee.CHECKIN + checkedIn + ") WHERE " + Table.EventStats.EVENT_ID +
+                " = new." + Table.Attendee.EVENT_ID + "; END");
+        // The IDs of the attendees are never updated
+        triggers.put(PREFIX + "attendee_update", "CREATE TRIGGER " + PREFIX +
+                "attendee_update AFTER UPDATE OF " + Table.Attendee.CHECKIN + " ON " + attendees +
+                " BEGIN UPDATE " + stats + " SET " + Table.EventStats.CHECKED_IN + " = " +
+                Table.EventStats.CHECKED_IN + " + (new." + Table.Attendee.CHECKIN + checkedIn +
+                ") - (old." + Table.Attendee.CHECKIN + checkedIn + ") WHERE " +
+                Table.EventStats.EVENT_ID + " = new." + Table.Attendee.EVENT_ID + "; END");
+        triggers.put(PREFIX + "attendee_delete", "CREATE TRIGGER " + PREFIX +
+                "attendee_delete AFTER DELETE ON " + attendees + " BEGIN UPDATE " + stats +
+                " SET " + Table.EventStats.TOTAL + " = " + Table.EventStats.TOTAL + " - 1, " +
+                Table.EventStats.CHECKED_IN + " = " + Table.EventStats.CHECKED_IN + " - (old." +
+                Table.Attendee.CHECKIN + checkedIn + ") WHERE " + Table.EventStats.EVENT_ID +
+                " = old." + Table.Attendee.EVENT_ID + "; END");
+        triggers.put(PREFIX + "outbox_replace", "CREATE TRIGGER " + PREFIX +
+                "outbox_replace BEFORE INSERT ON " + outbox + " BEGIN UPDATE " + stats + " SET " +
+                Table.EventStats.PENDING + " = " + Table.EventStats.PENDING +
+                " - (SELECT COUNT(*) FROM " + outbox + " WHERE " + Table.Outbox.EVENT_ID +
+                " = new." + Table.Outbox.EVENT_ID + " AND " + Table.Outbox.ATTENDEE_ID +
+                " = new." + Table.Outbox.ATTENDEE_ID + ") WHERE " + Table.EventStats.EVENT_ID +
+                " = new." + Table.Outbox.EVENT_ID + "; END");
+        triggers.put(PREFIX + "outbox_insert", "CREATE TRIGGER " + PREFIX +
+                "outbox_insert AFTER INSERT ON " + outbox + " BEGIN " +
+                getInsertRowSql(Table.Outbox.EVENT_ID) + " UPDATE " + stats + " SET " +
+                Table.EventStats.PENDING + " = " + Table.EventStats.PENDING + " + 1 WHERE " +
+                Table.EventStats.EVENT_ID + " = new." + Table.Outbox.EVENT_ID + "; END");
+        triggers.put(PREFIX + "outbox_delete", "CREATE TRIGGER " + PREFIX +
+                "outbox_delete AFTER DELETE ON " + outbox + " BEGIN UPDATE " + stats + " SET " +
+                Table.EventStats.PENDING + " = " + Table.EventStats.PENDING + " - 1 WHERE " +
+                Table.EventStats.EVENT_ID + " = old." + Table.Outbox.EVENT_ID + "; END");
+        return triggers;
+    }
+
+    /**
+     * Get the statements that recount everything from the attendees and the outbox.
+     *
+     * @return The statements, in order
+     */
+    public static String[] getPopulateSql() {
+        String stats = Table.EVENT_STATS.getBaseName();
+        String outbox = Table.OUTBOX.getBaseName();
+        String columns = " (" + Table.EventStats.EVENT_ID + ", " + Table.EventStats.TOTAL + ", " +
+                Table.EventStats.CHECKED_IN + ", " + Table.EventStats.PENDING + ")";
+        return new String[]{
+                "DELETE FROM " + stats,
+                "INSERT INTO " + stats + columns + " SELECT " + Table.Attendee.EVENT_ID +
+                        ", COUNT(*), COUNT(" + Table.Attendee.CHECKIN + "), 0 FROM " +
+                        Table.ATTENDEE.getBaseName() + " GROUP BY " + Table.Attendee.EVENT_ID,
+                "INSERT OR IGNORE INTO " + stats + columns + " SELECT DISTINCT " +
+                        Table.Outbox.EVENT_ID + ", 0, 0, 0 FROM " + outbox,
+                "UPDATE " + stats + " SET " + Table.EventStats.PENDING +
+                        " = (SELECT COUNT(*) FROM " + outbox + " WHERE " + outbox + "." +
+                        Table.Outbox.EVENT_ID + " = " + stats + "." + Table.EventStats.EVENT_ID +
+                        ")",
+        };
+    }
+
+    /**
+     * Get the statement in a trigger that creates the row of the event if there is none yet.
+     *
+     * @param eventId The column of the event ID in the changed table
+     */
+    private static String getInsertRowSql(String eventId) {
+        return "INSERT OR IGNORE INTO " + Table.EVENT_STATS.getBaseName() + " (" +
+                Table.EventStats.EVENT_ID + ", " + Table.EventStats.TOTAL + ", " +
+                Table.EventStats.CHECKED_IN + ", " + Table.EventStats.PENDING + ") VALUES (new." +
+                eventId + ", 0, 0, 0);";
+    }
+
+}
@@ -16,9 +16,23 @@
 
 package com.google.android.apps.gutenberg.provider;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * The database of Gutenberg.
@@ -28,15 +42,69 @@ public class GutenbergDatabaseHelper extends SQLiteOpenHelper {
     /**
      * The filename for the database file.
      */
-    private static final String DATABASE_NAME = "gutenberg.db";
+    static final String DATABASE_NAME = "gutenberg.db";
+
+    private static final String TAG = "GutenbergDatabaseHelper";
+
+    /**
+     * The page cache of a connection, in pages (4KB each on Android).
+     */
+    private static final int CACHE_SIZE = 1000;
+
+    /**
+     * The write-ahead log is checkpointed after it grows to this many pages. Android sets this
+     * much lower, which makes a large sync checkpoint over and over.
+     */
+    private static final int WAL_AUTOCHECKPOINT = 1000;
+
+    /**
+     * The write-ahead log file is truncated to this size after a checkpoint.
+     */
+    private static final int JOURNAL_SIZE_LIMIT = 1024 * 1024;
 
     /**
      * The current version of the database
      */
-    private static final int DATABASE_VERSION = 6;
+    private static final int DATABASE_VERSION = 18;
 
     public GutenbergDatabaseHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        // Let the lists read while a sync is writing
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        configure(db, db.isWriteAheadLoggingEnabled());
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        // onConfigure is not called before Jelly Bean
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            configure(db, !db.isReadOnly() && db.enableWriteAheadLogging());
+        }
+    }
+
+    /**
+     * Tunes the connection. This applies to the primary connection, which does all the writing.
+     */
+    private static void configure(SQLiteDatabase db, boolean writeAheadLogging) {
+        if (writeAheadLogging) {
+            // A crash can lose the last transactions but not corrupt the database, so there is
+            // no need to sync on every commit
+            db.execSQL("PRAGMA synchronous = NORMAL");
+            // These return the new values, so they cannot be run with execSQL
+            DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint = " + WAL_AUTOCHECKPOINT,
+                    null);
+            DatabaseUtils.longForQuery(db, "PRAGMA journal_size_limit = " + JOURNAL_SIZE_LIMIT,
+                    null);
+        }
+        db.execSQL("PRAGMA temp_store = MEMORY");
+        db.execSQL("PRAGMA cache_size = " + CACHE_SIZE);
     }
 
     @Override
@@ -44,29 +112,278 @@ public class GutenbergDatabaseHelper extends SQLiteOpenHelper {
         for (Table table : Table.values()) {
             db.execSQL(table.getCreateSql());
         }
+        updateIndexes(db);
+        updateSearchIndexes(db);
+        updateEventStats(db);
     }
 
+    /**
+     * Upgrades the database without losing the local data, like the check-ins and notes that are
+     * not uploaded yet. The tables are first brought up to their declarations in {@link Table},
+     * and then the data is moved as each version requires, in order.
+     */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        if (oldVersion < 2 && 2 <= newVersion) {
-            db.execSQL("ALTER TABLE " + Table.ATTENDEE.getBaseName() + " ADD " +
-                    Table.Attendee.IMAGE_URL + " TEXT;");
-        } else if (oldVersion < 3 && 3 <= newVersion) {
-            db.execSQL("DROP TABLE " + Table.ATTENDEE.getBaseName() + ";");
-            db.execSQL(Table.EVENT.getCreateSql());
-            db.execSQL(Table.ATTENDEE.getCreateSql());
-        } else if (oldVersion < 4 && 4 <= newVersion) {
-            db.execSQL("DROP TABLE " + Table.ATTENDEE.getBaseName() + ";");
-            db.execSQL("DROP TABLE " + Table.EVENT.getBaseName() + ";");
-            db.execSQL(Table.EVENT.getCreateSql());
-            db.execSQL(Table.ATTENDEE.getCreateSql());
-        } else if (oldVersion < 5 && 5 <= newVersion) {
-            db.execSQL("DROP TABLE " + Table.ATTENDEE.getBaseName() + ";");
-            db.execSQL(Table.ATTENDEE.getCreateSql());
-        } else if (oldVersion < 6 && 6 <= newVersion) {
-            db.execSQL("DROP TABLE " + Table.ATTENDEE.getBaseName() + ";");
-            db.execSQL(Table.ATTENDEE.getCreateSql());
+        long start = SystemClock.elapsedRealtime();
+        updateTables(db);
+        if (oldVersion < 9 && 9 <= newVersion) {
+            // Move the pending check-ins into the outbox
+            db.execSQL("INSERT INTO " + Table.OUTBOX.getBaseName() + " (" +
+                    Table.Outbox.EVENT_ID + ", " + Table.Outbox.ATTENDEE_ID + ", " +
+                    Table.Outbox.REVERT + ", " + Table.Outbox.CREATED + ", " +
+                    Table.Outbox.ATTEMPTS + ", " + Table.Outbox.NEXT_ATTEMPT + ") SELECT " +
+                    Table.Attendee.EVENT_ID + ", " + Table.Attendee.ID + ", " +
+                    Table.Attendee.CHECKIN + " IS NULL, " + System.currentTimeMillis() +
+                    ", 0, 0 FROM " + Table.ATTENDEE.getBaseName() + " WHERE " +
+                    Table.Attendee.CHECKIN_MODIFIED + ";");
+        }
+        if (oldVersion < 12 && 12 <= newVersion) {
+            // Local check-ins used to be saved in milliseconds
+            db.execSQL("UPDATE " + Table.ATTENDEE.getBaseName() + " SET " +
+                    Table.Attendee.CHECKIN + " = " + Table.Attendee.CHECKIN + " / 1000 WHERE " +
+                    Table.Attendee.CHECKIN + " > 100000000000;");
+        }
+        updateIndexes(db);
+        updateSearchIndexes(db);
+        updateEventStats(db);
+        Log.d(TAG, "Upgraded the database from version " + oldVersion + " to " + newVersion +
+                " in " + (SystemClock.elapsedRealtime() - start) + "ms");
+    }
+
+    /**
+     * Makes the tables in the database match the ones declared in {@link Table}, keeping their
+     * rows. Missing tables are created, and missing columns are added. A table whose unique
+     * columns have changed is rebuilt, copying the rows over. Tables and columns that are no
+     * longer declared are left as they are.
+     */
+    private static void updateTables(SQLiteDatabase db) {
+        for (Table table : Table.values()) {
+            Set<String> columns = getColumnNames(db, "table_info", table.getBaseName());
+            if (columns.isEmpty()) {
+                Log.d(TAG, "Creating table " + table.getBaseName());
+                db.execSQL(table.getCreateSql());
+                continue;
+            }
+            if (!hasUniqueColumns(db, table.getBaseName(), table.getIdColumns())) {
+                rebuildTable(db, table, columns);
+                continue;
+            }
+            for (Column column : table.getColumns()) {
+                if (!columns.contains(column.name)) {
+                    Log.d(TAG, "Adding column " + table.getBaseName() + "." + column.name);
+                    db.execSQL("ALTER TABLE " + table.getBaseName() + " ADD " +
+                            column.getDefinition() + ";");
+                }
+            }
+        }
+    }
+
+    /**
+     * Recreates a table from its declaration and copies the rows of the old one. The rows that
+     * violate the new constraints are skipped.
+     *
+     * @param columns The names of the columns in the old table
+     */
+    private static void rebuildTable(SQLiteDatabase db, Table table, Set<String> columns) {
+        Log.d(TAG, "Rebuilding table " + table.getBaseName());
+        String oldName = table.getBaseName() + "_old";
+        db.execSQL("ALTER TABLE " + table.getBaseName() + " RENAME TO " + oldName + ";");
+        db.execSQL(table.getCreateSql());
+        ArrayList<String> common = new ArrayList<>();
+        for (Column column : table.getColumns()) {
+            if (columns.contains(column.name)) {
+                common.add(column.name);
+            }
+        }
+        String names = TextUtils.join(", ", common);
+        db.execSQL("INSERT OR IGNORE INTO " + table.getBaseName() + " (" + names + ") SELECT " +
+                names + " FROM " + oldName + ";");
+        db.execSQL("DROP TABLE " + oldName + ";");
+    }
+
+    /**
+     * Gets the names of the columns in a table or an index.
+     *
+     * @param pragma "table_info" or "index_info"
+     * @param name   The name of the table or the index
+     * @return The names of the columns, or an empty set if there is no such table or index.
+     */
+    private static Set<String> getColumnNames(SQLiteDatabase db, String pragma, String name) {
+        HashSet<String> names = new HashSet<>();
+        Cursor cursor = db.rawQuery("PRAGMA " + pragma + "(" + name + ")", null);
+        try {
+            int index = cursor.getColumnIndexOrThrow("name");
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(index));
+            }
+        } finally {
+            cursor.close();
         }
+        return names;
+    }
+
+    /**
+     * Checks whether the table has a UNIQUE constraint on exactly the columns.
+     */
+    private static boolean hasUniqueColumns(SQLiteDatabase db, String table, String[] columns) {
+        HashSet<String> expected = new HashSet<>(Arrays.asList(columns));
+        // The indexes for UNIQUE constraints are created automatically and have no SQL
+        Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'index' AND " +
+                "tbl_name = ? AND sql IS NULL", new String[]{table});
+        try {
+            while (cursor.moveToNext()) {
+                if (expected.equals(getColumnNames(db, "index_info", cursor.getString(0)))) {
+                    return true;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return false;
+    }
+
+    /**
+     * Makes the secondary indexes in the database match the ones declared in {@link Table}.
+     * Indexes no longer declared or declared differently are dropped, and the missing ones are
+     * created. Partial indexes are skipped where SQLite doesn't support them.
+     */
+    private static void updateIndexes(SQLiteDatabase db) {
+        boolean partialSupported = isPartialIndexSupported(db);
+        HashMap<String, String> existing = new HashMap<>();
+        Cursor cursor = db.rawQuery("SELECT name, sql FROM sqlite_master WHERE type = 'index'" +
+                " AND sql IS NOT NULL", null);
+        try {
+            while (cursor.moveToNext()) {
+                existing.put(cursor.getString(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        HashMap<String, String> declared = new HashMap<>();
+        for (Table table : Table.values()) {
+            for (Index index : table.getIndexes()) {
+                if (!index.isPartial() || partialSupported) {
+                    declared.put(index.name, index.getCreateSql(table.getBaseName()));
+                }
+            }
+        }
+        for (String name : existing.keySet()) {
+            if (!existing.get(name).equals(declared.get(name))) {
+                Log.d(TAG, "Dropping index " + name);
+                db.execSQL("DROP INDEX " + name);
+            }
+        }
+        for (String name : declared.keySet()) {
+            if (!declared.get(name).equals(existing.get(name))) {
+                Log.d(TAG, "Creating index " + name);
+                db.execSQL(declared.get(name));
+            }
+        }
+    }
+
+    /**
+     * Makes the full-text indexes in the database match the ones declared in {@link Table}. An
+     * index that is missing, declared differently, or has lost its triggers (rebuilding the table
+     * drops them) is recreated and filled with the rows of the table. The indexes fold all the
+     * letters where SQLite supports it.
+     */
+    private static void updateSearchIndexes(SQLiteDatabase db) {
+        String tokenizer = isTokenizerSupported(db, SearchIndex.TOKENIZER_UNICODE61) ?
+                SearchIndex.TOKENIZER_UNICODE61 : null;
+        for (Table table : Table.values()) {
+            SearchIndex index = table.getSearchIndex();
+            if (index == null) {
+                continue;
+            }
+            HashMap<String, String> triggers = index.getTriggerSql(table.getBaseName(),
+                    table.getIdColumns());
+            // The triggers of the index are named after it
+            HashMap<String, String> existing = getTriggers(db, index.name + "_");
+            boolean created = DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM sqlite_master" +
+                    " WHERE name = ? AND sql = ?", new String[]{index.name,
+                    index.getCreateSql(tokenizer)}) > 0;
+            if (created && triggers.equals(existing)) {
+                continue;
+            }
+            Log.d(TAG, "Rebuilding search index " + index.name);
+            for (String name : existing.keySet()) {
+                db.execSQL("DROP TRIGGER " + name);
+            }
+            db.execSQL("DROP TABLE IF EXISTS " + index.name);
+            db.execSQL(index.getCreateSql(tokenizer));
+            db.execSQL(index.getPopulateSql(table.getBaseName()));
+            for (String sql : triggers.values()) {
+                db.execSQL(sql);
+            }
+        }
+    }
+
+    /**
+     * Makes the triggers of {@link Table#EVENT_STATS} match {@link EventStatsTriggers}. If they
+     * don't, the counters may have missed changes, so they are counted again.
+     */
+    private static void updateEventStats(SQLiteDatabase db) {
+        HashMap<String, String> triggers = EventStatsTriggers.getTriggerSql();
+        HashMap<String, String> existing = getTriggers(db, EventStatsTriggers.PREFIX);
+        if (triggers.equals(existing)) {
+            return;
+        }
+        Log.d(TAG, "Recounting " + Table.EVENT_STATS.getBaseName());
+        for (String name : existing.keySet()) {
+            db.execSQL("DROP TRIGGER " + name);
+        }
+        for (String sql : EventStatsTriggers.getPopulateSql()) {
+            db.execSQL(sql);
+        }
+        for (String sql : triggers.values()) {
+            db.execSQL(sql);
+        }
+    }
+
+    /**
+     * Gets the triggers in the database whose names start with the prefix.
+     *
+     * @return The "CREATE TRIGGER" statements by the names of the triggers
+     */
+    private static HashMap<String, String> getTriggers(SQLiteDatabase db, String prefix) {
+        HashMap<String, String> triggers = new HashMap<>();
+        Cursor cursor = db.rawQuery("SELECT name, sql FROM sqlite_master WHERE type = 'trigger'" +
+                " AND substr(name, 1, ?) = ?", new String[]{String.valueOf(prefix.length()),
+                prefix});
+        try {
+            while (cursor.moveToNext()) {
+                triggers.put(cursor.getString(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return triggers;
+    }
+
+    /**
+     * Tries creating an FTS table with the tokenizer, as it depends on how SQLite is built as
+     * well as its version.
+     */
+    private static boolean isTokenizerSupported(SQLiteDatabase db, String tokenizer) {
+        try {
+            db.execSQL("CREATE VIRTUAL TABLE temp.tokenizer_probe USING fts4(tokenize=" +
+                    tokenizer + ")");
+        } catch (SQLiteException e) {
+            return false;
+        }
+        db.execSQL("DROP TABLE temp.tokenizer_probe");
+        return true;
+    }
+
+    /**
+     * Partial indexes are supported since SQLite 3.8.0 (Android 5.0).
+     */
+    private static boolean isPartialIndexSupported(SQLiteDatabase db) {
+        String[] version = DatabaseUtils.stringForQuery(db, "SELECT sqlite_version()", null)
+                .split("\\.");
+        int major = Integer.parseInt(version[0]);
+        int minor = version.length > 1 ? Integer.parseInt(version[1]) : 0;
+        return major > 3 || (major == 3 && minor >= 8);
     }
 
 }
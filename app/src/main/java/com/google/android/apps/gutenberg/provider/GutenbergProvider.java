@@ -16,9 +16,12 @@
 
 package com.google.android.apps.gutenberg.provider;
 
+import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderResult;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
@@ -27,32 +30,147 @@ import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.RemoteException;
 import android.support.annotation.NonNull;
 
-import com.google.android.apps.gutenberg.util.ArrayUtils;
-
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class GutenbergProvider extends ContentProvider {
 
+    /**
+     * Method for {@link #call(String, String, Bundle)} to merge rows into the table named by the
+     * argument. The rows are passed in the extras as {@link #EXTRA_ROWS}. Only the columns that
+     * differ from the existing rows are written, and the columns not included in the rows are
+     * kept as they are.
+     */
+    public static final String METHOD_MERGE = "merge";
+
+    /**
+     * {@link ArrayList} of {@link ContentValues} to be merged by {@link #METHOD_MERGE}.
+     */
+    public static final String EXTRA_ROWS = "rows";
+
+    /**
+     * The number of rows inserted by {@link #METHOD_MERGE}.
+     */
+    public static final String RESULT_INSERTED = "inserted";
+
+    /**
+     * The number of rows updated by {@link #METHOD_MERGE}.
+     */
+    public static final String RESULT_UPDATED = "updated";
+
+    /**
+     * The number of rows left unchanged by {@link #METHOD_MERGE}.
+     */
+    public static final String RESULT_UNCHANGED = "unchanged";
+
+    /**
+     * The maximum number of rows passed in a call of {@link #METHOD_MERGE}. The rows are sent in a
+     * single binder transaction, which has to stay well below the 1 MB buffer of the process.
+     */
+    public static final int MAX_MERGE_ROWS = 100;
+
+    /**
+     * When a batch changes more items of a table than this, the group that they share is notified
+     * instead of each of them.
+     */
+    private static final int MAX_NOTIFICATIONS_PER_TABLE = 8;
+
     private static final UriMatcher MATCHER = new UriMatcher(UriMatcher.NO_MATCH);
 
     static {
         for (Table table : Table.values()) {
-            MATCHER.addURI(Table.AUTHORITY, table.getBaseName(), table.getBaseCode());
-            MATCHER.addURI(Table.AUTHORITY, table.getItemName(), table.getItemCode());
+            for (int i = 0; i <= table.getIdColumns().length; i++) {
+                MATCHER.addURI(Table.AUTHORITY, table.getPathPattern(i), table.getCode(i));
+            }
+            if (table.getSearchIndex() != null) {
+                for (int i = 0; i < table.getIdColumns().length; i++) {
+                    MATCHER.addURI(Table.AUTHORITY, table.getSearchPathPattern(i),
+                            table.getSearchCode(i));
+                }
+            }
         }
     }
 
     private GutenbergDatabaseHelper mHelper;
 
+    /**
+     * The URIs changed by the batch in progress on each thread. They are notified when the
+     * transaction is committed, so that the observers re-query once for a batch.
+     */
+    private final ThreadLocal<Set<Uri>> mPendingChanges = new ThreadLocal<>();
+
+    /**
+     * The URIs of {@link Table#EVENT_STATS} by the event IDs, for the notifications. There are only
+     * a few events.
+     */
+    private final ConcurrentHashMap<String, Uri> mEventStatsUris = new ConcurrentHashMap<>();
+
+    /**
+     * The caches of the compiled statements for writing, one for each binder thread.
+     */
+    private final ThreadLocal<StatementCache> mStatementCaches =
+            new ThreadLocal<StatementCache>() {
+                @Override
+                protected StatementCache initialValue() {
+                    StatementCache cache = new StatementCache(mHelper.getWritableDatabase());
+                    synchronized (mAllStatementCaches) {
+                        closeStatementCaches(false);
+                        mAllStatementCaches.add(cache);
+                    }
+                    return cache;
+                }
+            };
+
+    /**
+     * All the caches in {@link #mStatementCaches}, so that their statements are closed when their
+     * threads are gone.
+     */
+    private final ArrayList<StatementCache> mAllStatementCaches = new ArrayList<>();
+
     @Override
     public boolean onCreate() {
         mHelper = new GutenbergDatabaseHelper(getContext());
         return true;
     }
 
+    /**
+     * @return The cache of the compiled statements for writing, for the current thread.
+     */
+    private StatementCache getStatementCache() {
+        return mStatementCaches.get();
+    }
+
+    /**
+     * Closes the caches of the threads that are gone, or all of them.
+     */
+    private void closeStatementCaches(boolean all) {
+        synchronized (mAllStatementCaches) {
+            for (int i = mAllStatementCaches.size() - 1; i >= 0; i--) {
+                StatementCache cache = mAllStatementCaches.get(i);
+                if (all || !cache.isOwnerAlive()) {
+                    cache.close();
+                    mAllStatementCaches.remove(i);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        closeStatementCaches(true);
+        mHelper.close();
+    }
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
@@ -60,25 +178,32 @@ public class GutenbergProvider extends ContentProvider {
         if (match == null) {
             throw new IllegalArgumentException("Illegal URI: " + uri);
         }
-        if (match.isItem()) {
-            List<String> segments = uri.getPathSegments();
-            if (segments == null || segments.isEmpty()) {
-                throw new IllegalArgumentException("Malformed URI: " + uri);
-            }
-            List<String> ids = segments.subList(1, segments.size());
-            String selectionById = match.getTable().getSelectionById();
-            String[] selectionArgsById = ids.toArray(new String[ids.size()]);
-            if (selection == null) {
-                selection = selectionById;
-                selectionArgs = selectionArgsById;
-            } else {
-                selection = selectionById + " " + selection;
-                selectionArgs = ArrayUtils.concat(selectionArgsById, selectionArgs);
+        selectionArgs = getSelectionArgs(match, uri, selectionArgs);
+        selection = match.getSelection(selection);
+        List<String> after = uri.getQueryParameters(Table.PARAMETER_AFTER);
+        if (!after.isEmpty()) {
+            if (match.isSearch()) {
+                throw new IllegalArgumentException("Search results cannot be paged by key: " +
+                        uri);
             }
+            String keyset = getKeysetSelection(sortOrder, after.size());
+            selection = selection == null ? keyset : "(" + selection + ") AND " + keyset;
+            selectionArgs = getKeysetSelectionArgs(selectionArgs, after);
         }
+        String limit = getLimit(uri);
         SQLiteDatabase db = mHelper.getReadableDatabase();
-        Cursor cursor = db.query(match.getTable().getBaseName(), projection, selection,
-                selectionArgs, null, null, sortOrder);
+        Cursor cursor;
+        if (match.isSearch()) {
+            cursor = search(db, match.getTable(), uri.getQueryParameter(Table.PARAMETER_QUERY),
+                    projection, selection, selectionArgs, sortOrder, limit);
+            // The search results change with the items that they are searched from
+            List<String> segments = uri.getPathSegments();
+            List<String> ids = segments.subList(2, segments.size());
+            uri = match.getTable().getItemUri(ids.toArray(new String[ids.size()]));
+        } else {
+            cursor = db.query(match.getTable().getBaseName(), projection, selection,
+                    selectionArgs, null, null, sortOrder, limit);
+        }
         Context context = getContext();
         if (context == null) {
             return null;
@@ -87,6 +212,120 @@ public class GutenbergProvider extends ContentProvider {
         return cursor;
     }
 
+    /**
+     * Queries the rows that match the text with the full-text index of the table. The rows are
+     * ranked by the first column of the index where all the words of the text match, and then
+     * sorted by the sort order.
+     */
+    private static Cursor search(SQLiteDatabase db, Table table, String text,
+                                 String[] projection, String selection, String[] selectionArgs,
+                                 String sortOrder, String limit) {
+        SearchIndex index = table.getSearchIndex();
+        String matchAll = SearchIndex.toMatchQuery(text, null);
+        if (matchAll == null) {
+            // Nothing to search for
+            return db.query(table.getBaseName(), projection, "0", null, null, null, null);
+        }
+        ArrayList<String> args = new ArrayList<>();
+        args.add(matchAll);
+        if (selectionArgs != null) {
+            args.addAll(Arrays.asList(selectionArgs));
+        }
+        StringBuilder orderBy = new StringBuilder("CASE");
+        for (int i = 0; i < index.columns.length - 1; i++) {
+            orderBy.append(" WHEN ").append(index.getMatchSelection())
+                    .append(" THEN ").append(i);
+            args.add(SearchIndex.toMatchQuery(text, index.columns[i]));
+        }
+        orderBy.append(" ELSE ").append(index.columns.length - 1).append(" END");
+        if (sortOrder != null) {
+            orderBy.append(", ").append(sortOrder);
+        }
+        return db.query(index.getMatchTables(table.getBaseName()), projection, selection,
+                args.toArray(new String[args.size()]), null, null, orderBy.toString(), limit);
+    }
+
+    /**
+     * Gets the LIMIT clause for {@link Table#PARAMETER_LIMIT} and {@link Table#PARAMETER_OFFSET}.
+     * The offset is only valid with the limit.
+     *
+     * @return The clause, or null for all the rows.
+     */
+    private static String getLimit(Uri uri) {
+        String limit = uri.getQueryParameter(Table.PARAMETER_LIMIT);
+        String offset = uri.getQueryParameter(Table.PARAMETER_OFFSET);
+        try {
+            if (limit == null) {
+                if (offset != null) {
+                    throw new IllegalArgumentException("Offset without limit: " + uri);
+                }
+                return null;
+            }
+            if (offset == null) {
+                return String.valueOf(Long.parseLong(limit));
+            }
+            return Long.parseLong(offset) + ", " + Long.parseLong(limit);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Illegal limit: " + uri, e);
+        }
+    }
+
+    /**
+     * Gets the selection for the rows after a key in the sort order, for
+     * {@link Table#PARAMETER_AFTER}. For the key (a, b), this is "a >= ? AND (a > ? OR b > ?)"
+     * rather than the equivalent with OR at the top, so that an index on the columns can be used
+     * for the range.
+     *
+     * @param sortOrder The sort order; a list of the columns, each optionally with ASC or DESC
+     * @param keyCount  The number of the values in the key
+     * @return The selection, with the arguments made by
+     * {@link #getKeysetSelectionArgs(String[], List)}.
+     */
+    private static String getKeysetSelection(String sortOrder, int keyCount) {
+        String[] terms = sortOrder == null ? new String[0] : sortOrder.split(",");
+        if (terms.length != keyCount) {
+            throw new IllegalArgumentException("The key doesn't match the sort order: " +
+                    sortOrder);
+        }
+        StringBuilder selection = new StringBuilder();
+        for (int i = 0; i < terms.length; i++) {
+            String[] words = terms[i].trim().split("\\s+");
+            if (words.length > 2) {
+                throw new IllegalArgumentException("Cannot page by: " + terms[i]);
+            }
+            boolean descending = words.length == 2 && words[1].equalsIgnoreCase("DESC");
+            String column = words[0];
+            if (i == terms.length - 1) {
+                selection.append(column).append(descending ? " < ?" : " > ?");
+            } else {
+                selection.append(column).append(descending ? " <= ? AND (" : " >= ? AND (")
+                        .append(column).append(descending ? " < ? OR " : " > ? OR ");
+            }
+        }
+        for (int i = 1; i < terms.length; i++) {
+            selection.append(")");
+        }
+        return selection.toString();
+    }
+
+    /**
+     * Appends the arguments for {@link #getKeysetSelection(String, int)} to the selection
+     * arguments.
+     */
+    private static String[] getKeysetSelectionArgs(String[] selectionArgs, List<String> after) {
+        ArrayList<String> args = new ArrayList<>();
+        if (selectionArgs != null) {
+            args.addAll(Arrays.asList(selectionArgs));
+        }
+        for (int i = 0; i < after.size(); i++) {
+            args.add(after.get(i));
+            if (i != after.size() - 1) {
+                args.add(after.get(i));
+            }
+        }
+        return args.toArray(new String[args.size()]);
+    }
+
     @Override
     public String getType(Uri uri) {
         MatchResult match = Table.match(MATCHER.match(uri));
@@ -99,56 +338,46 @@ public class GutenbergProvider extends ContentProvider {
     @Override
     public Uri insert(Uri uri, ContentValues values) {
         MatchResult match = Table.match(MATCHER.match(uri));
-        if (match == null || match.isItem()) {
+        if (match == null || match.getIdCount() > 0 || match.isSearch()) {
             throw new IllegalArgumentException("Illegal URI: " + uri);
         }
-        SQLiteDatabase db = mHelper.getWritableDatabase();
-        long id = db.insert(match.getTable().getBaseName(), null, values);
+        long id = getStatementCache().insert(match.getTable(), values);
         Uri newUri = ContentUris.withAppendedId(uri, id);
-        Context context = getContext();
-        context.getContentResolver().notifyChange(uri, null);
+        if (id != -1) {
+            notifyChange(getItemUri(match.getTable(), values));
+        }
         return newUri;
     }
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
         MatchResult match = Table.match(MATCHER.match(uri));
-        if (match == null) {
+        if (match == null || match.isSearch()) {
             throw new IllegalArgumentException("Illegal URI: " + uri);
         }
+        selectionArgs = getSelectionArgs(match, uri, selectionArgs);
+        selection = match.getSelection(selection);
         SQLiteDatabase db = mHelper.getWritableDatabase();
         int count = db.delete(match.getTable().getBaseName(), selection, selectionArgs);
-        Context context = getContext();
-        context.getContentResolver().notifyChange(uri, null);
+        if (count > 0) {
+            notifyChange(uri);
+        }
         return count;
     }
 
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
         MatchResult match = Table.match(MATCHER.match(uri));
-        if (match == null) {
+        if (match == null || match.isSearch()) {
             throw new IllegalArgumentException("Illegal URI: " + uri);
         }
-        if (match.isItem()) {
-            List<String> segments = uri.getPathSegments();
-            if (segments == null || segments.isEmpty()) {
-                throw new IllegalArgumentException("Malformed URI: " + uri);
-            }
-            List<String> ids = segments.subList(1, segments.size());
-            String selectionById = match.getTable().getSelectionById();
-            String[] selectionArgsById = ids.toArray(new String[ids.size()]);
-            if (selection == null) {
-                selection = selectionById;
-                selectionArgs = selectionArgsById;
-            } else {
-                selection = selectionById + " " + selection;
-                selectionArgs = ArrayUtils.concat(selectionArgsById, selectionArgs);
-            }
+        selectionArgs = getSelectionArgs(match, uri, selectionArgs);
+        selection = match.getSelection(selection);
+        int count = getStatementCache().update(match.getTable(), values, selection,
+                selectionArgs);
+        if (count > 0) {
+            notifyChange(uri);
         }
-        SQLiteDatabase db = mHelper.getWritableDatabase();
-        int count = db.update(match.getTable().getBaseName(), values, selection, selectionArgs);
-        Context context = getContext();
-        context.getContentResolver().notifyChange(uri, null);
         return count;
     }
 
@@ -157,35 +386,413 @@ public class GutenbergProvider extends ContentProvider {
             @NonNull ArrayList<ContentProviderOperation> operations)
             throws OperationApplicationException {
         SQLiteDatabase db = mHelper.getWritableDatabase();
+        boolean outermost = beginBatch();
+        boolean successful = false;
         db.beginTransaction();
         try {
             ContentProviderResult[] result = super.applyBatch(operations);
             db.setTransactionSuccessful();
+            successful = true;
             return result;
         } finally {
-            db.endTransaction();
+            try {
+                db.endTransaction();
+            } finally {
+                endBatch(outermost, successful);
+            }
+        }
+    }
+
+    /**
+     * Merges the rows into the table with {@link #METHOD_MERGE}, in calls of up to
+     * {@link #MAX_MERGE_ROWS} rows.
+     *
+     * @param resolver The {@link ContentResolver}
+     * @param table    The table
+     * @param rows     The rows to merge; each of them must contain the ID columns of the table
+     * @return The result with {@link #RESULT_INSERTED}, {@link #RESULT_UPDATED}, and
+     * {@link #RESULT_UNCHANGED}.
+     */
+    public static Bundle merge(ContentResolver resolver, Table table, List<ContentValues> rows) {
+        Bundle result = new Bundle();
+        for (int start = 0; start < rows.size(); start += MAX_MERGE_ROWS) {
+            addMergeResult(result, resolver.call(table.getBaseUri(), METHOD_MERGE,
+                    table.getBaseName(), newMergeExtras(rows, start)));
+        }
+        return result;
+    }
+
+    /**
+     * Merges the rows into the table with {@link #METHOD_MERGE}, in calls of up to
+     * {@link #MAX_MERGE_ROWS} rows.
+     *
+     * @param provider The {@link ContentProviderClient}
+     * @param table    The table
+     * @param rows     The rows to merge; each of them must contain the ID columns of the table
+     * @return The result with {@link #RESULT_INSERTED}, {@link #RESULT_UPDATED}, and
+     * {@link #RESULT_UNCHANGED}.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+    public static Bundle merge(ContentProviderClient provider, Table table,
+                               List<ContentValues> rows) throws RemoteException {
+        Bundle result = new Bundle();
+        for (int start = 0; start < rows.size(); start += MAX_MERGE_ROWS) {
+            addMergeResult(result, provider.call(METHOD_MERGE, table.getBaseName(),
+                    newMergeExtras(rows, start)));
+        }
+        return result;
+    }
+
+    private static Bundle newMergeExtras(List<ContentValues> rows, int start) {
+        Bundle extras = new Bundle();
+        extras.putParcelableArrayList(EXTRA_ROWS, new ArrayList<>(
+                rows.subList(start, Math.min(start + MAX_MERGE_ROWS, rows.size()))));
+        return extras;
+    }
+
+    private static void addMergeResult(Bundle result, Bundle call) {
+        for (String key : new String[]{RESULT_INSERTED, RESULT_UPDATED, RESULT_UNCHANGED}) {
+            result.putInt(key, result.getInt(key) + call.getInt(key));
+        }
+    }
+
+    @Override
+    public Bundle call(@NonNull String method, String arg, Bundle extras) {
+        if (METHOD_MERGE.equals(method)) {
+            Table table = Table.fromBaseName(arg);
+            if (table == null) {
+                throw new IllegalArgumentException("Illegal table: " + arg);
+            }
+            ArrayList<ContentValues> rows = extras.getParcelableArrayList(EXTRA_ROWS);
+            return merge(table, rows);
+        }
+        return super.call(method, arg, extras);
+    }
+
+    private Bundle merge(Table table, ArrayList<ContentValues> rows) {
+        int inserted = 0;
+        int updated = 0;
+        int unchanged = 0;
+        String[] idColumns = table.getIdColumns();
+        String selectionById = table.getSelectionById();
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        StatementCache statements = getStatementCache();
+        boolean outermost = beginBatch();
+        boolean successful = false;
+        db.beginTransaction();
+        try {
+            for (ContentValues values : rows) {
+                String[] ids = new String[idColumns.length];
+                for (int i = 0; i < idColumns.length; i++) {
+                    ids[i] = values.getAsString(idColumns[i]);
+                }
+                LinkedHashSet<String> projection = new LinkedHashSet<>(values.keySet());
+                if (table == Table.ATTENDEE) {
+                    projection.add(Table.Attendee.CHECKIN);
+                    projection.add(Table.Attendee.CHECKIN_VERSION);
+                    projection.add(Table.Attendee.CHECKIN_MODIFIED);
+                }
+                Cursor cursor = db.query(table.getBaseName(),
+                        projection.toArray(new String[projection.size()]),
+                        selectionById, ids, null, null, null);
+                try {
+                    if (!cursor.moveToFirst()) {
+                        statements.insert(table, values);
+                        notifyChange(table.getItemUri(ids));
+                        ++inserted;
+                        continue;
+                    }
+                    ContentValues changes = new ContentValues(values);
+                    for (String key : values.keySet()) {
+                        if (isEqual(cursor, cursor.getColumnIndexOrThrow(key), values.get(key))) {
+                            changes.remove(key);
+                        }
+                    }
+                    if (table == Table.ATTENDEE) {
+                        mergeCheckin(cursor, values, changes);
+                    }
+                    if (changes.size() == 0) {
+                        ++unchanged;
+                    } else {
+                        statements.update(table, changes, selectionById, ids);
+                        notifyChange(table.getItemUri(ids));
+                        ++updated;
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            try {
+                db.endTransaction();
+            } finally {
+                endBatch(outermost, successful);
+            }
+        }
+        Bundle result = new Bundle();
+        result.putInt(RESULT_INSERTED, inserted);
+        result.putInt(RESULT_UPDATED, updated);
+        result.putInt(RESULT_UNCHANGED, unchanged);
+        return result;
+    }
+
+    /**
+     * Removes the check-in from the changes if it loses to the current one. See
+     * {@link CheckinMerge}.
+     */
+    private static void mergeCheckin(Cursor cursor, ContentValues values,
+                                     ContentValues changes) {
+        int checkinIndex = cursor.getColumnIndexOrThrow(Table.Attendee.CHECKIN);
+        int versionIndex = cursor.getColumnIndexOrThrow(Table.Attendee.CHECKIN_VERSION);
+        Long version = values.getAsLong(Table.Attendee.CHECKIN_VERSION);
+        boolean wins;
+        if (version != null) {
+            Long checkin = values.getAsLong(Table.Attendee.CHECKIN);
+            wins = CheckinMerge.wins(version, checkin != null && checkin != 0,
+                    cursor.getLong(versionIndex), cursor.getLong(checkinIndex) != 0);
+        } else {
+            // Without versions, keep the local check-in until it is uploaded
+            wins = 0 == cursor.getInt(
+                    cursor.getColumnIndexOrThrow(Table.Attendee.CHECKIN_MODIFIED));
+        }
+        if (!wins) {
+            changes.remove(Table.Attendee.CHECKIN);
+            changes.remove(Table.Attendee.CHECKIN_VERSION);
+        }
+    }
+
+    /**
+     * Checks whether the column at the cursor holds the value.
+     */
+    private static boolean isEqual(Cursor cursor, int index, Object value) {
+        if (value == null || cursor.isNull(index)) {
+            return value == null && cursor.isNull(index);
         }
+        if (value instanceof Boolean) {
+            return (cursor.getInt(index) != 0) == (Boolean) value;
+        } else if (value instanceof Double || value instanceof Float) {
+            return cursor.getDouble(index) == ((Number) value).doubleValue();
+        } else if (value instanceof Number) {
+            return cursor.getLong(index) == ((Number) value).longValue();
+        } else if (value instanceof byte[]) {
+            return Arrays.equals(cursor.getBlob(index), (byte[]) value);
+        }
+        return value.toString().equals(cursor.getString(index));
     }
 
     @Override
     public int bulkInsert(Uri uri, @NonNull ContentValues[] valuesArray) {
         SQLiteDatabase db = mHelper.getWritableDatabase();
+        boolean outermost = beginBatch();
+        boolean successful = false;
         db.beginTransaction();
         try {
             MatchResult match = Table.match(MATCHER.match(uri));
-            if (match == null || match.isItem()) {
+            if (match == null || match.getIdCount() > 0 || match.isSearch()) {
                 throw new IllegalArgumentException("Invalid URI.");
             }
+            StatementCache statements = getStatementCache();
             for (ContentValues values : valuesArray) {
-                db.insert(match.getTable().getBaseName(), null, values);
+                if (statements.insert(match.getTable(), values) != -1) {
+                    notifyChange(getItemUri(match.getTable(), values));
+                }
             }
-            Context context = getContext();
-            context.getContentResolver().notifyChange(uri, null);
             db.setTransactionSuccessful();
+            successful = true;
             return valuesArray.length;
         } finally {
-            db.endTransaction();
+            try {
+                db.endTransaction();
+            } finally {
+                endBatch(outermost, successful);
+            }
+        }
+    }
+
+    /**
+     * Prepends the IDs in the URI to the selection arguments. See
+     * {@link MatchResult#getSelection(String)}.
+     */
+    private static String[] getSelectionArgs(MatchResult match, Uri uri,
+                                             String[] selectionArgs) {
+        int idCount = match.getIdCount();
+        if (idCount == 0) {
+            return selectionArgs;
+        }
+        List<String> segments = uri.getPathSegments();
+        // The IDs follow the table name, and "search" before it for a search URI
+        int offset = match.isSearch() ? 2 : 1;
+        if (segments.size() != idCount + offset) {
+            throw new IllegalArgumentException("Malformed URI: " + uri);
+        }
+        int extraCount = selectionArgs == null ? 0 : selectionArgs.length;
+        String[] args = new String[idCount + extraCount];
+        for (int i = 0; i < idCount; i++) {
+            args[i] = segments.get(i + offset);
+        }
+        if (extraCount > 0) {
+            System.arraycopy(selectionArgs, 0, args, idCount, extraCount);
+        }
+        return args;
+    }
+
+    /**
+     * @return The URI of the item for the row, or the URI of the table if the row doesn't have
+     * all the ID columns.
+     */
+    private static Uri getItemUri(Table table, ContentValues values) {
+        String[] idColumns = table.getIdColumns();
+        String[] ids = new String[idColumns.length];
+        for (int i = 0; i < idColumns.length; i++) {
+            ids[i] = values.getAsString(idColumns[i]);
+            if (ids[i] == null) {
+                return table.getBaseUri();
+            }
+        }
+        return table.getItemUri(ids);
+    }
+
+    /**
+     * Notifies the change of the URI, or defers it to the end of the batch if this thread is in
+     * one.
+     */
+    private void notifyChange(Uri uri) {
+        Uri statsUri = getEventStatsUri(uri);
+        Set<Uri> pending = mPendingChanges.get();
+        if (pending != null) {
+            pending.add(uri);
+            if (statsUri != null) {
+                pending.add(statsUri);
+            }
+        } else {
+            ContentResolver resolver = getContext().getContentResolver();
+            resolver.notifyChange(uri, null);
+            if (statsUri != null) {
+                resolver.notifyChange(statsUri, null);
+            }
+        }
+    }
+
+    /**
+     * @return The URI of {@link Table#EVENT_STATS} whose counters change with the URI, or null.
+     * The counters are updated by triggers, so they change without being written here.
+     */
+    private Uri getEventStatsUri(Uri uri) {
+        // The segments are kept by the URI, and have usually been parsed for the selection
+        List<String> segments = uri.getPathSegments();
+        String name = segments.get(0);
+        if (!name.equals(Table.ATTENDEE.getBaseName()) &&
+                !name.equals(Table.OUTBOX.getBaseName())) {
+            return null;
+        }
+        // Both are identified by the event first
+        if (segments.size() > 1) {
+            String eventId = segments.get(1);
+            Uri statsUri = mEventStatsUris.get(eventId);
+            if (statsUri == null) {
+                statsUri = Table.EVENT_STATS.getItemUri(eventId);
+                mEventStatsUris.put(eventId, statsUri);
+            }
+            return statsUri;
+        }
+        return Table.EVENT_STATS.getBaseUri();
+    }
+
+    /**
+     * Starts deferring the change notifications of this thread.
+     *
+     * @return True if this starts the outermost batch, which has to be ended with
+     * {@link #endBatch(boolean, boolean)}.
+     */
+    private boolean beginBatch() {
+        if (mPendingChanges.get() != null) {
+            return false;
+        }
+        mPendingChanges.set(new LinkedHashSet<Uri>());
+        return true;
+    }
+
+    /**
+     * Ends a batch. When the outermost batch is committed, its changes are notified, once for each
+     * URI.
+     *
+     * @param outermost  The return value of {@link #beginBatch()}
+     * @param successful True if the transaction of the batch has been committed
+     */
+    private void endBatch(boolean outermost, boolean successful) {
+        if (!outermost) {
+            return;
+        }
+        Set<Uri> pending = mPendingChanges.get();
+        mPendingChanges.remove();
+        if (!successful) {
+            return;
+        }
+        ContentResolver resolver = getContext().getContentResolver();
+        for (Uri uri : coalesce(pending)) {
+            resolver.notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Reduces the URIs to notify. The items of a table changed together are notified as the
+     * group they share, like the attendees of an event, or the whole table. URIs under another
+     * one in the list are dropped, as notifying a URI reaches the observers of the URIs under it.
+     */
+    private static List<Uri> coalesce(Set<Uri> uris) {
+        // Group by table
+        HashMap<String, ArrayList<List<String>>> tables = new HashMap<>();
+        for (Uri uri : uris) {
+            List<String> segments = uri.getPathSegments();
+            ArrayList<List<String>> paths = tables.get(segments.get(0));
+            if (paths == null) {
+                paths = new ArrayList<>();
+                tables.put(segments.get(0), paths);
+            }
+            paths.add(segments);
+        }
+        ArrayList<Uri> result = new ArrayList<>();
+        for (ArrayList<List<String>> paths : tables.values()) {
+            if (paths.size() > MAX_NOTIFICATIONS_PER_TABLE) {
+                List<String> common = paths.get(0);
+                for (List<String> path : paths) {
+                    int length = 0;
+                    while (length < common.size() && length < path.size() &&
+                            common.get(length).equals(path.get(length))) {
+                        ++length;
+                    }
+                    common = common.subList(0, length);
+                }
+                paths.clear();
+                paths.add(common);
+            }
+            for (List<String> path : paths) {
+                if (!hasAncestor(path, paths)) {
+                    Uri.Builder builder = new Uri.Builder()
+                            .scheme(ContentResolver.SCHEME_CONTENT)
+                            .authority(Table.AUTHORITY);
+                    for (String segment : path) {
+                        builder.appendPath(segment);
+                    }
+                    result.add(builder.build());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return True if any of the paths is a proper prefix of the path.
+     */
+    private static boolean hasAncestor(List<String> path, List<List<String>> paths) {
+        for (List<String> other : paths) {
+            if (other.size() < path.size() && path.subList(0, other.size()).equals(other)) {
+                return true;
+            }
         }
+        return false;
     }
 
 }
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg.provider;
+
+import android.text.TextUtils;
+
+/**
+ * Encapsulates a secondary index of a table.
+ */
+public class Index {
+
+    /**
+     * The name of this index.
+     */
+    public final String name;
+
+    /**
+     * The columns of this index, in order.
+     */
+    public final String[] columns;
+
+    /**
+     * The condition for the rows included in this index, or null to include all the rows.
+     */
+    public final String where;
+
+    /**
+     * Creates a new instance of {@link Index}.
+     *
+     * @param name    The name of this index
+     * @param columns The columns of this index
+     */
+    public Index(String name, String... columns) {
+        this(name, null, columns);
+    }
+
+    /**
+     * Creates a new instance of {@link Index} for a partial index.
+     *
+     * @param name    The name of this index
+     * @param where   The condition for the rows included in this index. Only the queries with the
+     *                same condition can use the index.
+     * @param columns The columns of this index
+     */
+    public Index(String name, String where, String[] columns) {
+        this.name = name;
+        this.where = where;
+        this.columns = columns;
+    }
+
+    /**
+     * @return True if this is a partial index.
+     */
+    public boolean isPartial() {
+        return where != null;
+    }
+
+    /**
+     * Get the "CREATE INDEX" statement for this index.
+     *
+     * @param table The name of the table
+     * @return The "CREATE INDEX" statement as a {@link java.lang.String}, in the same form as
+     * SQLite keeps it in sqlite_master.
+     */
+    public String getCreateSql(String table) {
+        StringBuilder buffer = new StringBuilder("CREATE INDEX ");
+        buffer.append(name);
+        buffer.append(" ON ");
+        buffer.append(table);
+        buffer.append(" (");
+        buffer.append(TextUtils.join(", ", columns));
+        buffer.append(")");
+        if (where != null) {
+            buffer.append(" WHERE ");
+            buffer.append(where);
+        }
+        return buffer.toString();
+    }
+
+}
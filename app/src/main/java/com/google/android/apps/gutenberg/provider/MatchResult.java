@@ -16,31 +16,65 @@
 
 package com.google.android.apps.gutenberg.provider;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
- * Represents a matching status of {@link GutenbergProvider} URIs.
+ * Represents a matching status of {@link GutenbergProvider} URIs. The instances are created once
+ * for each URI pattern and shared by all the threads, so they are immutable except for the
+ * thread-safe cache of the selections; see {@link Table#match(int)}.
  */
 public class MatchResult {
 
+    /**
+     * The maximum number of selections kept by {@link #getSelection(String)}.
+     */
+    private static final int MAX_SELECTIONS = 16;
+
     /**
      * The {@link Table} that matches.
      */
-    private Table mTable;
+    private final Table mTable;
+
+    /**
+     * The number of IDs in the URI: 0 for the whole table, the number of the ID columns for an
+     * item, and anything between for a group of items.
+     */
+    private final int mIdCount;
+
+    /**
+     * The selection for the IDs in the URI.
+     */
+    private final String mSelectionById;
+
+    /**
+     * The mime-type of this match.
+     */
+    private final String mType;
+
+    /**
+     * True if the URI is for a full-text search; see {@link Table#getSearchUri(String, String...)}.
+     */
+    private final boolean mSearch;
 
     /**
-     * True if the match corresponds to an item (rather than the whole table).
+     * The selections narrowed down to the IDs, by the selections given with the URIs. They are
+     * mostly constants, so they are built only once.
      */
-    private boolean mIsItem;
+    private final ConcurrentHashMap<String, String> mSelections = new ConcurrentHashMap<>();
 
-    public MatchResult(Table table, boolean isItem) {
+    public MatchResult(Table table, int idCount, boolean search) {
         mTable = table;
-        mIsItem = isItem;
+        mIdCount = idCount;
+        mSearch = search;
+        mSelectionById = table.getSelectionById(idCount);
+        mType = isItem() ? table.getItemType() : table.getBaseType();
     }
 
     /**
      * @return The mime-type of this match.
      */
     public String getType() {
-        return isItem() ? getTable().getItemType() : getTable().getBaseType();
+        return mType;
     }
 
     /**
@@ -54,7 +88,52 @@ public class MatchResult {
      * @return True if the match corresponds to an item, rather than the whole table
      */
     public boolean isItem() {
-        return mIsItem;
+        return mIdCount == mTable.getIdColumns().length;
+    }
+
+    /**
+     * @return True if the URI is for a full-text search.
+     */
+    public boolean isSearch() {
+        return mSearch;
+    }
+
+    /**
+     * @return The number of IDs in the URI.
+     */
+    public int getIdCount() {
+        return mIdCount;
+    }
+
+    /**
+     * @return The selection for the IDs in the URI, with an argument for each of them.
+     */
+    public String getSelectionById() {
+        return mSelectionById;
+    }
+
+    /**
+     * Narrows the selection down to the IDs in the URI.
+     *
+     * @param selection The selection given with the URI, or null
+     * @return The selection with an argument for each of the IDs, followed by those of the given
+     * selection.
+     */
+    public String getSelection(String selection) {
+        if (mIdCount == 0) {
+            return selection;
+        }
+        if (selection == null) {
+            return mSelectionById;
+        }
+        String result = mSelections.get(selection);
+        if (result == null) {
+            result = mSelectionById + " AND (" + selection + ")";
+            if (mSelections.size() < MAX_SELECTIONS) {
+                mSelections.put(selection, result);
+            }
+        }
+        return result;
     }
 
 }
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg.provider;
+
+import android.database.Cursor;
+
+/**
+ * A check-in or a revert in {@link Table#OUTBOX}.
+ */
+public class OutboxEntry {
+
+    public static final String[] PROJECTION = {
+            Table.Outbox._ID,
+            Table.Outbox.EVENT_ID,
+            Table.Outbox.ATTENDEE_ID,
+            Table.Outbox.REVERT,
+            Table.Outbox.ATTEMPTS,
+            Table.Outbox.VERSION,
+    };
+
+    public final long id;
+    public final String eventId;
+    public final String attendeeId;
+    public final boolean revert;
+    public final int attempts;
+    public final long version;
+
+    public OutboxEntry(Cursor cursor) {
+        id = cursor.getLong(cursor.getColumnIndexOrThrow(Table.Outbox._ID));
+        eventId = cursor.getString(cursor.getColumnIndexOrThrow(Table.Outbox.EVENT_ID));
+        attendeeId = cursor.getString(cursor.getColumnIndexOrThrow(Table.Outbox.ATTENDEE_ID));
+        revert = 0 != cursor.getInt(cursor.getColumnIndexOrThrow(Table.Outbox.REVERT));
+        attempts = cursor.getInt(cursor.getColumnIndexOrThrow(Table.Outbox.ATTEMPTS));
+        version = cursor.getLong(cursor.getColumnIndexOrThrow(Table.Outbox.VERSION));
+    }
+
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg.provider;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+import com.google.android.apps.gutenberg.GutenbergApplication;
+
+/**
+ * Requests a sync when a retry of the outbox is due, or right away when the device gets
+ * connected to the network. This receiver is only enabled while the outbox has check-ins.
+ */
+public class OutboxReceiver extends BroadcastReceiver {
+
+    public static final String ACTION_RETRY =
+            "com.google.android.apps.gutenberg.action.RETRY_OUTBOX";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        GutenbergApplication app = GutenbergApplication.from(context);
+        if (ACTION_RETRY.equals(intent.getAction())) {
+            app.requestSync(true);
+        } else if (ConnectivityManager.CONNECTIVITY_ACTION.equals(intent.getAction())) {
+            ConnectivityManager manager =
+                    (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            NetworkInfo info = manager.getActiveNetworkInfo();
+            if (info != null && info.isConnected()) {
+                // Don't wait for the backoff; the failures were likely caused by the network
+                app.requestSync(true, true);
+            }
+        }
+    }
+
+}
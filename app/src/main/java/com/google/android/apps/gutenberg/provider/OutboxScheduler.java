@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg.provider;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+
+/**
+ * Schedules the uploads of the check-ins in {@link Table#OUTBOX}.
+ */
+public class OutboxScheduler {
+
+    /**
+     * The delay before the first retry of a failed upload.
+     */
+    private static final long INITIAL_BACKOFF = 30 * 1000;
+
+    /**
+     * The longest delay between retries.
+     */
+    private static final long MAX_BACKOFF = 60 * 60 * 1000;
+
+    private OutboxScheduler() {
+    }
+
+    /**
+     * Calculates when to retry an upload that has failed.
+     *
+     * @param attempts The number of failed attempts so far, including the latest one
+     * @param now      The current time
+     * @return The time for the next attempt
+     */
+    public static long getNextAttempt(int attempts, long now) {
+        long backoff = INITIAL_BACKOFF << Math.min(Math.max(attempts - 1, 0), 20);
+        return now + Math.min(backoff, MAX_BACKOFF);
+    }
+
+    /**
+     * Schedules the next upload of the outbox, replacing the one previously scheduled.
+     *
+     * @param context     The context
+     * @param nextAttempt The time for the next upload, or 0 when the outbox is empty
+     */
+    public static void schedule(Context context, long nextAttempt) {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        PendingIntent operation = createRetryIntent(context);
+        if (nextAttempt == 0) {
+            alarmManager.cancel(operation);
+        } else {
+            // Entries that are already due were either added during the sync, in which case
+            // another sync has been requested, or skipped because of an error (such as an
+            // expired session) that retrying right away doesn't fix
+            alarmManager.set(AlarmManager.RTC,
+                    Math.max(nextAttempt, System.currentTimeMillis() + INITIAL_BACKOFF),
+                    operation);
+        }
+        setConnectivityReceiverEnabled(context, nextAttempt != 0);
+    }
+
+    /**
+     * Enables or disables {@link OutboxReceiver} so that the connectivity changes are only
+     * received while there are check-ins to upload.
+     */
+    public static void setConnectivityReceiverEnabled(Context context, boolean enabled) {
+        context.getPackageManager().setComponentEnabledSetting(
+                new ComponentName(context, OutboxReceiver.class),
+                enabled ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED :
+                        PackageManager.COMPONENT_ENABLED_STATE_DISABLED,
+                PackageManager.DONT_KILL_APP);
+    }
+
+    private static PendingIntent createRetryIntent(Context context) {
+        Intent intent = new Intent(context, OutboxReceiver.class);
+        intent.setAction(OutboxReceiver.ACTION_RETRY);
+        return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+}
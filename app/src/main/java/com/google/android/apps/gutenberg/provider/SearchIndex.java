@@ -0,0 +1,198 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg.provider;
+
+import android.provider.BaseColumns;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * Encapsulates a full-text index of a table. The index is an FTS4 table whose rows share the
+ * row IDs of the table, and triggers keep it in sync with the table, so that every write path
+ * updates it in the same transaction.
+ */
+public class SearchIndex {
+
+    /**
+     * The tokenizer that folds the case and removes the diacritics of all the letters, rather
+     * than only ASCII ones like the default "simple" tokenizer. SQLite supports it since 3.7.13,
+     * if it is built with it.
+     */
+    public static final String TOKENIZER_UNICODE61 = "unicode61";
+
+    /**
+     * The characters that separate the words for the "simple" tokenizer: all the ASCII
+     * characters except letters and digits.
+     */
+    private static final String ASCII_SEPARATORS =
+            "[\\x00-\\x2f\\x3a-\\x40\\x5b-\\x60\\x7b-\\x7f]+";
+
+    /**
+     * The name of the FTS table.
+     */
+    public final String name;
+
+    /**
+     * The columns of the table included in this index, from the most relevant one.
+     */
+    public final String[] columns;
+
+    /**
+     * Creates a new instance of {@link SearchIndex}.
+     *
+     * @param name    The name of the FTS table
+     * @param columns The columns to index, from the most relevant one
+     */
+    public SearchIndex(String name, String... columns) {
+        this.name = name;
+        this.columns = columns;
+    }
+
+    /**
+     * Get the "CREATE VIRTUAL TABLE" statement for the FTS table.
+     *
+     * @param tokenizer The tokenizer, or null for the default one
+     * @return The statement, in the same form as SQLite keeps it in sqlite_master.
+     */
+    public String getCreateSql(String tokenizer) {
+        return "CREATE VIRTUAL TABLE " + name + " USING fts4(" + TextUtils.join(", ", columns) +
+                (tokenizer == null ? "" : ", tokenize=" + tokenizer) + ")";
+    }
+
+    /**
+     * Get the triggers that keep the FTS table in sync with the table.
+     *
+     * @param table     The name of the table
+     * @param idColumns The unique columns of the table
+     * @return The "CREATE TRIGGER" statements by the names of the triggers, in the same form as
+     * SQLite keeps them in sqlite_master.
+     */
+    public LinkedHashMap<String, String> getTriggerSql(String table, String[] idColumns) {
+        String names = TextUtils.join(", ", columns);
+        StringBuilder values = new StringBuilder();
+        StringBuilder assignments = new StringBuilder();
+        for (String column : columns) {
+            if (values.length() > 0) {
+                values.append(", ");
+                assignments.append(", ");
+            }
+            values.append("new.").append(column);
+            assignments.append(column).append(" = new.").append(column);
+        }
+        StringBuilder conflict = new StringBuilder();
+        for (String column : idColumns) {
+            if (conflict.length() > 0) {
+                conflict.append(" AND ");
+            }
+            conflict.append(column).append(" = new.").append(column);
+        }
+        LinkedHashMap<String, String> triggers = new LinkedHashMap<>();
+        // ON CONFLICT REPLACE doesn't fire the delete trigger for the row it replaces
+        triggers.put(name + "_replace", "CREATE TRIGGER " + name + "_replace BEFORE INSERT ON " +
+                table + " BEGIN DELETE FROM " + name + " WHERE docid IN (SELECT " +
+                BaseColumns._ID + " FROM " + table + " WHERE " + conflict + "); END");
+        triggers.put(name + "_insert", "CREATE TRIGGER " + name + "_insert AFTER INSERT ON " +
+                table + " BEGIN INSERT INTO " + name + " (docid, " + names + ") VALUES (new." +
+                BaseColumns._ID + ", " + values + "); END");
+        triggers.put(name + "_update", "CREATE TRIGGER " + name + "_update AFTER UPDATE OF " +
+                names + " ON " + table + " BEGIN UPDATE " + name + " SET " + assignments +
+                " WHERE docid = new." + BaseColumns._ID + "; END");
+        triggers.put(name + "_delete", "CREATE TRIGGER " + name + "_delete AFTER DELETE ON " +
+                table + " BEGIN DELETE FROM " + name + " WHERE docid = old." +
+                BaseColumns._ID + "; END");
+        return triggers;
+    }
+
+    /**
+     * Get the statement that fills the FTS table with the existing rows of the table.
+     *
+     * @param table The name of the table
+     * @return The "INSERT" statement
+     */
+    public String getPopulateSql(String table) {
+        String names = TextUtils.join(", ", columns);
+        return "INSERT INTO " + name + " (docid, " + names + ") SELECT " + BaseColumns._ID +
+                ", " + names + " FROM " + table;
+    }
+
+    /**
+     * Get the rows of the table that match the query, to query from. The rows are looked up from
+     * the matches, rather than the other way around, whichever index the query planner would
+     * pick for the rest of the selection.
+     *
+     * @param table The name of the table
+     * @return The "FROM" clause, with an argument made by {@link #toMatchQuery(String, String)}
+     */
+    public String getMatchTables(String table) {
+        return "(SELECT docid FROM " + name + " WHERE " + name + " MATCH ?) CROSS JOIN " +
+                table + " ON " + BaseColumns._ID + " = docid";
+    }
+
+    /**
+     * Get the selection for the rows of the table that match the query.
+     *
+     * @return The selection, with an argument made by {@link #toMatchQuery(String, String)}
+     */
+    public String getMatchSelection() {
+        return BaseColumns._ID + " IN (SELECT docid FROM " + name + " WHERE " + name +
+                " MATCH ?)";
+    }
+
+    /**
+     * Converts the text typed by the user to an FTS query. Each word of the text matches the
+     * words that start with it, and all of them have to match. Only ASCII is folded and split on
+     * here, like the "simple" tokenizer does; the rest is left to the tokenizer of the table, as
+     * the terms of the query go through it too.
+     *
+     * @param text   The text typed by the user
+     * @param column The column to search, or null to search all the columns
+     * @return The FTS query, or null if the text has no word in it.
+     */
+    public static String toMatchQuery(String text, String column) {
+        if (text == null) {
+            return null;
+        }
+        ArrayList<String> terms = new ArrayList<>();
+        // Split the same way as the "simple" tokenizer, so that the syntax is never involved
+        for (String word : toAsciiLowerCase(text).split(ASCII_SEPARATORS)) {
+            if (!word.isEmpty()) {
+                terms.add(column == null ? word + "*" : column + ":" + word + "*");
+            }
+        }
+        if (terms.isEmpty()) {
+            return null;
+        }
+        return TextUtils.join(" ", terms);
+    }
+
+    /**
+     * Folds the case of ASCII letters only. The "simple" tokenizer keeps the other letters as
+     * they are, so folding them would never match.
+     */
+    private static String toAsciiLowerCase(String text) {
+        char[] chars = text.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            if ('A' <= chars[i] && chars[i] <= 'Z') {
+                chars[i] += 'a' - 'A';
+            }
+        }
+        return new String(chars);
+    }
+
+}
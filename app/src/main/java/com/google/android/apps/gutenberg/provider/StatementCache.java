@@ -0,0 +1,315 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg.provider;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+
+/**
+ * Caches compiled {@link SQLiteStatement}s for the inserts and updates that are run over and over
+ * with different values, like the rows of a sync or check-ins.
+ * <p/>
+ * The statements of a {@link Table} list their columns in the order of
+ * {@link Table#getColumns()}, so the shape of a statement is the set of the columns written,
+ * which is kept as a bit mask. Each shape (the table, the columns and the selection) is compiled
+ * once, and the values are bound by the index of their columns; no SQL is built for a row once
+ * its shape has been seen.
+ * <p/>
+ * This class is not thread-safe, as the values are bound to the shared statements. Use an instance
+ * for each thread, and {@link #close()} it when the thread is gone.
+ */
+public class StatementCache {
+
+    private static final String TAG = "StatementCache";
+
+    /**
+     * The maximum number of statements kept compiled.
+     */
+    private static final int MAX_SIZE = 32;
+
+    /**
+     * Tables with more columns than this do not fit in the mask, and are written without the cache.
+     */
+    private static final int MAX_COLUMNS = 31;
+
+    /**
+     * The key of the statements without selection.
+     */
+    private static final String NO_SELECTION = "";
+
+    private final SQLiteDatabase mDatabase;
+
+    private final WeakReference<Thread> mOwner;
+
+    private final TableStatements[] mTables = new TableStatements[Table.values().length];
+
+    private int mSize;
+
+    /**
+     * Creates a cache for the current thread.
+     */
+    public StatementCache(SQLiteDatabase database) {
+        mDatabase = database;
+        mOwner = new WeakReference<>(Thread.currentThread());
+    }
+
+    /**
+     * @return Whether the thread that created this cache is still running.
+     */
+    public boolean isOwnerAlive() {
+        Thread owner = mOwner.get();
+        return owner != null && owner.isAlive();
+    }
+
+    /**
+     * Inserts a row. This works like {@link SQLiteDatabase#insert(String, String, ContentValues)}.
+     *
+     * @return The row ID of the new row, or -1 if an error occurred.
+     */
+    public long insert(Table table, ContentValues values) {
+        TableStatements statements = getTableStatements(table);
+        int mask = statements.getMask(values);
+        if (mask <= 0) {
+            return mDatabase.insert(table.getBaseName(), null, values);
+        }
+        SQLiteStatement statement = statements.inserts.get(mask);
+        if (statement == null) {
+            statement = compile(statements.getInsertSql(mask));
+            statements.inserts.put(mask, statement);
+        }
+        try {
+            statements.bindValues(statement, mask, values);
+            return statement.executeInsert();
+        } catch (SQLException e) {
+            Log.e(TAG, "Error inserting " + values, e);
+            return -1;
+        } finally {
+            statement.clearBindings();
+        }
+    }
+
+    /**
+     * Updates rows. This works like
+     * {@link SQLiteDatabase#update(String, ContentValues, String, String[])}.
+     *
+     * @return The number of rows updated.
+     */
+    public int update(Table table, ContentValues values, String whereClause,
+                      String[] whereArgs) {
+        if (values.size() == 0) {
+            throw new IllegalArgumentException("Empty values");
+        }
+        TableStatements statements = getTableStatements(table);
+        int mask = statements.getMask(values);
+        if (mask <= 0) {
+            return mDatabase.update(table.getBaseName(), values, whereClause, whereArgs);
+        }
+        String key = whereClause == null ? NO_SELECTION : whereClause;
+        SparseArray<SQLiteStatement> updates = statements.updates.get(key);
+        SQLiteStatement statement = updates == null ? null : updates.get(mask);
+        if (statement == null) {
+            statement = compile(statements.getUpdateSql(mask, whereClause));
+            updates = statements.updates.get(key);
+            if (updates == null) {
+                updates = new SparseArray<>();
+                statements.updates.put(key, updates);
+            }
+            updates.put(mask, statement);
+        }
+        try {
+            int index = statements.bindValues(statement, mask, values);
+            if (whereArgs != null) {
+                for (String arg : whereArgs) {
+                    statement.bindString(index++, arg);
+                }
+            }
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.clearBindings();
+        }
+    }
+
+    /**
+     * Closes all the statements. The cache can still be used afterwards; the statements are
+     * compiled again as they are needed.
+     */
+    public void close() {
+        for (TableStatements statements : mTables) {
+            if (statements != null) {
+                statements.close();
+            }
+        }
+        mSize = 0;
+    }
+
+    private TableStatements getTableStatements(Table table) {
+        TableStatements statements = mTables[table.ordinal()];
+        if (statements == null) {
+            statements = new TableStatements(table);
+            mTables[table.ordinal()] = statements;
+        }
+        return statements;
+    }
+
+    /**
+     * Compiles a statement, closing all the others when there are too many of them. The shapes in
+     * use are few, so this only happens with ad-hoc selections.
+     */
+    private SQLiteStatement compile(String sql) {
+        if (mSize >= MAX_SIZE) {
+            Log.w(TAG, "Too many statements; closing all of them");
+            close();
+        }
+        SQLiteStatement statement = mDatabase.compileStatement(sql);
+        ++mSize;
+        return statement;
+    }
+
+    /**
+     * The statements of a table.
+     */
+    private static class TableStatements {
+
+        final String name;
+
+        /**
+         * The names of the columns, in the order of the bits of the masks.
+         */
+        final String[] columns;
+
+        final HashMap<String, Integer> indices = new HashMap<>();
+
+        /**
+         * Inserts by mask.
+         */
+        final SparseArray<SQLiteStatement> inserts = new SparseArray<>();
+
+        /**
+         * Updates by selection and mask.
+         */
+        final HashMap<String, SparseArray<SQLiteStatement>> updates = new HashMap<>();
+
+        TableStatements(Table table) {
+            name = table.getBaseName();
+            Column[] tableColumns = table.getColumns();
+            columns = new String[tableColumns.length];
+            for (int i = 0; i < tableColumns.length; i++) {
+                columns[i] = tableColumns[i].name;
+                indices.put(columns[i], i);
+            }
+        }
+
+        /**
+         * @return The mask of the columns in the values, 0 if there is none, or -1 if some of them
+         * cannot be in the mask.
+         */
+        int getMask(ContentValues values) {
+            if (columns.length > MAX_COLUMNS) {
+                return -1;
+            }
+            int mask = 0;
+            for (String key : values.keySet()) {
+                Integer index = indices.get(key);
+                if (index == null) {
+                    return -1;
+                }
+                mask |= 1 << index;
+            }
+            return mask;
+        }
+
+        String getInsertSql(int mask) {
+            StringBuilder sql = new StringBuilder("INSERT INTO ");
+            sql.append(name);
+            sql.append(" (");
+            int count = 0;
+            for (int i = 0; i < columns.length; i++) {
+                if ((mask & (1 << i)) != 0) {
+                    if (count++ > 0) {
+                        sql.append(", ");
+                    }
+                    sql.append(columns[i]);
+                }
+            }
+            sql.append(") VALUES (");
+            for (int i = 0; i < count; i++) {
+                sql.append(i == 0 ? "?" : ", ?");
+            }
+            sql.append(")");
+            return sql.toString();
+        }
+
+        String getUpdateSql(int mask, String whereClause) {
+            StringBuilder sql = new StringBuilder("UPDATE ");
+            sql.append(name);
+            sql.append(" SET ");
+            int count = 0;
+            for (int i = 0; i < columns.length; i++) {
+                if ((mask & (1 << i)) != 0) {
+                    if (count++ > 0) {
+                        sql.append(", ");
+                    }
+                    sql.append(columns[i]);
+                    sql.append(" = ?");
+                }
+            }
+            if (whereClause != null) {
+                sql.append(" WHERE ");
+                sql.append(whereClause);
+            }
+            return sql.toString();
+        }
+
+        /**
+         * Binds the values in the order of the columns.
+         *
+         * @return The index of the next parameter.
+         */
+        int bindValues(SQLiteStatement statement, int mask, ContentValues values) {
+            int index = 1;
+            for (int i = 0; i < columns.length; i++) {
+                if ((mask & (1 << i)) != 0) {
+                    DatabaseUtils.bindObjectToProgram(statement, index++, values.get(columns[i]));
+                }
+            }
+            return index;
+        }
+
+        void close() {
+            for (int i = 0; i < inserts.size(); i++) {
+                inserts.valueAt(i).close();
+            }
+            for (SparseArray<SQLiteStatement> statements : updates.values()) {
+                for (int i = 0; i < statements.size(); i++) {
+                    statements.valueAt(i).close();
+                }
+            }
+            inserts.clear();
+            updates.clear();
+        }
+
+    }
+
+}
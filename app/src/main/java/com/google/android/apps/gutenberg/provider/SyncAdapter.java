@@ -20,13 +20,16 @@ import android.accounts.Account;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
 import android.content.SyncResult;
 import android.database.Cursor;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.Pair;
@@ -34,28 +37,30 @@ import android.util.Pair;
 import com.android.volley.ParseError;
 import com.android.volley.RequestQueue;
 import com.android.volley.ServerError;
+import com.android.volley.VolleyError;
 import com.android.volley.toolbox.RequestFuture;
-import com.google.android.apps.gutenberg.BuildConfig;
-import com.google.android.apps.gutenberg.GutenbergApplication;
+import com.google.android.apps.gutenberg.util.BatchCheckInRequest;
 import com.google.android.apps.gutenberg.util.CheckInRequest;
 import com.google.android.apps.gutenberg.util.GaeJsonArrayRequest;
-import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.plus.People;
-import com.google.android.gms.plus.Plus;
-import com.google.android.gms.plus.model.people.Person;
-import com.google.android.gms.plus.model.people.PersonBuffer;
+import com.google.android.apps.gutenberg.util.SessionManager;
+import com.google.android.apps.gutenberg.util.ServerHost;
+import com.google.android.apps.gutenberg.util.SyncHttpClient;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class SyncAdapter extends AbstractThreadedSyncAdapter {
 
@@ -66,9 +71,74 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
      */
     public static final String EXTRA_ONLY_CHECKINS = "only_checkins";
 
+    /**
+     * Boolean extra for ignoring the stored watermarks and downloading all the attendees
+     */
+    public static final String EXTRA_FULL_SYNC = "full_sync";
+
+    /**
+     * Integer extra for the number of events whose attendees are downloaded at the same time
+     */
+    public static final String EXTRA_MAX_EVENTS_IN_FLIGHT = "max_events_in_flight";
+
+    /**
+     * String extra for only downloading the attendees of the specified event
+     */
+    public static final String EXTRA_EVENT_ID = "event_id";
+
+    /**
+     * String extra for not downloading the attendees of the specified event, which is synced on
+     * its own
+     */
+    public static final String EXTRA_SKIP_EVENT_ID = "skip_event_id";
+
+    /**
+     * Boolean extra for uploading all the check-ins in the outbox without waiting for the backoff
+     */
+    public static final String EXTRA_FLUSH_OUTBOX = "flush_outbox";
+
+    private static final int DEFAULT_MAX_EVENTS_IN_FLIGHT = 2;
+
     private static final String TAG = "SyncAdapter";
 
-    private GoogleApiClient mApiClient;
+    /**
+     * The maximum number of check-ins uploaded in a single request.
+     */
+    private static final int CHECKIN_BATCH_SIZE = 50;
+
+    /**
+     * The number of syncs kept in {@link Table#SYNC_LOG}.
+     */
+    private static final int SYNC_LOG_SIZE = 100;
+
+    /**
+     * The error recorded for a check-in missing from the response of the batch endpoint.
+     */
+    private static final String ERROR_NO_RESULT = "No result";
+
+    /**
+     * Selects the attendees without any check-in waiting in the outbox.
+     */
+    static final String SELECTION_NOT_IN_OUTBOX = Table.Attendee.ID + " NOT IN (SELECT " +
+            Table.Outbox.ATTENDEE_ID + " FROM " + Table.OUTBOX.getBaseName() + " WHERE " +
+            Table.Outbox.EVENT_ID + " = ?)";
+
+    /**
+     * True once the server turns out not to support batch check-ins.
+     */
+    private static boolean sBatchCheckInUnsupported;
+
+    private final AvatarResolver mAvatarResolver;
+
+    /**
+     * Set when the server rejects the session cookie during a sync.
+     */
+    private boolean mSessionExpired;
+
+    /**
+     * The statistics of the current sync.
+     */
+    private SyncStats mStats = new SyncStats(SyncHttpClient.getInstance().getConnectionCounter());
 
     public SyncAdapter(Context context, boolean autoInitialize) {
         this(context, autoInitialize, false);
@@ -76,11 +146,7 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 
     public SyncAdapter(Context context, boolean autoInitialize, boolean allowParallelSyncs) {
         super(context, autoInitialize, allowParallelSyncs);
-        mApiClient = new GoogleApiClient.Builder(context)
-                .addApi(Plus.API)
-                .addScope(Plus.SCOPE_PLUS_LOGIN)
-                .addScope(Plus.SCOPE_PLUS_PROFILE)
-                .build();
+        mAvatarResolver = new AvatarResolver(context);
     }
 
     @Override
@@ -91,137 +157,687 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
             Log.d(TAG, "Not authorized. Cannot sync.");
             return;
         }
-        mApiClient.blockingConnect(5, TimeUnit.SECONDS);
+        mAvatarResolver.reset();
+        mStats = new SyncStats(SyncHttpClient.getInstance().getConnectionCounter());
         try {
-            String cookie = getCookie(authToken);
-            syncCheckins(provider, cookie);
-            if (!extras.getBoolean(EXTRA_ONLY_CHECKINS, false)) {
-                syncEvents(provider, cookie);
+            // Retry once with a new cookie if the server rejects the cached one
+            for (int attempt = 0; attempt < 2; attempt++) {
+                mSessionExpired = false;
+                long start = SystemClock.elapsedRealtime();
+                String cookie = SessionManager.getCookie(getContext(), account.name, authToken);
+                mStats.addCookie(SystemClock.elapsedRealtime() - start);
+                if (cookie == null) {
+                    Log.d(TAG, "No session cookie. Cannot sync.");
+                    mStats.addAuthError();
+                    break;
+                }
+                syncCheckins(provider, cookie, extras.getBoolean(EXTRA_FLUSH_OUTBOX, false));
+                if (!extras.getBoolean(EXTRA_ONLY_CHECKINS, false)) {
+                    syncEvents(provider, cookie, extras.getBoolean(EXTRA_FULL_SYNC, false),
+                            extras.getInt(EXTRA_MAX_EVENTS_IN_FLIGHT,
+                                    DEFAULT_MAX_EVENTS_IN_FLIGHT),
+                            extras.getString(EXTRA_EVENT_ID),
+                            extras.getString(EXTRA_SKIP_EVENT_ID));
+                }
+                if (!mSessionExpired) {
+                    break;
+                }
+                Log.d(TAG, "Session expired. Retrying with a new cookie.");
+            }
+            if (mSessionExpired) {
+                mStats.addAuthError();
             }
         } catch (IOException e) {
             Log.e(TAG, "Error performing sync.", e);
+            mStats.addError(e);
         }
+        Log.d(TAG, "Sync finished: " + mStats);
+        mStats.fillSyncResult(syncResult);
+        saveSyncLog(provider);
     }
 
-    private void syncCheckins(ContentProviderClient provider, String cookie) {
+    /**
+     * Saves the statistics of this sync, discarding those of the old syncs.
+     */
+    private void saveSyncLog(ContentProviderClient provider) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(Table.SYNC_LOG.getBaseUri())
+                .withValues(mStats.toContentValues())
+                .build());
+        operations.add(ContentProviderOperation.newDelete(Table.SYNC_LOG.getBaseUri())
+                .withSelection(Table.SyncLog._ID + " NOT IN (SELECT " + Table.SyncLog._ID +
+                        " FROM " + Table.SYNC_LOG.getBaseName() + " ORDER BY " +
+                        Table.SyncLog._ID + " DESC LIMIT " + SYNC_LOG_SIZE + ")", null)
+                .build());
+        try {
+            provider.applyBatch(operations);
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(TAG, "Cannot save the sync statistics.", e);
+        }
+    }
+
+    /**
+     * Checks whether an error means that the server rejected our session cookie, and if so,
+     * discards the cookie so that a new one is fetched.
+     */
+    private boolean handleSessionExpired(Throwable error) {
+        if (!SessionManager.isSessionExpired(error)) {
+            return false;
+        }
+        SessionManager.invalidate(getContext());
+        mSessionExpired = true;
+        return true;
+    }
+
+    private void syncCheckins(ContentProviderClient provider, String cookie, boolean flush) {
+        // The batch endpoint takes check-ins of a single event, so group them by event
+        HashMap<String, ArrayList<OutboxEntry>> entries = new HashMap<>();
         Cursor cursor = null;
         try {
-            cursor = provider.query(Table.ATTENDEE.getBaseUri(), new String[]{
-                    Table.Attendee.ID,
-                    Table.Attendee.CHECKIN,
-                    Table.Attendee.EVENT_ID,
-            }, Table.Attendee.CHECKIN_MODIFIED, null, null);
-            if (0 == cursor.getCount()) {
-                Log.d(TAG, "No checkin to sync.");
-                return;
-            }
-            int syncCount = 0;
+            cursor = provider.query(Table.OUTBOX.getBaseUri(), OutboxEntry.PROJECTION,
+                    flush ? null : Table.Outbox.NEXT_ATTEMPT + " <= ?",
+                    flush ? null : new String[]{String.valueOf(System.currentTimeMillis())},
+                    Table.Outbox.CREATED);
             while (cursor.moveToNext()) {
-                String attendeeId = cursor.getString(
-                        cursor.getColumnIndexOrThrow(Table.Attendee.ID));
-                String eventId = cursor.getString(
-                        cursor.getColumnIndexOrThrow(Table.Attendee.EVENT_ID));
-                long checkin = cursor.getLong(cursor.getColumnIndexOrThrow(Table.Attendee.CHECKIN));
-                long serverCheckin = postCheckIn(attendeeId, eventId, checkin == 0, cookie);
-                if (serverCheckin >= 0) {
-                    ContentValues values = new ContentValues();
-                    values.put(Table.Attendee.CHECKIN_MODIFIED, false);
-                    if (0 == serverCheckin) {
-                        values.putNull(Table.Attendee.CHECKIN);
-                    } else {
-                        values.put(Table.Attendee.CHECKIN, serverCheckin);
-                    }
-                    provider.update(Table.ATTENDEE.getItemUri(eventId, attendeeId),
-                            values, null, null);
-                    ++syncCount;
+                OutboxEntry entry = new OutboxEntry(cursor);
+                if (!entries.containsKey(entry.eventId)) {
+                    entries.put(entry.eventId, new ArrayList<OutboxEntry>());
                 }
+                entries.get(entry.eventId).add(entry);
             }
-            Log.d(TAG, syncCount + " checkin(s) synced.");
         } catch (RemoteException e) {
             e.printStackTrace();
+            return;
         } finally {
             if (cursor != null) {
                 cursor.close();
             }
         }
+        if (entries.isEmpty()) {
+            Log.d(TAG, "No checkin to sync.");
+        }
+        int syncCount = 0;
+        try {
+            for (String eventId : entries.keySet()) {
+                ArrayList<OutboxEntry> eventEntries = entries.get(eventId);
+                for (int start = 0; start < eventEntries.size(); start += CHECKIN_BATCH_SIZE) {
+                    int end = Math.min(start + CHECKIN_BATCH_SIZE, eventEntries.size());
+                    syncCount += syncCheckinBatch(provider, eventId,
+                            eventEntries.subList(start, end), cookie);
+                }
+            }
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(TAG, "Error saving synced checkins.", e);
+        }
+        Log.d(TAG, syncCount + " checkin(s) synced.");
+        scheduleOutbox(provider);
     }
 
-    private long postCheckIn(String attendeeId, String eventId, boolean revert, String cookie) {
-        RequestQueue queue = GutenbergApplication.from(getContext()).getRequestQueue();
+    /**
+     * Uploads the check-ins. Those acknowledged by the server are removed from the outbox and
+     * their {@link Table.Attendee#CHECKIN_MODIFIED} is cleared. Those failed are retried later.
+     *
+     * @return The number of check-ins acknowledged by the server.
+     */
+    private int syncCheckinBatch(ContentProviderClient provider, String eventId,
+                                 List<OutboxEntry> entries, String cookie)
+            throws RemoteException, OperationApplicationException {
+        HashMap<String, Pair<Long, Long>> serverCheckins = null;
+        HashMap<String, String> errors = new HashMap<>();
+        if (!sBatchCheckInUnsupported) {
+            serverCheckins = postCheckIns(eventId, entries, cookie, errors);
+        }
+        if (serverCheckins == null) { // Fall back to one request per check-in
+            serverCheckins = new HashMap<>();
+            for (OutboxEntry entry : entries) {
+                Pair<Long, Long> serverCheckin = postCheckIn(eventId, entry, cookie, errors);
+                if (serverCheckin != null) {
+                    serverCheckins.put(entry.attendeeId, serverCheckin);
+                }
+            }
+        }
+        long now = System.currentTimeMillis();
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (OutboxEntry entry : entries) {
+            String idSelection = Table.Outbox._ID + " = ?";
+            String[] idSelectionArgs = {String.valueOf(entry.id)};
+            if (serverCheckins.containsKey(entry.attendeeId)) {
+                Pair<Long, Long> serverCheckin = serverCheckins.get(entry.attendeeId);
+                boolean checkedIn = serverCheckin.first != 0;
+                operations.add(ContentProviderOperation
+                        .newDelete(Table.OUTBOX.getBaseUri())
+                        .withSelection(idSelection, idSelectionArgs)
+                        .build());
+                // Keep the flag if the attendee was checked in or reverted again while this one
+                // was being uploaded
+                operations.add(ContentProviderOperation
+                        .newUpdate(Table.ATTENDEE.getItemUri(eventId, entry.attendeeId))
+                        .withSelection(SELECTION_NOT_IN_OUTBOX, new String[]{eventId})
+                        .withValue(Table.Attendee.CHECKIN_MODIFIED, false)
+                        .build());
+                // The state merged by the server, unless we have a newer one
+                operations.add(ContentProviderOperation
+                        .newUpdate(Table.ATTENDEE.getItemUri(eventId, entry.attendeeId))
+                        .withSelection(CheckinMerge.getSelection(checkedIn),
+                                CheckinMerge.getSelectionArgs(serverCheckin.second, checkedIn))
+                        .withValue(Table.Attendee.CHECKIN,
+                                checkedIn ? serverCheckin.first : null)
+                        .withValue(Table.Attendee.CHECKIN_VERSION, serverCheckin.second)
+                        .build());
+            } else if (errors.containsKey(entry.attendeeId)) {
+                int attempts = entry.attempts + 1;
+                operations.add(ContentProviderOperation
+                        .newUpdate(Table.OUTBOX.getBaseUri())
+                        .withSelection(idSelection, idSelectionArgs)
+                        .withValue(Table.Outbox.ATTEMPTS, attempts)
+                        .withValue(Table.Outbox.LAST_ERROR, errors.get(entry.attendeeId))
+                        .withValue(Table.Outbox.NEXT_ATTEMPT,
+                                OutboxScheduler.getNextAttempt(attempts, now))
+                        .build());
+            }
+        }
+        if (!operations.isEmpty()) {
+            provider.applyBatch(operations);
+        }
+        return serverCheckins.size();
+    }
+
+    /**
+     * Schedules the next upload for the check-ins remaining in the outbox.
+     */
+    private void scheduleOutbox(ContentProviderClient provider) {
+        Cursor cursor = null;
+        long nextAttempt = 0;
+        try {
+            cursor = provider.query(Table.OUTBOX.getBaseUri(), new String[]{
+                    "MIN(" + Table.Outbox.NEXT_ATTEMPT + ")"
+            }, null, null, null);
+            if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                nextAttempt = cursor.getLong(0);
+            }
+        } catch (RemoteException e) {
+            Log.e(TAG, "Cannot read the outbox.", e);
+            return;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        OutboxScheduler.schedule(getContext(), nextAttempt);
+    }
+
+    /**
+     * Uploads the check-ins with the batch endpoint.
+     *
+     * @param errors Filled with the error messages for the check-ins that failed
+     * @return The check-in times and their versions returned from the server for each of the
+     * acknowledged attendees, or null if the server doesn't support the batch endpoint.
+     */
+    private HashMap<String, Pair<Long, Long>> postCheckIns(String eventId,
+                                                           List<OutboxEntry> entries,
+                                                           String cookie,
+                                                           HashMap<String, String> errors) {
+        ArrayList<String> attendeeIds = new ArrayList<>(entries.size());
+        ArrayList<Boolean> reverts = new ArrayList<>(entries.size());
+        ArrayList<Long> versions = new ArrayList<>(entries.size());
+        HashMap<String, Long> versionsById = new HashMap<>();
+        for (OutboxEntry entry : entries) {
+            attendeeIds.add(entry.attendeeId);
+            reverts.add(entry.revert);
+            versions.add(entry.version);
+            versionsById.put(entry.attendeeId, entry.version);
+        }
+        RequestQueue queue = SyncHttpClient.getInstance().getRequestQueue();
+        RequestFuture<JSONObject> future = RequestFuture.newFuture();
+        BatchCheckInRequest request =
+                new BatchCheckInRequest(cookie, eventId, attendeeIds, reverts, versions, future,
+                        future);
+        request.setTransferCounter(mStats.getTransferCounter());
+        queue.add(request);
+        HashMap<String, Pair<Long, Long>> serverCheckins = new HashMap<>();
+        try {
+            JSONArray results = future.get().getJSONArray("results");
+            for (int i = 0; i < results.length(); i++) {
+                JSONObject result = results.getJSONObject(i);
+                String attendeeId = result.getString("id");
+                if (result.has("error")) {
+                    String error = result.getString("error");
+                    Log.e(TAG, "Cannot sync checkin of " + attendeeId + ": " + error);
+                    errors.put(attendeeId, error);
+                } else if (versionsById.containsKey(attendeeId)) {
+                    // A server without versions simply takes our check-in
+                    serverCheckins.put(attendeeId, new Pair<>(result.getLong("checkinTime"),
+                            result.optLong("version", versionsById.get(attendeeId))));
+                }
+            }
+            // The entries the server left out are failed; otherwise they would be sent again on
+            // every upload without backing off
+            for (String attendeeId : attendeeIds) {
+                if (!serverCheckins.containsKey(attendeeId) && !errors.containsKey(attendeeId)) {
+                    Log.e(TAG, "No result for the checkin of " + attendeeId + ".");
+                    errors.put(attendeeId, ERROR_NO_RESULT);
+                }
+            }
+        } catch (InterruptedException | ExecutionException | JSONException e) {
+            if (handleSessionExpired(e)) {
+                return serverCheckins;
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof ServerError) {
+                ServerError error = (ServerError) cause;
+                int statusCode = error.networkResponse.statusCode;
+                if (statusCode == 404 || statusCode == 405 || statusCode == 501) {
+                    Log.d(TAG, "The server doesn't support batch checkins.");
+                    sBatchCheckInUnsupported = true;
+                    return null;
+                }
+                Log.e(TAG, "Server error: " + new String(error.networkResponse.data));
+            }
+            Log.e(TAG, "Cannot sync checkins.", e);
+            mStats.addError(e);
+            for (String attendeeId : attendeeIds) {
+                if (!serverCheckins.containsKey(attendeeId)) {
+                    errors.put(attendeeId, describeError(e));
+                }
+            }
+        }
+        return serverCheckins;
+    }
+
+    /**
+     * Uploads a check-in.
+     *
+     * @param errors Filled with the error message if the check-in fails
+     * @return The check-in time and its version returned from the server, or null.
+     */
+    private Pair<Long, Long> postCheckIn(String eventId, OutboxEntry entry, String cookie,
+                                         HashMap<String, String> errors) {
+        RequestQueue queue = SyncHttpClient.getInstance().getRequestQueue();
         RequestFuture<JSONObject> future = RequestFuture.newFuture();
-        queue.add(new CheckInRequest(cookie, eventId, attendeeId, revert, future, future));
+        CheckInRequest request = new CheckInRequest(cookie, eventId, entry.attendeeId,
+                entry.revert, entry.version, future, future);
+        request.setTransferCounter(mStats.getTransferCounter());
+        queue.add(request);
         try {
             JSONObject object = future.get();
-            return object.getLong("checkinTime");
+            return new Pair<>(object.getLong("checkinTime"),
+                    object.optLong("version", entry.version));
         } catch (InterruptedException | ExecutionException | JSONException e) {
+            if (handleSessionExpired(e)) {
+                return null;
+            }
             Throwable cause = e.getCause();
             if (cause instanceof ServerError) {
                 ServerError error = (ServerError) cause;
                 Log.e(TAG, "Server error: " + new String(error.networkResponse.data));
             }
             Log.e(TAG, "Cannot sync checkin.", e);
+            mStats.addError(e);
+            errors.put(entry.attendeeId, describeError(e));
+        }
+        return null;
+    }
+
+    /**
+     * @return A short description of the error to be recorded in the outbox.
+     */
+    private static String describeError(Exception e) {
+        Throwable cause = e instanceof ExecutionException && e.getCause() != null ?
+                e.getCause() : e;
+        if (cause instanceof VolleyError && ((VolleyError) cause).networkResponse != null) {
+            return "HTTP " + ((VolleyError) cause).networkResponse.statusCode;
         }
-        return -1;
+        return cause.getClass().getSimpleName();
     }
 
-    private void syncEvents(ContentProviderClient provider, String cookie) {
+    /**
+     * Downloads the events and their attendees.
+     *
+     * @param onlyEventId The ID of the only event to download the attendees of, or null to
+     *                    download the attendees of all the events
+     * @param skipEventId The ID of the event not to download the attendees of, or null
+     */
+    void syncEvents(ContentProviderClient provider, String cookie, boolean full,
+                    int maxEventsInFlight, String onlyEventId, String skipEventId) {
         try {
-            RequestQueue requestQueue = GutenbergApplication.from(getContext()).getRequestQueue();
-            JSONArray events = getEvents(requestQueue, cookie);
-            Pair<String[], ContentValues[]> pair = parseEvents(events);
-            String[] eventIds = pair.first;
-            provider.bulkInsert(Table.EVENT.getBaseUri(), pair.second);
-            ArrayList<ContentProviderOperation> operations = new ArrayList<>();
-            operations.add(ContentProviderOperation.newDelete(Table.EVENT.getBaseUri())
-                    .withSelection(Table.Event.ID + " NOT IN ('" +
-                            TextUtils.join("', '", eventIds) + "')", null)
-                    .build());
-            operations.add(ContentProviderOperation.newDelete(Table.ATTENDEE.getBaseUri())
-                    .withSelection(Table.Attendee.EVENT_ID + " NOT IN ('" +
-                            TextUtils.join("', '", eventIds) + "')", null)
-                    .build());
-            provider.applyBatch(operations);
-            for (String eventId : eventIds) {
-                JSONArray attendees = getAttendees(requestQueue, eventId, cookie);
-                provider.bulkInsert(
-                        Table.ATTENDEE.getBaseUri(), parseAttendees(eventId, attendees));
+            long start = SystemClock.elapsedRealtime();
+            RequestQueue requestQueue = SyncHttpClient.getInstance().getRequestQueue();
+            String url = ServerHost.get() + "/v1/event/list";
+            RequestFuture<JSONArray> future = RequestFuture.newFuture();
+            GaeJsonArrayRequest request = new GaeJsonArrayRequest(url, cookie, future, future);
+            request.setTransferCounter(mStats.getTransferCounter());
+            if (!full) {
+                Pair<String, String> validators = getValidators(provider, url);
+                if (validators != null) {
+                    request.setValidators(validators.first, validators.second);
+                }
             }
+            requestQueue.add(request);
+            JSONArray events = getEvents(future);
+            String[] eventIds;
+            if (events == null) { // Not modified
+                eventIds = loadEventIds(provider);
+            } else {
+                eventIds = saveEvents(provider, events, newValidatorOperation(url,
+                        request.getResponseETag(), request.getResponseLastModified()));
+            }
+            mStats.addEventList(SystemClock.elapsedRealtime() - start);
+            if (onlyEventId != null) {
+                if (!Arrays.asList(eventIds).contains(onlyEventId)) {
+                    Log.d(TAG, "Event " + onlyEventId + " no longer exists.");
+                    return;
+                }
+                eventIds = new String[]{onlyEventId};
+            } else if (skipEventId != null) {
+                ArrayList<String> otherEventIds = new ArrayList<>(Arrays.asList(eventIds));
+                otherEventIds.remove(skipEventId);
+                eventIds = otherEventIds.toArray(new String[otherEventIds.size()]);
+            }
+            syncAttendees(provider, eventIds, cookie, full, maxEventsInFlight, mStats);
             Log.d(TAG, eventIds.length + " event(s) synced.");
         } catch (ExecutionException | InterruptedException | JSONException | RemoteException |
                 OperationApplicationException e) {
+            if (!handleSessionExpired(e)) {
+                mStats.addError(e);
+            }
             Log.e(TAG, "Error performing sync.", e);
         }
     }
 
-    private static String getCookie(String authToken) throws IOException {
-        HttpURLConnection connection = null;
+    /**
+     * Merges the rows with the provider client of the sync where it supports
+     * {@link ContentProviderClient#call(String, String, Bundle)}, and with the content resolver
+     * otherwise.
+     */
+    private Bundle merge(ContentProviderClient provider, Table table, List<ContentValues> rows)
+            throws RemoteException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            return GutenbergProvider.merge(provider, table, rows);
+        }
+        return GutenbergProvider.merge(getContext().getContentResolver(), table, rows);
+    }
+
+    /**
+     * Saves the events and deletes those no longer on the server along with their attendees.
+     *
+     * @param events    The events from the server
+     * @param validator The operation to save the validators of the response, or null
+     * @return The IDs of the events.
+     */
+    private String[] saveEvents(ContentProviderClient provider, JSONArray events,
+                                ContentProviderOperation validator)
+            throws JSONException, RemoteException, OperationApplicationException {
+        Pair<String[], ContentValues[]> pair = parseEvents(events);
+        String[] eventIds = pair.first;
+        merge(provider, Table.EVENT, Arrays.asList(pair.second));
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newDelete(Table.EVENT.getBaseUri())
+                .withSelection(Table.Event.ID + " NOT IN ('" +
+                        TextUtils.join("', '", eventIds) + "')", null)
+                .build());
+        operations.add(ContentProviderOperation.newDelete(Table.ATTENDEE.getBaseUri())
+                .withSelection(Table.Attendee.EVENT_ID + " NOT IN ('" +
+                        TextUtils.join("', '", eventIds) + "')", null)
+                .build());
+        operations.add(ContentProviderOperation.newDelete(Table.EVENT_SYNC.getBaseUri())
+                .withSelection(Table.EventSync.EVENT_ID + " NOT IN ('" +
+                        TextUtils.join("', '", eventIds) + "')", null)
+                .build());
+        // Without the watermark, the validators would make the event come back empty
+        List<String> ids = Arrays.asList(eventIds);
+        for (String url : loadAttendeeValidatorUrls(provider)) {
+            if (!ids.contains(AttendeeDownloader.getEventId(url))) {
+                operations.add(ContentProviderOperation.newDelete(Table.VALIDATOR.getBaseUri())
+                        .withSelection(Table.Validator.URL + " = ?", new String[]{url})
+                        .build());
+            }
+        }
+        if (validator != null) {
+            operations.add(validator);
+        }
+        provider.applyBatch(operations);
+        return eventIds;
+    }
+
+    /**
+     * Loads the IDs of the events saved in the database.
+     */
+    private static String[] loadEventIds(ContentProviderClient provider) throws RemoteException {
+        Cursor cursor = null;
         try {
-            connection = (HttpURLConnection) new URL(
-                    BuildConfig.HOST + "/_ah/login?continue=http://localhost/&auth=" +
-                            authToken).openConnection();
-            connection.setInstanceFollowRedirects(false);
-            connection.connect();
-            if (connection.getResponseCode() != 302) {
-                Log.e(TAG, "Cannot fetch the cookie: " + connection.getResponseCode());
-                return null;
+            cursor = provider.query(Table.EVENT.getBaseUri(), new String[]{Table.Event.ID},
+                    null, null, null);
+            String[] eventIds = new String[cursor.getCount()];
+            while (cursor.moveToNext()) {
+                eventIds[cursor.getPosition()] = cursor.getString(0);
+            }
+            return eventIds;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
             }
-            String cookie = connection.getHeaderField("Set-Cookie");
-            if (!cookie.contains("SACSID")) {
+        }
+    }
+
+    /**
+     * Loads the URLs of the attendees that have validators saved.
+     */
+    private static List<String> loadAttendeeValidatorUrls(ContentProviderClient provider)
+            throws RemoteException {
+        ArrayList<String> urls = new ArrayList<>();
+        String prefix = AttendeeDownloader.getUrlPrefix();
+        Cursor cursor = null;
+        try {
+            cursor = provider.query(Table.VALIDATOR.getBaseUri(),
+                    new String[]{Table.Validator.URL},
+                    "substr(" + Table.Validator.URL + ", 1, " + prefix.length() + ") = ?",
+                    new String[]{prefix}, null);
+            while (cursor != null && cursor.moveToNext()) {
+                urls.add(cursor.getString(0));
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * Loads the validators of the last response for the URL.
+     *
+     * @param url The URL of the request, including the query
+     * @return The ETag and Last-Modified, or null if there is none.
+     */
+    private static Pair<String, String> getValidators(ContentProviderClient provider, String url)
+            throws RemoteException {
+        Cursor cursor = null;
+        try {
+            cursor = provider.query(Table.VALIDATOR.getBaseUri(), new String[]{
+                    Table.Validator.ETAG,
+                    Table.Validator.LAST_MODIFIED,
+            }, Table.Validator.URL + " = ?", new String[]{url}, null);
+            if (cursor == null || !cursor.moveToFirst()) {
                 return null;
             }
-            return cookie;
+            return new Pair<>(cursor.getString(0), cursor.getString(1));
         } finally {
-            if (connection != null) {
-                connection.disconnect();
+            if (cursor != null) {
+                cursor.close();
             }
         }
     }
 
-    private static JSONArray getEvents(RequestQueue requestQueue, String cookie) throws
+    /**
+     * Creates an operation to save the validators of a response.
+     *
+     * @return The operation, or null if the response has no validators.
+     */
+    private static ContentProviderOperation newValidatorOperation(String url, String etag,
+                                                                  String lastModified) {
+        if (etag == null && lastModified == null) {
+            return null;
+        }
+        return ContentProviderOperation.newInsert(Table.VALIDATOR.getBaseUri())
+                .withValue(Table.Validator.URL, url)
+                .withValue(Table.Validator.ETAG, etag)
+                .withValue(Table.Validator.LAST_MODIFIED, lastModified)
+                .build();
+    }
+
+    /**
+     * Downloads and applies the attendees of the events. Up to {@code maxEventsInFlight} events
+     * are downloaded at the same time by {@link AttendeeDownloader}s, while this thread writes the
+     * chunks that have already arrived. Deleted attendees come as tombstones when the server
+     * supports delta sync.
+     */
+    private void syncAttendees(ContentProviderClient provider, String[] eventIds, String cookie,
+                               boolean full, int maxEventsInFlight, SyncStats stats)
+            throws RemoteException, OperationApplicationException, InterruptedException {
+        if (eventIds.length == 0) {
+            return;
+        }
+        int threadCount = Math.max(1, Math.min(maxEventsInFlight, eventIds.length));
+        // Bounded, so that the downloaders wait for us when the database is slower than network
+        BlockingQueue<AttendeeChunk> queue = new ArrayBlockingQueue<>(threadCount);
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            for (String eventId : eventIds) {
+                long watermark = full ? 0 : getWatermark(provider, eventId);
+                AttendeeDownloader downloader =
+                        new AttendeeDownloader(eventId, watermark, cookie, queue);
+                downloader.setTransferCounter(stats.getTransferCounter());
+                // Without a watermark, all the attendees are needed whatever the server has
+                if (watermark > 0) {
+                    Pair<String, String> validators = getValidators(provider,
+                            AttendeeDownloader.getUrl(eventId, watermark));
+                    if (validators != null) {
+                        downloader.setValidators(validators.first, validators.second);
+                    }
+                }
+                executor.execute(downloader);
+            }
+            int remaining = eventIds.length;
+            while (remaining > 0) {
+                AttendeeChunk chunk = queue.take();
+                if (chunk.last) {
+                    --remaining;
+                }
+                if (chunk.error != null) {
+                    if (!handleSessionExpired(chunk.error)) {
+                        stats.addError(chunk.error);
+                    }
+                    Log.e(TAG, "Cannot download attendees of " + chunk.eventId, chunk.error);
+                    continue;
+                }
+                writeAttendees(provider, chunk, stats);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Writes a chunk of attendees into the database.
+     */
+    private void writeAttendees(ContentProviderClient provider, AttendeeChunk chunk,
+                                SyncStats stats)
+            throws RemoteException, OperationApplicationException {
+        if (chunk.notModified) {
+            stats.addChunk(chunk.eventId, chunk.networkWaitMillis, 0, 0);
+            stats.addEvent();
+            Log.d(TAG, "Event " + chunk.eventId + ": not modified (network wait: " +
+                    chunk.networkWaitMillis + "ms).");
+            return;
+        }
+        long start = SystemClock.elapsedRealtime();
+        mAvatarResolver.fill(provider, chunk.rows);
+        long avatarMillis = SystemClock.elapsedRealtime() - start;
+        stats.addAvatar(avatarMillis);
+        start += avatarMillis;
+        int inserted = 0;
+        int updated = 0;
+        if (!chunk.rows.isEmpty()) {
+            Bundle result = merge(provider, Table.ATTENDEE, chunk.rows);
+            inserted = result.getInt(GutenbergProvider.RESULT_INSERTED);
+            updated = result.getInt(GutenbergProvider.RESULT_UPDATED);
+            stats.addMerge(inserted, updated, result.getInt(GutenbergProvider.RESULT_UNCHANGED));
+        }
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (String attendeeId : chunk.deletedIds) {
+            operations.add(ContentProviderOperation
+                    .newDelete(Table.ATTENDEE.getItemUri(chunk.eventId, attendeeId))
+                    .build());
+        }
+        // The watermark and validators are stored after all the rows; if we fail in between, the
+        // next delta simply downloads the same rows again.
+        if (chunk.last && chunk.watermark > 0) {
+            operations.add(ContentProviderOperation.newInsert(Table.EVENT_SYNC.getBaseUri())
+                    .withValue(Table.EventSync.EVENT_ID, chunk.eventId)
+                    .withValue(Table.EventSync.WATERMARK, chunk.watermark)
+                    .build());
+        }
+        if (chunk.last) {
+            // The validators of the earlier requests are for other watermarks
+            String baseUrl = AttendeeDownloader.getBaseUrl(chunk.eventId);
+            operations.add(ContentProviderOperation.newDelete(Table.VALIDATOR.getBaseUri())
+                    .withSelection(Table.Validator.URL + " = ? OR substr(" +
+                            Table.Validator.URL + ", 1, " + (baseUrl.length() + 1) + ") = ?",
+                            new String[]{baseUrl, baseUrl + "?"})
+                    .build());
+            ContentProviderOperation validator = newValidatorOperation(
+                    chunk.url, chunk.etag, chunk.lastModified);
+            if (validator != null) {
+                operations.add(validator);
+            }
+        }
+        int deleted = 0;
+        if (!operations.isEmpty()) {
+            ContentProviderResult[] results = provider.applyBatch(operations);
+            for (int i = 0; i < chunk.deletedIds.size(); i++) {
+                deleted += results[i].count;
+            }
+            stats.addDeleted(deleted);
+        }
+        long writeMillis = SystemClock.elapsedRealtime() - start;
+        stats.addChunk(chunk.eventId, chunk.networkWaitMillis, chunk.parseMillis, writeMillis);
+        if (chunk.last) {
+            stats.addEvent();
+        }
+        Log.d(TAG, "Event " + chunk.eventId + ": " + inserted + " attendee(s) inserted, " +
+                updated + " updated, " + (chunk.rows.size() - inserted - updated) +
+                " unchanged, " + deleted + " deleted (network wait: " +
+                chunk.networkWaitMillis + "ms, parse: " + chunk.parseMillis + "ms, write: " +
+                writeMillis + "ms).");
+    }
+
+    /**
+     * Loads the watermark of the specified event.
+     *
+     * @return The watermark, or 0 if the attendees of the event have never been synced.
+     */
+    private static long getWatermark(ContentProviderClient provider, String eventId)
+            throws RemoteException {
+        Cursor cursor = null;
+        try {
+            cursor = provider.query(Table.EVENT_SYNC.getItemUri(eventId),
+                    new String[]{Table.EventSync.WATERMARK}, null, null, null);
+            if (cursor == null || !cursor.moveToFirst()) {
+                return 0;
+            }
+            return cursor.getLong(0);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * @return The events, or null if they haven't been modified.
+     */
+    private static JSONArray getEvents(RequestFuture<JSONArray> future) throws
             ExecutionException, InterruptedException {
-        RequestFuture<JSONArray> future = RequestFuture.newFuture();
-        requestQueue.add(new GaeJsonArrayRequest(
-                BuildConfig.HOST + "/v1/event/list", cookie, future, future));
         try {
             return future.get();
         } catch (ExecutionException e) {
@@ -251,21 +867,6 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         return new Pair<>(ids, array);
     }
 
-    private static JSONArray getAttendees(RequestQueue requestQueue, String eventId, String cookie)
-            throws ExecutionException, InterruptedException {
-        RequestFuture<JSONArray> future = RequestFuture.newFuture();
-        requestQueue.add(new GaeJsonArrayRequest(
-                BuildConfig.HOST + "/v1/event/" + eventId + "/attendees", cookie, future, future));
-        try {
-            return future.get();
-        } catch (ExecutionException e) {
-            if (didServerReturnNull(e)) {
-                return new JSONArray();
-            }
-            throw e;
-        }
-    }
-
     // A workaround for the server returning "null" for empty array
     private static boolean didServerReturnNull(ExecutionException e) {
         if (e.getCause() instanceof ParseError) {
@@ -280,60 +881,4 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         return false;
     }
 
-    private ContentValues[] parseAttendees(String eventId, JSONArray attendees)
-            throws JSONException {
-        int length = attendees.length();
-        ContentValues[] array = new ContentValues[length];
-        HashMap<String, String> imageUrls = new HashMap<>();
-        for (int i = 0; i < length; ++i) {
-            JSONObject attendee = attendees.getJSONObject(i);
-            array[i] = new ContentValues();
-            array[i].put(Table.Attendee.EVENT_ID, eventId);
-            array[i].put(Table.Attendee.NAME, attendee.getString("name"));
-            array[i].put(Table.Attendee.ID, attendee.getString("id"));
-            array[i].put(Table.Attendee.EMAIL, attendee.getString("email"));
-            String plusid = attendee.getString("plusid");
-            if (!TextUtils.isEmpty(plusid)) {
-                array[i].put(Table.Attendee.PLUSID, plusid);
-                imageUrls.put(plusid, "null");
-            }
-            long checkinTime = attendee.getLong("checkinTime");
-            if (0 == checkinTime) {
-                array[i].putNull(Table.Attendee.CHECKIN);
-            } else {
-                array[i].put(Table.Attendee.CHECKIN, checkinTime);
-            }
-            array[i].putNull(Table.Attendee.IMAGE_URL);
-        }
-        // Fetch all the Google+ Image URLs at once if necessary
-        if (mApiClient != null && mApiClient.isConnected() && !imageUrls.isEmpty()) {
-            People.LoadPeopleResult result =
-                    Plus.PeopleApi.load(mApiClient, imageUrls.keySet()).await();
-            PersonBuffer personBuffer = result.getPersonBuffer();
-            if (personBuffer != null) {
-                // Copy URLs into the HashMap
-                for (Person person : personBuffer) {
-                    if (person.hasImage()) {
-                        imageUrls.put(extractId(person.getUrl()), person.getImage().getUrl());
-                    }
-                }
-                // Fill the missing URLs in the array of ContentValues
-                for (ContentValues values : array) {
-                    if (values.containsKey(Table.Attendee.PLUSID)) {
-                        String plusId = values.getAsString(Table.Attendee.PLUSID);
-                        String imageUrl = imageUrls.get(plusId);
-                        if (!TextUtils.isEmpty(imageUrl)) {
-                            values.put(Table.Attendee.IMAGE_URL, imageUrl);
-                        }
-                    }
-                }
-            }
-        }
-        return array;
-    }
-
-    private static String extractId(String profileUrl) {
-        return profileUrl.substring(profileUrl.lastIndexOf('/') + 1);
-    }
-
 }
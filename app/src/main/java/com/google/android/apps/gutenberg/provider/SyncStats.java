@@ -0,0 +1,264 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg.provider;
+
+import android.content.ContentValues;
+import android.content.SyncResult;
+import android.os.SystemClock;
+
+import com.android.volley.ParseError;
+import com.google.android.apps.gutenberg.util.ConnectionCounter;
+import com.google.android.apps.gutenberg.util.TransferCounter;
+
+import org.json.JSONException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Collects the time spent in each stage of a sync, and the number of rows written.
+ */
+public class SyncStats {
+
+    private final long mStartTime = System.currentTimeMillis();
+    private final long mStartElapsed = SystemClock.elapsedRealtime();
+    private final TransferCounter mTransferCounter = new TransferCounter();
+    private final ConnectionCounter mConnectionCounter;
+    private final long mStartRequests;
+    private final long mStartReused;
+
+    /**
+     * The time spent downloading and parsing the attendees of each event.
+     */
+    private final HashMap<String, Long> mDownloadMillis = new HashMap<>();
+
+    private int mEventCount;
+    private long mCookieMillis;
+    private long mEventListMillis;
+    private long mNetworkWaitMillis;
+    private long mParseMillis;
+    private long mWriteMillis;
+    private long mAvatarMillis;
+    private int mInsertedCount;
+    private int mUpdatedCount;
+    private int mUnchangedCount;
+    private int mDeletedCount;
+    private int mIoErrorCount;
+    private int mParseErrorCount;
+    private int mAuthErrorCount;
+
+    /**
+     * @param connectionCounter The counter of the HTTP client used for the sync. Only the
+     *                          requests sent after this instance is created are counted.
+     */
+    public SyncStats(ConnectionCounter connectionCounter) {
+        mConnectionCounter = connectionCounter;
+        mStartRequests = connectionCounter.getRequests();
+        mStartReused = connectionCounter.getReused();
+    }
+
+    /**
+     * Records the time spent obtaining the session cookie.
+     */
+    public synchronized void addCookie(long millis) {
+        mCookieMillis += millis;
+    }
+
+    /**
+     * Records the time spent downloading and saving the list of events.
+     */
+    public synchronized void addEventList(long millis) {
+        mEventListMillis += millis;
+    }
+
+    /**
+     * Records the time spent for a chunk of attendees.
+     *
+     * @param eventId           The event of the attendees
+     * @param networkWaitMillis The time spent waiting for the response of the server
+     * @param parseMillis       The time spent reading and parsing the response
+     * @param writeMillis       The time spent writing the rows to the database
+     */
+    public synchronized void addChunk(String eventId, long networkWaitMillis, long parseMillis,
+                                      long writeMillis) {
+        mNetworkWaitMillis += networkWaitMillis;
+        mParseMillis += parseMillis;
+        mWriteMillis += writeMillis;
+        Long downloadMillis = mDownloadMillis.get(eventId);
+        mDownloadMillis.put(eventId, (downloadMillis == null ? 0 : downloadMillis) +
+                networkWaitMillis + parseMillis);
+    }
+
+    /**
+     * Records the time spent looking up the profile images of the attendees.
+     */
+    public synchronized void addAvatar(long millis) {
+        mAvatarMillis += millis;
+    }
+
+    /**
+     * Records the result of merging a chunk of attendees into the database.
+     *
+     * @param inserted  The number of new attendees
+     * @param updated   The number of attendees with some columns changed
+     * @param unchanged The number of attendees left untouched
+     */
+    public synchronized void addMerge(int inserted, int updated, int unchanged) {
+        mInsertedCount += inserted;
+        mUpdatedCount += updated;
+        mUnchangedCount += unchanged;
+    }
+
+    /**
+     * Records the number of attendees deleted.
+     */
+    public synchronized void addDeleted(int deleted) {
+        mDeletedCount += deleted;
+    }
+
+    /**
+     * Records that all the attendees of an event have been written.
+     */
+    public synchronized void addEvent() {
+        ++mEventCount;
+    }
+
+    /**
+     * Records an error, other than an expired session, that made a part of the sync fail.
+     */
+    public synchronized void addError(Throwable error) {
+        for (Throwable e = error; e != null; e = e.getCause()) {
+            if (e instanceof JSONException || e instanceof ParseError) {
+                ++mParseErrorCount;
+                return;
+            }
+        }
+        ++mIoErrorCount;
+    }
+
+    /**
+     * Records that the server kept rejecting our session.
+     */
+    public synchronized void addAuthError() {
+        ++mAuthErrorCount;
+    }
+
+    /**
+     * @return The counter for the bytes transferred during the sync.
+     */
+    public TransferCounter getTransferCounter() {
+        return mTransferCounter;
+    }
+
+    /**
+     * @return The number of HTTP requests sent during the sync.
+     */
+    public long getRequestCount() {
+        return mConnectionCounter.getRequests() - mStartRequests;
+    }
+
+    /**
+     * @return The number of HTTP requests sent on a connection kept alive from an earlier one.
+     */
+    public long getReusedConnectionCount() {
+        return mConnectionCounter.getReused() - mStartReused;
+    }
+
+    /**
+     * @return The time elapsed since this instance was created.
+     */
+    public long getElapsedMillis() {
+        return SystemClock.elapsedRealtime() - mStartElapsed;
+    }
+
+    /**
+     * @return The longest time spent downloading the attendees of a single event.
+     */
+    public synchronized long getMaxDownloadMillis() {
+        long max = 0;
+        for (long millis : mDownloadMillis.values()) {
+            max = Math.max(max, millis);
+        }
+        return max;
+    }
+
+    /**
+     * Adds the numbers of this sync to the {@link SyncResult} reported to the framework.
+     */
+    public synchronized void fillSyncResult(SyncResult syncResult) {
+        syncResult.stats.numInserts += mInsertedCount;
+        syncResult.stats.numUpdates += mUpdatedCount;
+        syncResult.stats.numDeletes += mDeletedCount;
+        syncResult.stats.numSkippedEntries += mUnchangedCount;
+        syncResult.stats.numIoExceptions += mIoErrorCount;
+        syncResult.stats.numParseExceptions += mParseErrorCount;
+        syncResult.stats.numAuthExceptions += mAuthErrorCount;
+    }
+
+    /**
+     * @return The values for a row in {@link Table#SYNC_LOG}.
+     */
+    public synchronized ContentValues toContentValues() {
+        ContentValues values = new ContentValues();
+        values.put(Table.SyncLog.START_TIME, mStartTime);
+        values.put(Table.SyncLog.ELAPSED_MILLIS, getElapsedMillis());
+        values.put(Table.SyncLog.COOKIE_MILLIS, mCookieMillis);
+        values.put(Table.SyncLog.EVENT_LIST_MILLIS, mEventListMillis);
+        values.put(Table.SyncLog.NETWORK_WAIT_MILLIS, mNetworkWaitMillis);
+        values.put(Table.SyncLog.MAX_DOWNLOAD_MILLIS, getMaxDownloadMillis());
+        values.put(Table.SyncLog.PARSE_MILLIS, mParseMillis);
+        values.put(Table.SyncLog.WRITE_MILLIS, mWriteMillis);
+        values.put(Table.SyncLog.AVATAR_MILLIS, mAvatarMillis);
+        values.put(Table.SyncLog.EVENT_COUNT, mEventCount);
+        values.put(Table.SyncLog.INSERTED, mInsertedCount);
+        values.put(Table.SyncLog.UPDATED, mUpdatedCount);
+        values.put(Table.SyncLog.DELETED, mDeletedCount);
+        values.put(Table.SyncLog.UNCHANGED, mUnchangedCount);
+        values.put(Table.SyncLog.ERRORS, mIoErrorCount + mParseErrorCount + mAuthErrorCount);
+        values.put(Table.SyncLog.BYTES_SENT, mTransferCounter.getSentWire());
+        values.put(Table.SyncLog.BYTES_RECEIVED, mTransferCounter.getReceivedWire());
+        values.put(Table.SyncLog.BYTES_RECEIVED_RAW, mTransferCounter.getReceivedRaw());
+        values.put(Table.SyncLog.REQUESTS, getRequestCount());
+        values.put(Table.SyncLog.REUSED_CONNECTIONS, getReusedConnectionCount());
+        return values;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(mEventCount).append(" event(s) in ").append(getElapsedMillis())
+                .append("ms (cookie: ").append(mCookieMillis)
+                .append("ms, event list: ").append(mEventListMillis)
+                .append("ms, network wait: ").append(mNetworkWaitMillis)
+                .append("ms, parse: ").append(mParseMillis)
+                .append("ms, write: ").append(mWriteMillis)
+                .append("ms, avatars: ").append(mAvatarMillis)
+                .append("ms), attendees: ").append(mInsertedCount)
+                .append(" inserted, ").append(mUpdatedCount)
+                .append(" updated, ").append(mDeletedCount)
+                .append(" deleted, ").append(mUnchangedCount)
+                .append(" unchanged, ").append(mTransferCounter)
+                .append(", ").append(getRequestCount()).append(" request(s) (")
+                .append(getReusedConnectionCount()).append(" on reused connections)");
+        for (Map.Entry<String, Long> entry : mDownloadMillis.entrySet()) {
+            builder.append(", event ").append(entry.getKey()).append(": ")
+                    .append(entry.getValue()).append("ms");
+        }
+        return builder.toString();
+    }
+
+}
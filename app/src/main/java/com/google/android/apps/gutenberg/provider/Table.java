@@ -53,11 +53,118 @@ public enum Table {
             new Column(Attendee.PLUSID, "TEXT"),
             new Column(Attendee.IMAGE_URL, "TEXT"),
             new Column(Attendee.CHECKIN, "INTEGER"), // Unix-time (seconds)
-            new Column(Attendee.CHECKIN_MODIFIED, "BOOLEAN", "FALSE"),
+            new Column(Attendee.CHECKIN_MODIFIED, "BOOLEAN", "0"),
             new Column(Attendee.NOTE, "TEXT"),
+            new Column(Attendee.CHECKIN_VERSION, "INTEGER"), // See CheckinMerge
     }, new String[]{
             Attendee.EVENT_ID,
             Attendee.ID
+    }, new Index[]{
+            // The attendee list, ordered by name, paged by name and ID
+            new Index("attendees_event_name", Attendee.EVENT_ID, Attendee.NAME, Attendee.ID),
+            // The attendee list, only those not checked in yet
+            new Index("attendees_event_coming_name", Attendee.CHECKIN + " IS NULL",
+                    new String[]{Attendee.EVENT_ID, Attendee.NAME, Attendee.ID}),
+            // The timeline
+            new Index("attendees_event_checkin", Attendee.EVENT_ID, Attendee.CHECKIN),
+    }, new SearchIndex("attendees_fts", Attendee.NAME, Attendee.EMAIL, Attendee.NOTE)),
+
+    /**
+     * Sync state of the attendees of each event.
+     */
+    EVENT_SYNC("event_syncs", new Column[]{
+            new Column(EventSync._ID, Column._ID_TYPE),
+            new Column(EventSync.EVENT_ID, "TEXT NOT NULL"),
+            new Column(EventSync.WATERMARK, "INTEGER NOT NULL"), // Unix-time (seconds)
+    }, new String[]{
+            EventSync.EVENT_ID
+    }),
+
+    /**
+     * Validators of the responses from the server, used for conditional requests.
+     */
+    VALIDATOR("validators", new Column[]{
+            new Column(Validator._ID, Column._ID_TYPE),
+            new Column(Validator.URL, "TEXT NOT NULL"),
+            new Column(Validator.ETAG, "TEXT"),
+            new Column(Validator.LAST_MODIFIED, "TEXT"),
+    }, new String[]{
+            Validator.URL
+    }),
+
+    /**
+     * Check-ins and reverts waiting to be uploaded to the server.
+     */
+    OUTBOX("outbox", new Column[]{
+            new Column(Outbox._ID, Column._ID_TYPE),
+            new Column(Outbox.EVENT_ID, "TEXT NOT NULL"),
+            new Column(Outbox.ATTENDEE_ID, "TEXT NOT NULL"),
+            new Column(Outbox.REVERT, "BOOLEAN NOT NULL"),
+            new Column(Outbox.CREATED, "INTEGER NOT NULL"), // Unix-time (milliseconds)
+            new Column(Outbox.ATTEMPTS, "INTEGER NOT NULL"),
+            new Column(Outbox.LAST_ERROR, "TEXT"),
+            new Column(Outbox.NEXT_ATTEMPT, "INTEGER NOT NULL"), // Unix-time (milliseconds)
+            new Column(Outbox.VERSION, "INTEGER NOT NULL", "0"), // See CheckinMerge
+    }, new String[]{
+            Outbox.EVENT_ID,
+            Outbox.ATTENDEE_ID
+    }, new Index[]{
+            // The entries due and the time of the next retry
+            new Index("outbox_next_attempt", Outbox.NEXT_ATTEMPT),
+    }),
+
+    /**
+     * Statistics of the recent syncs.
+     */
+    SYNC_LOG("sync_logs", new Column[]{
+            new Column(SyncLog._ID, Column._ID_TYPE),
+            new Column(SyncLog.START_TIME, "INTEGER NOT NULL"), // Unix-time (milliseconds)
+            new Column(SyncLog.ELAPSED_MILLIS, "INTEGER NOT NULL"),
+            new Column(SyncLog.COOKIE_MILLIS, "INTEGER NOT NULL"),
+            new Column(SyncLog.EVENT_LIST_MILLIS, "INTEGER NOT NULL"),
+            new Column(SyncLog.NETWORK_WAIT_MILLIS, "INTEGER NOT NULL"),
+            new Column(SyncLog.MAX_DOWNLOAD_MILLIS, "INTEGER NOT NULL"),
+            new Column(SyncLog.PARSE_MILLIS, "INTEGER NOT NULL"),
+            new Column(SyncLog.WRITE_MILLIS, "INTEGER NOT NULL"),
+            new Column(SyncLog.AVATAR_MILLIS, "INTEGER NOT NULL"),
+            new Column(SyncLog.EVENT_COUNT, "INTEGER NOT NULL"),
+            new Column(SyncLog.INSERTED, "INTEGER NOT NULL"),
+            new Column(SyncLog.UPDATED, "INTEGER NOT NULL"),
+            new Column(SyncLog.DELETED, "INTEGER NOT NULL"),
+            new Column(SyncLog.UNCHANGED, "INTEGER NOT NULL"),
+            new Column(SyncLog.ERRORS, "INTEGER NOT NULL"),
+            new Column(SyncLog.BYTES_SENT, "INTEGER NOT NULL"),
+            new Column(SyncLog.BYTES_RECEIVED, "INTEGER NOT NULL"),
+            new Column(SyncLog.BYTES_RECEIVED_RAW, "INTEGER NOT NULL"),
+            new Column(SyncLog.REQUESTS, "INTEGER NOT NULL", "0"),
+            new Column(SyncLog.REUSED_CONNECTIONS, "INTEGER NOT NULL", "0"),
+    }, new String[]{
+            SyncLog.START_TIME
+    }),
+
+    /**
+     * Cache of the Google+ profile image URLs.
+     */
+    AVATAR("avatars", new Column[]{
+            new Column(Avatar._ID, Column._ID_TYPE),
+            new Column(Avatar.PLUSID, "TEXT NOT NULL"),
+            new Column(Avatar.IMAGE_URL, "TEXT"),
+            new Column(Avatar.RESOLVED, "INTEGER NOT NULL"), // Unix-time (milliseconds)
+    }, new String[]{
+            Avatar.PLUSID
+    }),
+
+    /**
+     * Attendance counters of each event, maintained by {@link EventStatsTriggers}.
+     */
+    EVENT_STATS("event_stats", new Column[]{
+            new Column(EventStats._ID, Column._ID_TYPE),
+            new Column(EventStats.EVENT_ID, "TEXT NOT NULL"),
+            new Column(EventStats.TOTAL, "INTEGER NOT NULL", "0"),
+            new Column(EventStats.CHECKED_IN, "INTEGER NOT NULL", "0"),
+            new Column(EventStats.PENDING, "INTEGER NOT NULL", "0"),
+    }, new String[]{
+            EventStats.EVENT_ID
     });
 
     /**
@@ -66,21 +173,67 @@ public enum Table {
     public static final String AUTHORITY = "com.google.android.apps.gutenberg";
 
     /**
-     * Constant value for base type in {@link android.content.ContentProvider}.
+     * The first path segment of the search URIs; see {@link #getSearchUri(String, String...)}.
+     */
+    public static final String SEARCH = "search";
+
+    /**
+     * The query parameter for the text to search.
+     */
+    public static final String PARAMETER_QUERY = "q";
+
+    /**
+     * The query parameter for the maximum number of rows to return.
+     */
+    public static final String PARAMETER_LIMIT = "limit";
+
+    /**
+     * The query parameter for the number of rows to skip.
+     */
+    public static final String PARAMETER_OFFSET = "offset";
+
+    /**
+     * The query parameter for the sort key to start after, repeated for each column of the sort
+     * order.
      */
-    public static final int IS_BASE = 0;
+    public static final String PARAMETER_AFTER = "after";
 
     /**
-     * Constant value for item type in {@link android.content.ContentProvider}.
+     * The maximum number of ID columns of a table.
      */
-    public static final int IS_ITEM = 1;
+    private static final int MAX_ID_COLUMNS = 2;
 
     private static final int CODE_OFFSET = 1;
-    private static final int CODE_SPAN = 2; // IS_BASE or IS_ITEM, so always 2
+    private static final int SEARCH_CODE_OFFSET = MAX_ID_COLUMNS + 1; // The number of IDs
+    private static final int CODE_SPAN = SEARCH_CODE_OFFSET * 2; // Searching or not
 
     private final String mName;
     private final Column[] mColumns;
     private final String[] mIdColumns;
+    private final Index[] mIndexes;
+    private final SearchIndex mSearchIndex;
+    private final Uri mBaseUri;
+    private final String mSelectionById;
+
+    /**
+     * The results of {@link #match(int)}, indexed by the code.
+     */
+    private static final MatchResult[] MATCH_RESULTS;
+
+    static {
+        Table[] tables = values();
+        MATCH_RESULTS = new MatchResult[CODE_OFFSET + tables.length * CODE_SPAN];
+        for (Table table : tables) {
+            for (int i = 0; i <= table.mIdColumns.length; i++) {
+                MATCH_RESULTS[table.getCode(i)] = new MatchResult(table, i, false);
+            }
+            if (table.mSearchIndex != null) {
+                for (int i = 0; i < table.mIdColumns.length; i++) {
+                    MATCH_RESULTS[table.getSearchCode(i)] = new MatchResult(table, i, true);
+                }
+            }
+        }
+    }
 
     /**
      * Create a new instance of {@link Table}.
@@ -90,9 +243,39 @@ public enum Table {
      * @param idColumns The names of columns declared to be unique as a set
      */
     private Table(String name, Column[] columns, String[] idColumns) {
+        this(name, columns, idColumns, new Index[0]);
+    }
+
+    /**
+     * Create a new instance of {@link Table} with secondary indexes.
+     *
+     * @param name      The name of this table
+     * @param columns   The list of columns in this table
+     * @param idColumns The names of columns declared to be unique as a set
+     * @param indexes   The secondary indexes of this table
+     */
+    private Table(String name, Column[] columns, String[] idColumns, Index[] indexes) {
+        this(name, columns, idColumns, indexes, null);
+    }
+
+    /**
+     * Create a new instance of {@link Table} with secondary indexes and a full-text index.
+     *
+     * @param name        The name of this table
+     * @param columns     The list of columns in this table
+     * @param idColumns   The names of columns declared to be unique as a set
+     * @param indexes     The secondary indexes of this table
+     * @param searchIndex The full-text index of this table, or null
+     */
+    private Table(String name, Column[] columns, String[] idColumns, Index[] indexes,
+                  SearchIndex searchIndex) {
         mName = name;
         mColumns = columns;
         mIdColumns = idColumns;
+        mIndexes = indexes;
+        mSearchIndex = searchIndex;
+        mBaseUri = Uri.parse("content://" + AUTHORITY + "/" + name);
+        mSelectionById = getSelectionById(idColumns.length);
     }
 
     /**
@@ -102,12 +285,49 @@ public enum Table {
      * @return The instance of {@link MatchResult} that corresponds to the code.
      */
     public static MatchResult match(int code) {
-        int baseOrItem = (code - CODE_OFFSET) % CODE_SPAN;
-        int index = (code - CODE_OFFSET - baseOrItem) / CODE_SPAN;
-        if (Table.values().length <= index) {
+        if (code < 0 || MATCH_RESULTS.length <= code) {
             return null;
         }
-        return new MatchResult(Table.values()[index], baseOrItem == IS_ITEM);
+        return MATCH_RESULTS[code];
+    }
+
+    /**
+     * Get the table with the specified name.
+     *
+     * @param name The name of the table
+     * @return The table, or null if there is no such table.
+     */
+    public static Table fromBaseName(String name) {
+        for (MatchResult match : MATCH_RESULTS) {
+            if (match != null && match.getIdCount() == 0 && !match.isSearch() &&
+                    match.getTable().mName.equals(name)) {
+                return match.getTable();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the code in {@link android.content.ContentProvider} for the URIs with the specified
+     * number of IDs.
+     *
+     * @param idCount The number of IDs, from 0 for whole this table to the number of the ID
+     *                columns for each item
+     * @return The code
+     */
+    public int getCode(int idCount) {
+        return CODE_OFFSET + idCount + ordinal() * CODE_SPAN;
+    }
+
+    /**
+     * Get the code in {@link android.content.ContentProvider} for the search URIs with the
+     * specified number of IDs.
+     *
+     * @param idCount The number of IDs, less than the number of the ID columns
+     * @return The code
+     */
+    public int getSearchCode(int idCount) {
+        return getCode(idCount) + SEARCH_CODE_OFFSET;
     }
 
     /**
@@ -116,7 +336,7 @@ public enum Table {
      * @return The code
      */
     public int getBaseCode() {
-        return CODE_OFFSET + IS_BASE + ordinal() * CODE_SPAN;
+        return getCode(0);
     }
 
     /**
@@ -125,7 +345,7 @@ public enum Table {
      * @return The code
      */
     public int getItemCode() {
-        return CODE_OFFSET + IS_ITEM + ordinal() * CODE_SPAN;
+        return getCode(mIdColumns.length);
     }
 
     /**
@@ -143,31 +363,115 @@ public enum Table {
      * @return The table name
      */
     public String getItemName() {
+        return getPathPattern(mIdColumns.length);
+    }
+
+    /**
+     * Get the path pattern for the URIs with the specified number of IDs. With fewer IDs than the
+     * ID columns, the URI stands for the group of items that share those IDs, like the
+     * attendees of an event.
+     *
+     * @param idCount The number of IDs
+     * @return The pattern for {@link android.content.UriMatcher}
+     */
+    public String getPathPattern(int idCount) {
         StringBuilder name = new StringBuilder(mName);
-        for (int i = 0; i < mIdColumns.length; i++) {
+        for (int i = 0; i < idCount; i++) {
             name.append("/*");
         }
         return name.toString();
     }
 
+    /**
+     * Get the path pattern for the search URIs with the specified number of IDs.
+     *
+     * @param idCount The number of IDs
+     * @return The pattern for {@link android.content.UriMatcher}
+     */
+    public String getSearchPathPattern(int idCount) {
+        return SEARCH + "/" + getPathPattern(idCount);
+    }
+
     /**
      * Get the {@link Uri} of this table.
      *
      * @return The {@link Uri} in {@link android.content.ContentProvider}
      */
     public Uri getBaseUri() {
-        return Uri.parse("content://" + Table.AUTHORITY + "/" + mName);
+        return mBaseUri;
     }
 
     /**
-     * Get the {@link Uri} for the specified item in this table.
+     * Get the {@link Uri} for the specified item in this table. With only the leading IDs, the
+     * {@link Uri} is for the group of the items that share them.
      *
      * @param ids The IDs of the item
      * @return The {@link Uri} in {@link android.content.ContentProvider}
      */
     public Uri getItemUri(String... ids) {
-        return Uri.parse("content://" + Table.AUTHORITY + "/" + mName + "/"
-                + TextUtils.join("/", ids));
+        Uri.Builder builder = mBaseUri.buildUpon();
+        for (String id : ids) {
+            builder.appendPath(id);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Get the {@link Uri} to search this table, or the group of the items that share the IDs, with
+     * its full-text index. The words of the query match the words starting with them, and the rows
+     * are ranked by the first column of the index that matches all of them.
+     *
+     * @param query The text to search
+     * @param ids   The leading IDs of the items
+     * @return The {@link Uri} in {@link android.content.ContentProvider}
+     */
+    public Uri getSearchUri(String query, String... ids) {
+        Uri.Builder builder = new Uri.Builder()
+                .scheme(ContentResolver.SCHEME_CONTENT)
+                .authority(AUTHORITY)
+                .appendPath(SEARCH)
+                .appendPath(mName);
+        for (String id : ids) {
+            builder.appendPath(id);
+        }
+        return builder.appendQueryParameter(PARAMETER_QUERY, query).build();
+    }
+
+    /**
+     * Get the {@link Uri} for a page of the rows of the {@link Uri}, by keyset pagination. The page
+     * starts after the row with the key, in the sort order of the query. The sort order has to be
+     * a list of NOT NULL columns that identify the rows, like name and ID, and the key has a value
+     * for each of them, like the ones of the last row of the previous page.
+     *
+     * @param uri   The {@link Uri} of the rows
+     * @param limit The maximum number of rows in the page
+     * @param after The key to start after, or nothing for the first page
+     * @return The {@link Uri} in {@link android.content.ContentProvider}
+     */
+    public static Uri getPageUri(Uri uri, int limit, String... after) {
+        Uri.Builder builder = uri.buildUpon()
+                .appendQueryParameter(PARAMETER_LIMIT, String.valueOf(limit));
+        for (String value : after) {
+            builder.appendQueryParameter(PARAMETER_AFTER, value);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Get the {@link Uri} for a page of the rows of the {@link Uri}, by its position. Skipping the
+     * rows costs as much as reading them, unless they are covered by an index; see
+     * {@link #getPageUri(Uri, int, String...)}.
+     *
+     * @param uri    The {@link Uri} of the rows
+     * @param limit  The maximum number of rows in the page
+     * @param offset The number of the rows before the page
+     * @return The {@link Uri} in {@link android.content.ContentProvider}
+     */
+    public static Uri getPageUri(Uri uri, int limit, int offset) {
+        return uri.buildUpon()
+                .appendQueryParameter(PARAMETER_LIMIT, String.valueOf(limit))
+                .appendQueryParameter(PARAMETER_OFFSET, String.valueOf(offset))
+                .build();
     }
 
     /**
@@ -188,9 +492,48 @@ public enum Table {
         return ContentResolver.CURSOR_ITEM_BASE_TYPE + "/vnd." + AUTHORITY + "." + mName;
     }
 
+    /**
+     * @return The columns of this table.
+     */
+    public Column[] getColumns() {
+        return mColumns;
+    }
+
+    /**
+     * @return The names of the columns that identify each item in this table.
+     */
+    public String[] getIdColumns() {
+        return mIdColumns;
+    }
+
+    /**
+     * @return The secondary indexes of this table. The unique index of the ID columns is not
+     * included.
+     */
+    public Index[] getIndexes() {
+        return mIndexes;
+    }
+
+    /**
+     * @return The full-text index of this table, or null if it has none.
+     */
+    public SearchIndex getSearchIndex() {
+        return mSearchIndex;
+    }
+
     public String getSelectionById() {
+        return mSelectionById;
+    }
+
+    /**
+     * Get the selection for the leading ID columns.
+     *
+     * @param idCount The number of the ID columns
+     * @return The selection, with an argument for each of the ID columns
+     */
+    public String getSelectionById(int idCount) {
         StringBuilder selection = new StringBuilder();
-        for (int i = 0; i < mIdColumns.length; i++) {
+        for (int i = 0; i < idCount; i++) {
             if (i != 0) {
                 selection.append(" AND ");
             }
@@ -210,13 +553,7 @@ public enum Table {
         buffer.append(mName);
         buffer.append(" (");
         for (Column column : mColumns) {
-            buffer.append(column.name);
-            buffer.append(" ");
-            buffer.append(column.type);
-            if (column.defaultValue != null) {
-                buffer.append("DEFAULT ");
-                buffer.append(column.defaultValue);
-            }
+            buffer.append(column.getDefinition());
             buffer.append(", ");
         }
         buffer.append("UNIQUE (");
@@ -250,6 +587,133 @@ public enum Table {
         public static final String CHECKIN = "checkin";
         public static final String CHECKIN_MODIFIED = "checkin_modified";
         public static final String NOTE = "note";
+        /**
+         * The version of {@link #CHECKIN}; see {@link CheckinMerge}.
+         */
+        public static final String CHECKIN_VERSION = "checkin_version";
+    }
+
+    /**
+     * Column constants for the `event_syncs` table.
+     */
+    public interface EventSync extends BaseColumns {
+        public static final String EVENT_ID = "event_id";
+        /**
+         * The largest modification time of the attendees received from the server.
+         */
+        public static final String WATERMARK = "watermark";
+    }
+
+    /**
+     * Column constants for the `validators` table.
+     */
+    public interface Validator extends BaseColumns {
+        /**
+         * The full URL of the request, including the query, such as "?since=" for the delta of
+         * the attendees.
+         */
+        public static final String URL = "url";
+        public static final String ETAG = "etag";
+        public static final String LAST_MODIFIED = "last_modified";
+    }
+
+    /**
+     * Column constants for the `outbox` table.
+     */
+    public interface Outbox extends BaseColumns {
+        public static final String EVENT_ID = "event_id";
+        public static final String ATTENDEE_ID = "attendee_id";
+        public static final String REVERT = "revert";
+        public static final String CREATED = "created";
+        /**
+         * The number of failed uploads.
+         */
+        public static final String ATTEMPTS = "attempts";
+        public static final String LAST_ERROR = "last_error";
+        /**
+         * The earliest time for the next upload.
+         */
+        public static final String NEXT_ATTEMPT = "next_attempt";
+        /**
+         * The version of the check-in; see {@link CheckinMerge}.
+         */
+        public static final String VERSION = "version";
+    }
+
+    /**
+     * Column constants for the `sync_logs` table.
+     */
+    public interface SyncLog extends BaseColumns {
+        public static final String START_TIME = "start_time";
+        public static final String ELAPSED_MILLIS = "elapsed_millis";
+        public static final String COOKIE_MILLIS = "cookie_millis";
+        public static final String EVENT_LIST_MILLIS = "event_list_millis";
+        public static final String NETWORK_WAIT_MILLIS = "network_wait_millis";
+        /**
+         * The longest time spent downloading the attendees of a single event.
+         */
+        public static final String MAX_DOWNLOAD_MILLIS = "max_download_millis";
+        public static final String PARSE_MILLIS = "parse_millis";
+        public static final String WRITE_MILLIS = "write_millis";
+        public static final String AVATAR_MILLIS = "avatar_millis";
+        public static final String EVENT_COUNT = "event_count";
+        public static final String INSERTED = "inserted";
+        public static final String UPDATED = "updated";
+        public static final String DELETED = "deleted";
+        public static final String UNCHANGED = "unchanged";
+        public static final String ERRORS = "errors";
+        /**
+         * The bytes sent over the network.
+         */
+        public static final String BYTES_SENT = "bytes_sent";
+        /**
+         * The bytes received over the network.
+         */
+        public static final String BYTES_RECEIVED = "bytes_received";
+        /**
+         * The bytes received after decompression.
+         */
+        public static final String BYTES_RECEIVED_RAW = "bytes_received_raw";
+        public static final String REQUESTS = "requests";
+        /**
+         * The number of requests sent on a connection kept alive from an earlier request.
+         */
+        public static final String REUSED_CONNECTIONS = "reused_connections";
+    }
+
+    /**
+     * Column constants for the `event_stats` table. An event has no row until it has an attendee
+     * or a check-in in the outbox.
+     */
+    public interface EventStats extends BaseColumns {
+        public static final String EVENT_ID = "event_id";
+        /**
+         * The number of the attendees.
+         */
+        public static final String TOTAL = "total";
+        /**
+         * The number of the attendees checked in.
+         */
+        public static final String CHECKED_IN = "checked_in";
+        /**
+         * The number of the check-ins and reverts waiting to be uploaded.
+         */
+        public static final String PENDING = "pending";
+    }
+
+    /**
+     * Column constants for the `avatars` table.
+     */
+    public interface Avatar extends BaseColumns {
+        public static final String PLUSID = "plusid";
+        /**
+         * The URL of the profile image, or null if the person has none.
+         */
+        public static final String IMAGE_URL = "image_url";
+        /**
+         * The time when the URL was looked up.
+         */
+        public static final String RESOLVED = "resolved";
     }
 
 }
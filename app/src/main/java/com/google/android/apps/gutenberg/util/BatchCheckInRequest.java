@@ -0,0 +1,129 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg.util;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Response;
+import com.android.volley.toolbox.JsonObjectRequest;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Uploads multiple check-ins of an event in a single request. The response has a result for each
+ * of the check-ins: {"results": [{"id": ..., "checkinTime": ..., "version": ...},
+ * {"id": ..., "error": ...}]}. The check-in time and its version are the ones the server has
+ * after merging ours.
+ */
+public class BatchCheckInRequest extends JsonObjectRequest {
+
+    private final String mCookie;
+    private TransferCounter mTransferCounter;
+    private GzipUtils.EncodedBody mEncodedBody;
+
+    /**
+     * @param attendeeIds The IDs of the attendees
+     * @param reverts     Whether to revert the check-in of each attendee in {@code attendeeIds}
+     * @param versions    The version of each check-in; see
+     *                    {@link com.google.android.apps.gutenberg.provider.CheckinMerge}
+     */
+    public BatchCheckInRequest(String cookie, String eventId, List<String> attendeeIds,
+                               List<Boolean> reverts, List<Long> versions,
+                               Response.Listener<JSONObject> listener,
+                               Response.ErrorListener errorListener) {
+        super(Method.POST,
+                ServerHost.get() + "/v1/event/" + eventId + "/checkins",
+                createRequestJSONObject(attendeeIds, reverts, versions),
+                listener,
+                errorListener);
+        mCookie = cookie;
+        setShouldCache(false);
+    }
+
+    /**
+     * @param counter The counter for the bytes transferred by this request
+     */
+    public void setTransferCounter(TransferCounter counter) {
+        mTransferCounter = counter;
+    }
+
+    @Override
+    public Map<String, String> getHeaders() throws AuthFailureError {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.putAll(super.getHeaders());
+        headers.put("Cookie", mCookie);
+        headers.put("Accept-Encoding", GzipUtils.GZIP);
+        if (getEncodedBody().compressed) {
+            headers.put("Content-Encoding", GzipUtils.GZIP);
+        }
+        return headers;
+    }
+
+    @Override
+    public byte[] getBody() {
+        return getEncodedBody().data;
+    }
+
+    /**
+     * Encodes the body once for the headers, the body, and the retries.
+     */
+    private synchronized GzipUtils.EncodedBody getEncodedBody() {
+        if (mEncodedBody == null) {
+            mEncodedBody = GzipUtils.encode(super.getBody(), mTransferCounter);
+        }
+        return mEncodedBody;
+    }
+
+    @Override
+    protected Response<JSONObject> parseNetworkResponse(NetworkResponse response) {
+        ServerClock.update(response.headers);
+        try {
+            return super.parseNetworkResponse(GzipUtils.decompress(response, mTransferCounter));
+        } catch (IOException e) {
+            return Response.error(new ParseError(e));
+        }
+    }
+
+    private static JSONObject createRequestJSONObject(List<String> attendeeIds,
+                                                      List<Boolean> reverts,
+                                                      List<Long> versions) {
+        JSONObject request = new JSONObject();
+        try {
+            JSONArray checkins = new JSONArray();
+            for (int i = 0; i < attendeeIds.size(); i++) {
+                JSONObject checkin = new JSONObject();
+                checkin.put("id", attendeeIds.get(i));
+                checkin.put("revert", reverts.get(i));
+                checkin.put("version", versions.get(i));
+                checkins.put(checkin);
+            }
+            request.put("checkins", checkins);
+            return request;
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+}
@@ -17,29 +17,46 @@
 package com.google.android.apps.gutenberg.util;
 
 import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
 import com.android.volley.Response;
 import com.android.volley.toolbox.JsonObjectRequest;
-import com.google.android.apps.gutenberg.BuildConfig;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
 public class CheckInRequest extends JsonObjectRequest {
 
     private final String mCookie;
+    private TransferCounter mTransferCounter;
+    private GzipUtils.EncodedBody mEncodedBody;
 
+    /**
+     * @param version The version of the check-in; see
+     *                {@link com.google.android.apps.gutenberg.provider.CheckinMerge}
+     */
     public CheckInRequest(String cookie, String eventId, String attendeeId, boolean revert,
+                          long version,
                           Response.Listener<JSONObject> listener,
                           Response.ErrorListener errorListener) {
         super(Method.POST,
-                BuildConfig.HOST + "/v1/event/" + eventId + "/" + attendeeId + "/checkin",
-                createRequestJSONObject(revert),
+                ServerHost.get() + "/v1/event/" + eventId + "/" + attendeeId + "/checkin",
+                createRequestJSONObject(revert, version),
                 listener,
                 errorListener);
         mCookie = cookie;
+        setShouldCache(false);
+    }
+
+    /**
+     * @param counter The counter for the bytes transferred by this request
+     */
+    public void setTransferCounter(TransferCounter counter) {
+        mTransferCounter = counter;
     }
 
     @Override
@@ -47,13 +64,43 @@ public class CheckInRequest extends JsonObjectRequest {
         Map<String, String> headers = new HashMap<String, String>();
         headers.putAll(super.getHeaders());
         headers.put("Cookie", mCookie);
+        headers.put("Accept-Encoding", GzipUtils.GZIP);
+        if (getEncodedBody().compressed) {
+            headers.put("Content-Encoding", GzipUtils.GZIP);
+        }
         return headers;
     }
 
-    private static JSONObject createRequestJSONObject(boolean revert) {
+    @Override
+    public byte[] getBody() {
+        return getEncodedBody().data;
+    }
+
+    /**
+     * Encodes the body once for the headers, the body, and the retries.
+     */
+    private synchronized GzipUtils.EncodedBody getEncodedBody() {
+        if (mEncodedBody == null) {
+            mEncodedBody = GzipUtils.encode(super.getBody(), mTransferCounter);
+        }
+        return mEncodedBody;
+    }
+
+    @Override
+    protected Response<JSONObject> parseNetworkResponse(NetworkResponse response) {
+        ServerClock.update(response.headers);
+        try {
+            return super.parseNetworkResponse(GzipUtils.decompress(response, mTransferCounter));
+        } catch (IOException e) {
+            return Response.error(new ParseError(e));
+        }
+    }
+
+    private static JSONObject createRequestJSONObject(boolean revert, long version) {
         JSONObject request = new JSONObject();
         try {
             request.put("revert", revert);
+            request.put("version", version);
             return request;
         } catch (JSONException e) {
             return null;
@@ -16,24 +16,34 @@
 
 package com.google.android.apps.gutenberg.util;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.os.AsyncTask;
+import android.os.RemoteException;
+import android.util.Log;
 
 import com.google.android.apps.gutenberg.GutenbergApplication;
 import com.google.android.apps.gutenberg.model.Checkin;
+import com.google.android.apps.gutenberg.provider.OutboxScheduler;
 import com.google.android.apps.gutenberg.provider.Table;
 
+import java.util.ArrayList;
+
 public class CheckInTask extends AsyncTask<Void, Void, Checkin> {
 
+    private static final String TAG = "CheckInTask";
+
     private final Context mContext;
     private final String mAttendeeId;
     private final String mEventId;
     private final boolean mRevert;
     private final OnCompleteListener mListener;
     private int mError;
+    private long mCurrentVersion;
 
     public static final int ERROR_ALREADY_CHECKED_IN = 1;
     public static final int ERROR_NOT_YET_CHECKED_IN = 2;
@@ -62,23 +72,55 @@ public class CheckInTask extends AsyncTask<Void, Void, Checkin> {
             mError = ERROR_NOT_YET_CHECKED_IN;
             return null;
         }
+        // The version must be newer than the state the user has seen, even if the clock is off
+        long serverNow = ServerClock.now();
+        long version = Math.max(serverNow, mCurrentVersion + 1);
         ContentValues values = new ContentValues();
         if (mRevert) {
             values.putNull(Table.Attendee.CHECKIN);
         } else {
-            values.put(Table.Attendee.CHECKIN, System.currentTimeMillis());
+            values.put(Table.Attendee.CHECKIN, serverNow / 1000);
         }
+        values.put(Table.Attendee.CHECKIN_VERSION, version);
         values.put(Table.Attendee.CHECKIN_MODIFIED, true);
-        int count = resolver.update(Table.ATTENDEE.getBaseUri(), values, Table.Attendee.ID + " = ?",
-                new String[]{mAttendeeId});
-        return count == 0 ? null : loadCheckin(resolver);
+        // Record the check-in in the outbox together with the attendee, so that it is
+        // uploaded even if the first sync fails. If the attendee is gone by now, the expected
+        // count fails the batch and rolls back the outbox row, which could never be uploaded.
+        long now = System.currentTimeMillis();
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation
+                .newUpdate(Table.ATTENDEE.getItemUri(mEventId, mAttendeeId))
+                .withValues(values)
+                .withExpectedCount(1)
+                .build());
+        operations.add(ContentProviderOperation.newInsert(Table.OUTBOX.getBaseUri())
+                .withValue(Table.Outbox.EVENT_ID, mEventId)
+                .withValue(Table.Outbox.ATTENDEE_ID, mAttendeeId)
+                .withValue(Table.Outbox.REVERT, mRevert)
+                .withValue(Table.Outbox.CREATED, now)
+                .withValue(Table.Outbox.ATTEMPTS, 0)
+                .withValue(Table.Outbox.NEXT_ATTEMPT, now)
+                .withValue(Table.Outbox.VERSION, version)
+                .build());
+        try {
+            resolver.applyBatch(Table.AUTHORITY, operations);
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, "Cannot save the check-in.", e);
+            mError = ERROR_BAD_CHECK_IN;
+            return null;
+        } catch (RemoteException e) {
+            Log.e(TAG, "Cannot save the check-in.", e);
+            return null;
+        }
+        OutboxScheduler.setConnectivityReceiverEnabled(mContext, true);
+        return loadCheckin(resolver);
     }
 
     private boolean isUserCheckedIn(ContentResolver resolver) {
         Cursor cursor = null;
         try {
             cursor = resolver.query(Table.ATTENDEE.getBaseUri(),
-                    new String[]{Table.Attendee.CHECKIN},
+                    new String[]{Table.Attendee.CHECKIN, Table.Attendee.CHECKIN_VERSION},
                     Table.Attendee.EVENT_ID + " = ? AND " + Table.Attendee.ID + " = ?",
                     new String[]{mEventId, mAttendeeId}, null);
             if (0 == cursor.getCount()) {
@@ -86,6 +128,8 @@ public class CheckInTask extends AsyncTask<Void, Void, Checkin> {
                 return false;
             }
             cursor.moveToFirst();
+            mCurrentVersion = cursor.getLong(
+                    cursor.getColumnIndexOrThrow(Table.Attendee.CHECKIN_VERSION));
             return cursor.getLong(cursor.getColumnIndexOrThrow(Table.Attendee.CHECKIN)) > 0;
         } finally {
             if (cursor != null) {
@@ -114,7 +158,7 @@ public class CheckInTask extends AsyncTask<Void, Void, Checkin> {
     @Override
     protected void onPostExecute(Checkin checkin) {
         if (checkin != null) {
-            GutenbergApplication.from(mContext).requestSync(true);
+            GutenbergApplication.from(mContext).requestCheckinSync();
         }
         if (mListener != null) {
             mListener.onComplete(checkin, mError);
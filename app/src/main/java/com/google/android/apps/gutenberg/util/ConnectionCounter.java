@@ -0,0 +1,50 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the HTTP requests sent to the server, and how many of them reused a pooled connection
+ * rather than opening a new one.
+ */
+public class ConnectionCounter {
+
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mReused = new AtomicLong();
+
+    public void addRequest(boolean reused) {
+        mRequests.incrementAndGet();
+        if (reused) {
+            mReused.incrementAndGet();
+        }
+    }
+
+    public long getRequests() {
+        return mRequests.get();
+    }
+
+    public long getReused() {
+        return mReused.get();
+    }
+
+    @Override
+    public String toString() {
+        return getRequests() + " request(s), " + getReused() + " on reused connections";
+    }
+
+}
@@ -17,22 +17,72 @@
 package com.google.android.apps.gutenberg.util;
 
 import com.android.volley.AuthFailureError;
+import com.android.volley.Cache;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
 import com.android.volley.Response;
 import com.android.volley.toolbox.JsonArrayRequest;
 
 import org.json.JSONArray;
 
+import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
 public class GaeJsonArrayRequest extends JsonArrayRequest {
 
     private final String mCookie;
+    private String mETag;
+    private String mLastModified;
+    private volatile String mResponseETag;
+    private volatile String mResponseLastModified;
+    private TransferCounter mTransferCounter;
 
     public GaeJsonArrayRequest(String url, String cookie, Response.Listener<JSONArray> listener,
                                Response.ErrorListener errorListener) {
         super(url, listener, errorListener);
         mCookie = cookie;
+        // We keep validators of our own rather than caching the whole response in Volley
+        setShouldCache(false);
+    }
+
+    /**
+     * Makes this request conditional. When the server responds with 304 (Not Modified), null is
+     * delivered to the listener.
+     *
+     * @param etag         The ETag of the last response, or null
+     * @param lastModified The Last-Modified of the last response, or null
+     */
+    public void setValidators(String etag, String lastModified) {
+        mETag = etag;
+        mLastModified = lastModified;
+        // BasicNetwork needs a cache entry to handle 304
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = new byte[0];
+        entry.responseHeaders = Collections.emptyMap();
+        setCacheEntry(entry);
+    }
+
+    /**
+     * @param counter The counter for the bytes transferred by this request
+     */
+    public void setTransferCounter(TransferCounter counter) {
+        mTransferCounter = counter;
+    }
+
+    /**
+     * @return The ETag of the response, or null.
+     */
+    public String getResponseETag() {
+        return mResponseETag;
+    }
+
+    /**
+     * @return The Last-Modified of the response, or null.
+     */
+    public String getResponseLastModified() {
+        return mResponseLastModified;
     }
 
     @Override
@@ -40,7 +90,29 @@ public class GaeJsonArrayRequest extends JsonArrayRequest {
         Map<String, String> headers = new HashMap<String, String>();
         headers.putAll(super.getHeaders());
         headers.put("Cookie", mCookie);
+        headers.put("Accept-Encoding", GzipUtils.GZIP);
+        if (mETag != null) {
+            headers.put("If-None-Match", mETag);
+        }
+        if (mLastModified != null) {
+            headers.put("If-Modified-Since", mLastModified);
+        }
         return headers;
     }
 
+    @Override
+    protected Response<JSONArray> parseNetworkResponse(NetworkResponse response) {
+        ServerClock.update(response.headers);
+        mResponseETag = GzipUtils.getHeader(response.headers, "ETag");
+        mResponseLastModified = GzipUtils.getHeader(response.headers, "Last-Modified");
+        if (response.notModified) {
+            return Response.success(null, null);
+        }
+        try {
+            return super.parseNetworkResponse(GzipUtils.decompress(response, mTransferCounter));
+        } catch (IOException e) {
+            return Response.error(new ParseError(e));
+        }
+    }
+
 }
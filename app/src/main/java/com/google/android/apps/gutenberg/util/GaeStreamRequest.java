@@ -0,0 +1,156 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg.util;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A GET request to the server whose response body is read as a stream, rather than buffered as a
+ * whole like Volley requests.
+ */
+public class GaeStreamRequest implements Closeable {
+
+    private final String mUrl;
+    private final String mCookie;
+    private String mETag;
+    private String mLastModified;
+    private volatile HttpURLConnection mConnection;
+    private TransferCounter mTransferCounter;
+    private int mReadTimeout;
+    private CountingInputStream mWireStream;
+    private CountingInputStream mRawStream;
+
+    public GaeStreamRequest(String url, String cookie) {
+        mUrl = url;
+        mCookie = cookie;
+    }
+
+    /**
+     * Makes this request conditional.
+     *
+     * @param etag         The ETag of the last response, or null
+     * @param lastModified The Last-Modified of the last response, or null
+     */
+    public void setValidators(String etag, String lastModified) {
+        mETag = etag;
+        mLastModified = lastModified;
+    }
+
+    /**
+     * @param counter The counter for the bytes transferred by this request
+     */
+    public void setTransferCounter(TransferCounter counter) {
+        mTransferCounter = counter;
+    }
+
+    /**
+     * @param timeout The read timeout in milliseconds, or 0 for the default
+     */
+    public void setReadTimeout(int timeout) {
+        mReadTimeout = timeout;
+    }
+
+    /**
+     * Sends this request and opens the response body.
+     *
+     * @return The response body, or null if the server responded with 304 (Not Modified)
+     * @throws IOException When the request fails or the server doesn't respond with 200.
+     *                     {@link SessionManager.SessionExpiredException} when the server
+     *                     rejects the cookie.
+     */
+    public InputStream open() throws IOException {
+        mConnection = SyncHttpClient.getInstance().open(new URL(mUrl));
+        mConnection.setInstanceFollowRedirects(false);
+        if (mReadTimeout > 0) {
+            mConnection.setReadTimeout(mReadTimeout);
+        }
+        mConnection.setRequestProperty("Cookie", mCookie);
+        mConnection.setRequestProperty("Accept-Encoding", GzipUtils.GZIP);
+        if (mETag != null) {
+            mConnection.setRequestProperty("If-None-Match", mETag);
+        }
+        if (mLastModified != null) {
+            mConnection.setRequestProperty("If-Modified-Since", mLastModified);
+        }
+        int responseCode = mConnection.getResponseCode();
+        ServerClock.update(mConnection.getDate());
+        if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            return null;
+        }
+        if (SessionManager.isSessionExpired(responseCode)) {
+            throw new SessionManager.SessionExpiredException(
+                    "Session expired (" + responseCode + "): " + mUrl);
+        }
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Unexpected response code " + responseCode + ": " + mUrl);
+        }
+        GzipUtils.checkAcceptEncoding(mConnection.getHeaderField("Accept-Encoding"));
+        mWireStream = new CountingInputStream(mConnection.getInputStream());
+        InputStream in = mWireStream;
+        if (GzipUtils.GZIP.equalsIgnoreCase(mConnection.getContentEncoding())) {
+            in = new GZIPInputStream(new BufferedInputStream(in));
+        }
+        mRawStream = new CountingInputStream(in);
+        return new BufferedInputStream(mRawStream);
+    }
+
+    /**
+     * @return The ETag of the response, or null.
+     */
+    public String getETag() {
+        return mConnection == null ? null : mConnection.getHeaderField("ETag");
+    }
+
+    /**
+     * @return The Last-Modified of the response, or null.
+     */
+    public String getLastModified() {
+        return mConnection == null ? null : mConnection.getHeaderField("Last-Modified");
+    }
+
+    /**
+     * Closes the response, giving the connection back to the pool of {@link SyncHttpClient}.
+     */
+    @Override
+    public void close() {
+        if (mTransferCounter != null && mWireStream != null) {
+            mTransferCounter.addReceived(mWireStream.getCount(), mRawStream.getCount());
+            mWireStream = null;
+        }
+        if (mConnection != null) {
+            SyncHttpClient.release(mConnection);
+            mConnection = null;
+        }
+    }
+
+    /**
+     * Aborts this request from another thread, closing its connection.
+     */
+    public void abort() {
+        HttpURLConnection connection = mConnection;
+        if (connection != null) {
+            connection.disconnect();
+        }
+    }
+
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg.util;
+
+import com.android.volley.NetworkResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Handles gzip compression of the requests and responses. We ask for gzip explicitly, rather than
+ * leaving it to {@link java.net.HttpURLConnection}, so that we can count the compressed bytes.
+ */
+public class GzipUtils {
+
+    public static final String GZIP = "gzip";
+
+    /**
+     * Request bodies smaller than this are not worth compressing.
+     */
+    private static final int MIN_COMPRESS_LENGTH = 512;
+
+    /**
+     * Set when the server says it accepts gzip request bodies by "Accept-Encoding" in a response
+     * (RFC 7694).
+     */
+    private static volatile boolean sServerAcceptsGzip;
+
+    private GzipUtils() {
+    }
+
+    /**
+     * @return True if the request body should be compressed.
+     */
+    public static boolean shouldCompress(byte[] body) {
+        return sServerAcceptsGzip && body != null && body.length >= MIN_COMPRESS_LENGTH;
+    }
+
+    /**
+     * Compresses a request body.
+     */
+    public static byte[] compress(byte[] body) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4);
+            GZIPOutputStream gzip = new GZIPOutputStream(out);
+            gzip.write(body);
+            gzip.close();
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Never happens in memory
+        }
+    }
+
+    /**
+     * Compresses a request body if it is worth it, and counts the bytes. The result should be
+     * kept for the request, so that its body and "Content-Encoding" agree even if the server
+     * turns out to accept gzip in between, and so that retries are not counted again.
+     *
+     * @param body    The request body, or null
+     * @param counter The counter, or null
+     * @return The body to be sent.
+     */
+    public static EncodedBody encode(byte[] body, TransferCounter counter) {
+        if (body == null) {
+            return new EncodedBody(null, false);
+        }
+        boolean compressed = shouldCompress(body);
+        byte[] wire = compressed ? compress(body) : body;
+        if (counter != null) {
+            counter.addSent(wire.length, body.length);
+        }
+        return new EncodedBody(wire, compressed);
+    }
+
+    /**
+     * Decompresses the body of a Volley response if it is gzipped, and counts the bytes.
+     *
+     * @param response The response
+     * @param counter  The counter, or null
+     * @return The response with the decompressed body.
+     * @throws IOException When the body is broken.
+     */
+    public static NetworkResponse decompress(NetworkResponse response, TransferCounter counter)
+            throws IOException {
+        checkAcceptEncoding(getHeader(response.headers, "Accept-Encoding"));
+        if (response.data == null) {
+            return response;
+        }
+        int wire = response.data.length;
+        if (!GZIP.equalsIgnoreCase(getHeader(response.headers, "Content-Encoding"))) {
+            if (counter != null) {
+                counter.addReceived(wire, wire);
+            }
+            return response;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(wire * 4);
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(response.data));
+        try {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        byte[] data = out.toByteArray();
+        if (counter != null) {
+            counter.addReceived(wire, data.length);
+        }
+        return new NetworkResponse(response.statusCode, data, response.headers,
+                response.notModified);
+    }
+
+    /**
+     * Remembers whether the server accepts gzip request bodies.
+     *
+     * @param acceptEncoding The "Accept-Encoding" header of a response, or null
+     */
+    public static void checkAcceptEncoding(String acceptEncoding) {
+        if (acceptEncoding != null && acceptEncoding.toLowerCase().contains(GZIP)) {
+            sServerAcceptsGzip = true;
+        }
+    }
+
+    /**
+     * Looks up a header ignoring the case of its name.
+     */
+    public static String getHeader(Map<String, String> headers, String name) {
+        if (headers == null) {
+            return null;
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A request body as sent on the wire.
+     */
+    public static final class EncodedBody {
+
+        /**
+         * The bytes to be sent, or null if there is no body.
+         */
+        public final byte[] data;
+
+        /**
+         * True if {@link #data} is gzipped.
+         */
+        public final boolean compressed;
+
+        EncodedBody(byte[] data, boolean compressed) {
+            this.data = data;
+            this.compressed = compressed;
+        }
+
+    }
+
+}
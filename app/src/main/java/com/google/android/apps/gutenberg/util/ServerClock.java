@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.android.volley.toolbox.HttpHeaderParser;
+
+import java.util.Map;
+
+/**
+ * Estimates the clock of the server from the Date headers of its responses, so that the times
+ * recorded on different devices can be compared even if their clocks are off.
+ */
+public class ServerClock {
+
+    private static final String PREF_NAME = "server_clock";
+    private static final String PREF_OFFSET = "offset";
+
+    /**
+     * Date headers have a resolution of a second, so smaller changes are ignored.
+     */
+    private static final long MIN_CHANGE = 2000;
+
+    private static Context sContext;
+    private static volatile long sOffset;
+
+    private ServerClock() {
+    }
+
+    /**
+     * Loads the last known offset. Call this once in each process before using this class.
+     */
+    public static void install(Context context) {
+        sContext = context.getApplicationContext();
+        sOffset = getPreferences().getLong(PREF_OFFSET, 0);
+    }
+
+    /**
+     * @return The current time of the server in milliseconds.
+     */
+    public static long now() {
+        if (sContext != null) {
+            // Another process may have updated it
+            sOffset = getPreferences().getLong(PREF_OFFSET, sOffset);
+        }
+        return System.currentTimeMillis() + sOffset;
+    }
+
+    /**
+     * Updates the offset with the Date header of a response.
+     *
+     * @param headers The headers of the response
+     */
+    public static void update(Map<String, String> headers) {
+        String date = GzipUtils.getHeader(headers, "Date");
+        if (date != null) {
+            update(HttpHeaderParser.parseDateAsEpoch(date));
+        }
+    }
+
+    /**
+     * Updates the offset.
+     *
+     * @param serverTime The time of the server in milliseconds, or 0 if unknown
+     */
+    public static void update(long serverTime) {
+        if (serverTime <= 0) {
+            return;
+        }
+        long offset = serverTime - System.currentTimeMillis();
+        if (Math.abs(offset - sOffset) < MIN_CHANGE) {
+            return;
+        }
+        sOffset = offset;
+        if (sContext != null) {
+            getPreferences().edit().putLong(PREF_OFFSET, offset).apply();
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static SharedPreferences getPreferences() {
+        return sContext.getSharedPreferences(PREF_NAME, Context.MODE_MULTI_PROCESS);
+    }
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg.util;
+
+import com.google.android.apps.gutenberg.BuildConfig;
+
+/**
+ * The server that the app talks to. It is {@link BuildConfig#HOST} unless the tests point it at
+ * a local server.
+ */
+public class ServerHost {
+
+    private static volatile String sHost = BuildConfig.HOST;
+
+    private ServerHost() {
+    }
+
+    /**
+     * @return The scheme and the authority of the server, without a trailing slash.
+     */
+    public static String get() {
+        return sHost;
+    }
+
+    /**
+     * Replaces the server for this process. Only for the tests.
+     *
+     * @param host The scheme and the authority of the server, or null for the default one
+     */
+    public static void set(String host) {
+        sHost = host == null ? BuildConfig.HOST : host;
+    }
+
+}
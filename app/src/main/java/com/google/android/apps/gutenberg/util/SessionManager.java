@@ -0,0 +1,184 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg.util;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ServerError;
+import com.android.volley.VolleyError;
+
+import java.io.IOException;
+import java.net.HttpCookie;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+
+/**
+ * Caches the session cookie (SACSID) of the server until it expires. The cache is stored in
+ * {@link SharedPreferences} so that it is shared between the sync process and the foreground.
+ */
+public class SessionManager {
+
+    private static final String TAG = "SessionManager";
+
+    private static final String PREF_NAME = "session";
+    private static final String PREF_ACCOUNT = "account";
+    private static final String PREF_COOKIE = "cookie";
+    private static final String PREF_EXPIRY = "expiry";
+
+    /**
+     * The lifetime of a cookie when the server doesn't tell.
+     */
+    private static final long DEFAULT_LIFETIME = 60 * 60 * 1000;
+
+    /**
+     * Cookies are refreshed this much before they expire.
+     */
+    private static final long EXPIRY_MARGIN = 60 * 1000;
+
+    private SessionManager() {
+    }
+
+    /**
+     * Returns the session cookie for the account, fetching a new one from the server only if there
+     * is no valid one in the cache.
+     *
+     * @param context     The context
+     * @param accountName The name of the account
+     * @param authToken   The auth token of the account, used when a new cookie is needed
+     * @return The cookie, or null if the server didn't give us one.
+     */
+    public static synchronized String getCookie(Context context, String accountName,
+                                                String authToken) throws IOException {
+        SharedPreferences prefs = getPreferences(context);
+        String cookie = prefs.getString(PREF_COOKIE, null);
+        if (cookie != null && accountName.equals(prefs.getString(PREF_ACCOUNT, null)) &&
+                System.currentTimeMillis() < prefs.getLong(PREF_EXPIRY, 0) - EXPIRY_MARGIN) {
+            return cookie;
+        }
+        HttpCookie httpCookie = fetchCookie(authToken);
+        if (httpCookie == null) {
+            return null;
+        }
+        cookie = httpCookie.getName() + "=" + httpCookie.getValue();
+        long maxAge = httpCookie.getMaxAge();
+        long lifetime = maxAge < 0 ? DEFAULT_LIFETIME : maxAge * 1000;
+        prefs.edit()
+                .putString(PREF_ACCOUNT, accountName)
+                .putString(PREF_COOKIE, cookie)
+                .putLong(PREF_EXPIRY, System.currentTimeMillis() + lifetime)
+                .commit();
+        return cookie;
+    }
+
+    /**
+     * Discards the cached cookie. Call this when the server rejects the cookie.
+     */
+    public static synchronized void invalidate(Context context) {
+        getPreferences(context).edit().clear().commit();
+    }
+
+    /**
+     * Checks whether an error from Volley means that the server rejected our session cookie.
+     *
+     * @param error The error, or the exception caused by it
+     * @return True if the session has expired.
+     */
+    public static boolean isSessionExpired(Throwable error) {
+        if (error == null) {
+            return false;
+        }
+        if (error instanceof SessionExpiredException) {
+            return true;
+        }
+        if (error instanceof AuthFailureError || error instanceof ServerError) {
+            // Volley also reports 403 as an AuthFailureError, so check the status code
+            NetworkResponse response = ((VolleyError) error).networkResponse;
+            if (response != null) {
+                return isSessionExpired(response.statusCode);
+            }
+            return error instanceof AuthFailureError;
+        }
+        return isSessionExpired(error.getCause());
+    }
+
+    /**
+     * Checks whether a response code means that the server rejected our session cookie: 401, or
+     * 302 when the server redirects to the login page. 403 is not, as a new cookie for the same
+     * account would be refused as well.
+     *
+     * @param responseCode The HTTP response code
+     * @return True if the session has expired.
+     */
+    public static boolean isSessionExpired(int responseCode) {
+        return responseCode == HttpURLConnection.HTTP_UNAUTHORIZED ||
+                responseCode == HttpURLConnection.HTTP_MOVED_TEMP;
+    }
+
+    @SuppressLint("InlinedApi")
+    @SuppressWarnings("deprecation")
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREF_NAME, Context.MODE_MULTI_PROCESS);
+    }
+
+    private static HttpCookie fetchCookie(String authToken) throws IOException {
+        HttpURLConnection connection = null;
+        try {
+            connection = SyncHttpClient.getInstance().open(new URL(
+                    ServerHost.get() + "/_ah/login?continue=http://localhost/&auth=" +
+                            authToken));
+            connection.setInstanceFollowRedirects(false);
+            connection.connect();
+            if (connection.getResponseCode() != 302) {
+                Log.e(TAG, "Cannot fetch the cookie: " + connection.getResponseCode());
+                return null;
+            }
+            String header = connection.getHeaderField("Set-Cookie");
+            if (header == null) {
+                return null;
+            }
+            List<HttpCookie> cookies = HttpCookie.parse(header);
+            for (HttpCookie cookie : cookies) {
+                if ("SACSID".equals(cookie.getName())) {
+                    return cookie;
+                }
+            }
+            return null;
+        } finally {
+            if (connection != null) {
+                SyncHttpClient.release(connection);
+            }
+        }
+    }
+
+    /**
+     * Thrown when the server rejects the session cookie.
+     */
+    public static class SessionExpiredException extends IOException {
+
+        public SessionExpiredException(String message) {
+            super(message);
+        }
+
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg.util;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.google.android.apps.gutenberg.GutenbergApplication;
+
+/**
+ * Gathers the check-ins made in quick succession into a single sync. The sync is requested
+ * once no check-in has been made for the length of the window, but no later than the maximum
+ * wait after the first one of them.
+ * <p/>
+ * The methods of this class must be called on the main thread.
+ */
+public class SyncCoalescer {
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final long mWindow;
+    private final long mMaxWait;
+
+    /**
+     * The uptime of the first check-in waiting for the sync, or 0 if there is none.
+     */
+    private long mFirstRequestTime;
+
+    /**
+     * @param context The context
+     * @param window  The time in milliseconds to wait for another check-in
+     * @param maxWait The maximum time in milliseconds for a check-in to wait for the sync
+     */
+    public SyncCoalescer(Context context, long window, long maxWait) {
+        mContext = context.getApplicationContext();
+        mWindow = window;
+        mMaxWait = maxWait;
+    }
+
+    /**
+     * Requests a sync for a new check-in.
+     */
+    public void request() {
+        long now = SystemClock.uptimeMillis();
+        if (mFirstRequestTime == 0) {
+            mFirstRequestTime = now;
+        }
+        mHandler.removeCallbacks(mSync);
+        mHandler.postAtTime(mSync, Math.min(now + mWindow, mFirstRequestTime + mMaxWait));
+    }
+
+    private final Runnable mSync = new Runnable() {
+        @Override
+        public void run() {
+            mFirstRequestTime = 0;
+            GutenbergApplication.from(mContext).requestSync(true);
+        }
+    };
+
+}
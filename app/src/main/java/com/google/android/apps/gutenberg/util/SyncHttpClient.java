@@ -0,0 +1,169 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg.util;
+
+import android.util.Log;
+
+import com.android.volley.RequestQueue;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.HurlStack;
+import com.android.volley.toolbox.NoCache;
+import com.squareup.okhttp.Connection;
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.OkUrlFactory;
+import com.squareup.okhttp.Response;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The HTTP client for talking to the server in the background: the sync adapter, the session
+ * cookie and the check-in listener. There is one instance per process, so the sync process has a
+ * client of its own, separate from the {@link RequestQueue} of the UI.
+ * <p/>
+ * Connections to the server are kept alive in a pool and reused by the following requests,
+ * instead of paying for a TCP and TLS handshake each time. Over HTTPS, the requests are
+ * multiplexed on a single connection when the server supports SPDY. To give a connection back
+ * to the pool, close the response body rather than calling
+ * {@link HttpURLConnection#disconnect()}, which closes the socket; see
+ * {@link #release(HttpURLConnection)}.
+ */
+public class SyncHttpClient {
+
+    private static final String TAG = "SyncHttpClient";
+
+    private static final long CONNECT_TIMEOUT = 15 * 1000;
+    private static final long READ_TIMEOUT = 30 * 1000;
+    private static final long WRITE_TIMEOUT = 30 * 1000;
+
+    private static final int MAX_IDLE_CONNECTIONS = 4;
+    private static final long KEEP_ALIVE_DURATION = 5 * 60 * 1000;
+
+    private static SyncHttpClient sInstance;
+
+    private final OkUrlFactory mUrlFactory;
+    private final ConnectionCounter mCounter = new ConnectionCounter();
+
+    /**
+     * The connections that have carried a request. Weak, so that the connections evicted from the
+     * pool are not kept here.
+     */
+    private final Set<Connection> mUsedConnections =
+            Collections.newSetFromMap(new WeakHashMap<Connection, Boolean>());
+
+    private RequestQueue mRequestQueue;
+
+    /**
+     * @return The instance for this process.
+     */
+    public static synchronized SyncHttpClient getInstance() {
+        if (sInstance == null) {
+            sInstance = new SyncHttpClient();
+        }
+        return sInstance;
+    }
+
+    private SyncHttpClient() {
+        OkHttpClient client = new OkHttpClient();
+        client.setConnectTimeout(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS);
+        client.setReadTimeout(READ_TIMEOUT, TimeUnit.MILLISECONDS);
+        client.setWriteTimeout(WRITE_TIMEOUT, TimeUnit.MILLISECONDS);
+        client.setConnectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_DURATION));
+        client.networkInterceptors().add(new Interceptor() {
+            @Override
+            public Response intercept(Chain chain) throws IOException {
+                countRequest(chain);
+                return chain.proceed(chain.request());
+            }
+        });
+        mUrlFactory = new OkUrlFactory(client);
+    }
+
+    /**
+     * Opens a connection that goes through the pool. Its timeouts default to the ones of this
+     * client.
+     */
+    public HttpURLConnection open(URL url) {
+        return mUrlFactory.open(url);
+    }
+
+    /**
+     * @return The {@link RequestQueue} for the Volley requests made in the background. It has no
+     * cache, so that the disk cache of the UI process is not touched from another process.
+     */
+    public synchronized RequestQueue getRequestQueue() {
+        if (mRequestQueue == null) {
+            mRequestQueue = new RequestQueue(new NoCache(), new BasicNetwork(new HurlStack() {
+                @Override
+                protected HttpURLConnection createConnection(URL url) {
+                    return open(url);
+                }
+            }));
+            mRequestQueue.start();
+        }
+        return mRequestQueue;
+    }
+
+    /**
+     * @return The counter for all the requests sent with this client so far.
+     */
+    public ConnectionCounter getConnectionCounter() {
+        return mCounter;
+    }
+
+    /**
+     * Closes the response body of the connection so that the connection can be reused.
+     */
+    public static void release(HttpURLConnection connection) {
+        InputStream in;
+        try {
+            in = connection.getInputStream();
+        } catch (IOException e) {
+            in = connection.getErrorStream();
+        }
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Ignore; the connection is simply not reused
+            }
+        }
+    }
+
+    private void countRequest(Interceptor.Chain chain) {
+        Connection connection = chain.connection();
+        boolean reused;
+        synchronized (mUsedConnections) {
+            reused = !mUsedConnections.add(connection);
+        }
+        mCounter.addRequest(reused);
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.v(TAG, chain.request().method() + " " + chain.request().urlString() + " on " +
+                    (reused ? "a reused" : "a new") + " " + connection.getProtocol() +
+                    " connection");
+        }
+    }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the bytes transferred with the server, both as they travel on the wire (compressed) and
+ * as they are before compression.
+ */
+public class TransferCounter {
+
+    private final AtomicLong mSentWire = new AtomicLong();
+    private final AtomicLong mSentRaw = new AtomicLong();
+    private final AtomicLong mReceivedWire = new AtomicLong();
+    private final AtomicLong mReceivedRaw = new AtomicLong();
+
+    public void addSent(long wire, long raw) {
+        mSentWire.addAndGet(wire);
+        mSentRaw.addAndGet(raw);
+    }
+
+    public void addReceived(long wire, long raw) {
+        mReceivedWire.addAndGet(wire);
+        mReceivedRaw.addAndGet(raw);
+    }
+
+    public long getSentWire() {
+        return mSentWire.get();
+    }
+
+    public long getSentRaw() {
+        return mSentRaw.get();
+    }
+
+    public long getReceivedWire() {
+        return mReceivedWire.get();
+    }
+
+    public long getReceivedRaw() {
+        return mReceivedRaw.get();
+    }
+
+    @Override
+    public String toString() {
+        return "sent " + getSentWire() + "/" + getSentRaw() + " bytes, received " +
+                getReceivedWire() + "/" + getReceivedRaw() + " bytes (compressed/raw)";
+    }
+
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.gutenberg.widget;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+
+import com.google.android.apps.gutenberg.provider.Table;
+
+/**
+ * A {@link RecyclerView.Adapter} that loads the rows of a query in pages around the positions
+ * being shown, rather than all of them in one cursor. Only a few pages are kept at a time, so
+ * the memory and the time to the first page don't depend on the number of the rows.
+ * <p/>
+ * The pages are queried by keyset pagination on the sort columns; see
+ * {@link Table#getPageUri(Uri, int, String...)}. A page whose previous one has not been loaded
+ * looks up its key with an offset, which only reads the index of the sort columns.
+ * <p/>
+ * The number of the rows is not queried here. It is given by {@link #setCount(int)}, usually from
+ * a loader that also tells when the rows have changed.
+ */
+public abstract class PagedCursorAdapter<VH extends RecyclerView.ViewHolder>
+        extends RecyclerView.Adapter<VH> {
+
+    /**
+     * The number of the pages kept in memory.
+     */
+    private static final int MAX_PAGES = 4;
+
+    private final ContentResolver mResolver;
+    private final int mPageSize;
+
+    private Uri mUri;
+    private String[] mProjection;
+    private String mSelection;
+    private String[] mSelectionArgs;
+    private String[] mSortColumns;
+    private boolean mKeyset;
+    private int mCount;
+
+    /**
+     * The loaded pages, by their indices.
+     */
+    private final SparseArray<Cursor> mPages = new SparseArray<>();
+
+    /**
+     * The pages loaded before the last change. They are shown until they are loaded again.
+     */
+    private final SparseBooleanArray mStalePages = new SparseBooleanArray();
+
+    /**
+     * The sort keys of the last rows of the pages, by the indices of the pages that follow them.
+     */
+    private final SparseArray<String[]> mBoundaries = new SparseArray<>();
+
+    /**
+     * The pages being loaded.
+     */
+    private final SparseArray<PageTask> mTasks = new SparseArray<>();
+
+    /**
+     * Incremented on every change, so that the pages loaded for an older one are discarded.
+     */
+    private int mGeneration;
+
+    /**
+     * @param context  The context
+     * @param pageSize The number of the rows in a page
+     */
+    public PagedCursorAdapter(Context context, int pageSize) {
+        mResolver = context.getContentResolver();
+        mPageSize = pageSize;
+    }
+
+    /**
+     * Binds the row at the cursor to the holder.
+     */
+    public abstract void onBindViewHolder(VH holder, Cursor cursor);
+
+    /**
+     * Binds the holder for a row that has not been loaded yet.
+     */
+    public abstract void onBindPlaceholder(VH holder);
+
+    /**
+     * Sets the query of the rows. The number of the rows has to be set separately by
+     * {@link #setCount(int)}.
+     *
+     * @param uri           The {@link Uri} of the rows, or null to show nothing
+     * @param projection    The columns, including the sort columns
+     * @param selection     The selection
+     * @param selectionArgs The arguments of the selection
+     * @param sortColumns   The sort columns. They have to identify the rows for keyset pagination.
+     * @param keyset        True to page by the keys, or false to page by the positions, like for
+     *                      search results ranked by something other than the columns.
+     */
+    public void setQuery(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                         String[] sortColumns, boolean keyset) {
+        mUri = uri;
+        mProjection = projection;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+        mSortColumns = sortColumns;
+        mKeyset = keyset;
+        mCount = 0;
+        close();
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Sets the number of the rows, and reloads the pages as they are shown. The pages loaded so far
+     * are shown in the meantime.
+     *
+     * @param count The number of the rows
+     */
+    public void setCount(int count) {
+        mCount = mUri == null ? 0 : count;
+        ++mGeneration;
+        mTasks.clear();
+        mBoundaries.clear();
+        for (int i = 0; i < mPages.size(); i++) {
+            mStalePages.put(mPages.keyAt(i), true);
+        }
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Closes all the pages. They are loaded again when they are shown.
+     */
+    public void close() {
+        ++mGeneration;
+        mTasks.clear();
+        mBoundaries.clear();
+        for (int i = 0; i < mPages.size(); i++) {
+            mPages.valueAt(i).close();
+        }
+        mPages.clear();
+        mStalePages.clear();
+    }
+
+    @Override
+    public int getItemCount() {
+        return mCount;
+    }
+
+    @Override
+    public void onBindViewHolder(VH holder, int position) {
+        int page = position / mPageSize;
+        Cursor cursor = mPages.get(page);
+        if (cursor == null || mStalePages.get(page)) {
+            load(page);
+        }
+        // The page can be shorter than expected if rows have been deleted since it was counted
+        if (cursor != null && cursor.moveToPosition(position - page * mPageSize)) {
+            onBindViewHolder(holder, cursor);
+        } else {
+            onBindPlaceholder(holder);
+        }
+    }
+
+    private void load(int page) {
+        if (mTasks.get(page) != null) {
+            return;
+        }
+        PageTask task = new PageTask(page, mKeyset ? mBoundaries.get(page) : null);
+        mTasks.put(page, task);
+        task.execute();
+    }
+
+    private void onPageLoaded(PageTask task, Cursor cursor) {
+        if (task.generation != mGeneration || mTasks.get(task.page) != task) {
+            if (cursor != null) {
+                cursor.close();
+            }
+            return;
+        }
+        mTasks.remove(task.page);
+        if (cursor == null) {
+            return;
+        }
+        Cursor old = mPages.get(task.page);
+        if (old != null) {
+            old.close();
+        }
+        mPages.put(task.page, cursor);
+        mStalePages.delete(task.page);
+        if (mKeyset && cursor.getCount() == mPageSize && cursor.moveToLast()) {
+            mBoundaries.put(task.page + 1, getKey(cursor, mSortColumns));
+        }
+        // Keep the pages nearest to this one
+        while (mPages.size() > MAX_PAGES) {
+            int farthest = 0;
+            for (int i = 1; i < mPages.size(); i++) {
+                if (Math.abs(mPages.keyAt(i) - task.page) >
+                        Math.abs(mPages.keyAt(farthest) - task.page)) {
+                    farthest = i;
+                }
+            }
+            mStalePages.delete(mPages.keyAt(farthest));
+            mPages.valueAt(farthest).close();
+            mPages.removeAt(farthest);
+        }
+        int start = task.page * mPageSize;
+        int count = Math.min(mPageSize, mCount - start);
+        if (count > 0) {
+            notifyItemRangeChanged(start, count);
+        }
+    }
+
+    private static String[] getKey(Cursor cursor, String[] sortColumns) {
+        String[] key = new String[sortColumns.length];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = cursor.getString(cursor.getColumnIndexOrThrow(sortColumns[i]));
+        }
+        return key;
+    }
+
+    /**
+     * Loads a page. The query is copied when the task is created, so that it is not affected by
+     * later changes.
+     */
+    private class PageTask extends AsyncTask<Void, Void, Cursor> {
+
+        final int page;
+        final int generation;
+
+        private final String[] mAfter;
+        private final Uri mUri;
+        private final String[] mProjection;
+        private final String mSelection;
+        private final String[] mSelectionArgs;
+        private final String[] mSortColumns;
+        private final String mSortOrder;
+        private final boolean mKeyset;
+
+        PageTask(int page, String[] after) {
+            this.page = page;
+            generation = mGeneration;
+            mAfter = after;
+            mUri = PagedCursorAdapter.this.mUri;
+            mProjection = PagedCursorAdapter.this.mProjection;
+            mSelection = PagedCursorAdapter.this.mSelection;
+            mSelectionArgs = PagedCursorAdapter.this.mSelectionArgs;
+            mSortColumns = PagedCursorAdapter.this.mSortColumns;
+            mSortOrder = TextUtils.join(", ", mSortColumns);
+            mKeyset = PagedCursorAdapter.this.mKeyset;
+        }
+
+        @Override
+        protected Cursor doInBackground(Void... params) {
+            Uri uri;
+            if (!mKeyset) {
+                uri = Table.getPageUri(mUri, mPageSize, page * mPageSize);
+            } else if (page == 0) {
+                uri = Table.getPageUri(mUri, mPageSize);
+            } else {
+                String[] after = mAfter != null ? mAfter : queryBoundary();
+                if (after == null) {
+                    return null;
+                }
+                uri = Table.getPageUri(mUri, mPageSize, after);
+            }
+            Cursor cursor = mResolver.query(uri, mProjection, mSelection, mSelectionArgs,
+                    mSortOrder);
+            if (cursor != null) {
+                // Fill the cursor window here, rather than on the main thread
+                cursor.getCount();
+            }
+            return cursor;
+        }
+
+        /**
+         * @return The key of the last row of the previous page, or null if there is no such row.
+         */
+        private String[] queryBoundary() {
+            Cursor cursor = mResolver.query(Table.getPageUri(mUri, 1, page * mPageSize - 1),
+                    mSortColumns, mSelection, mSelectionArgs, mSortOrder);
+            if (cursor == null) {
+                return null;
+            }
+            try {
+                return cursor.moveToFirst() ? getKey(cursor, mSortColumns) : null;
+            } finally {
+                cursor.close();
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Cursor cursor) {
+            onPageLoaded(this, cursor);
+        }
+
+    }
+
+}